@@ -32,6 +32,10 @@ spotsB = spotProcessor.detectSpots(channelB, radiusB_um, thresholdB, doSubpixel,
 maxdist_um = 0.5 * (radiusA_um + radiusB_um) * distanceFactorColoc
 CR = spotProcessor.findSpotCorrespondences(spotsA, spotsB, maxdist_um) 
 # colocalization result CR: fields are lists of spots, split by channel and colocalization: CR.spotsA_coloc, CR.spotsA_noncoloc, etc.
+# the same spots are available as compact SpotTables (columns x,y,z,radius,..): CR.tableA_coloc, CR.tableA_noncoloc, etc.
+# the spot lists are built on first access from the tables. here they contain the detected spot objects (spotsA, spotsB),
+# only CR.spotsAvg_coloc holds new spots. tables from SpotTable.fromSpots(spots) or SpotTable.concat(..) keep no spot
+# objects (compact): their asSpotList() holds new spots with the table columns as features.
 
 # print a summary
 print "\nDetected spots channel A: colocalized: ",len(CR.spotsA_coloc),", not colocalized: ",len(CR.spotsA_noncoloc)
@@ -43,3 +47,6 @@ for spot in CR.spotsA_coloc:
 	print "x=",spot.getDoublePosition(0),", y=",spot.getDoublePosition(1),", z=", spot.getDoublePosition(2)
 
 
+
+# where did the time go? (per stage: calls, time, spots, allocated memory)
+print spotProcessor.getMetrics()
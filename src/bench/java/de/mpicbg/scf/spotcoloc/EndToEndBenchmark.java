@@ -0,0 +1,199 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+import fiji.plugin.trackmate.Spot;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * End-to-end headless benchmark: spot detection in 2 channels + colocalization on synthetic images (SyntheticImage),
+ * as in the batch plugins. Reports throughput (images/s, spots/s), time per stage, peak heap and the accuracy
+ * against the known spot positions, so that a speedup can be checked not to change results.
+ *
+ * Usage (all arguments optional, key=value):
+ *   mvn -P benchmark compile exec:exec -Dbenchmark.main=de.mpicbg.scf.spotcoloc.EndToEndBenchmark
+ *       -Dbenchmark.args="images=20 slices=24 spots=200 coloc=0.5"
+ * Arguments: images, width (px), slices (1: 2D), pixel (um), radius (um), spots (per channel), coloc (fraction),
+ *   threshold, threads, matching (greedy/optimal), detector (trackmate/native), seed. Two images are processed as warmup first.
+ */
+public class EndToEndBenchmark {
+
+    public static void main(String[] args) {
+        Map<String, String> params = new HashMap<>();
+        for (String arg : args) {
+            String[] keyValue = arg.split("=", 2);
+            if (keyValue.length != 2) {
+                System.err.println("Ignoring argument " + arg + " (expected key=value)");
+                continue;
+            }
+            params.put(keyValue[0], keyValue[1]);
+        }
+
+        int numImages = Integer.parseInt(params.getOrDefault("images", "20"));
+        int width = Integer.parseInt(params.getOrDefault("width", "256"));
+        int nSlices = Integer.parseInt(params.getOrDefault("slices", "24"));
+        double pixelSize_um = Double.parseDouble(params.getOrDefault("pixel", "0.1"));
+        double radius_um = Double.parseDouble(params.getOrDefault("radius", "0.5"));
+        int numSpots = Integer.parseInt(params.getOrDefault("spots", "100"));
+        double colocFraction = Double.parseDouble(params.getOrDefault("coloc", "0.5"));
+        double threshold = Double.parseDouble(params.getOrDefault("threshold", "50"));
+        int numThreads = Integer.parseInt(params.getOrDefault("threads",
+                "" + Runtime.getRuntime().availableProcessors()));
+        SpotProcessor.MatchingMode matchingMode =
+                SpotProcessor.MatchingMode.valueOf(params.getOrDefault("matching", "greedy").toUpperCase());
+        SpotProcessor.DetectorBackend detectorBackend =
+                SpotProcessor.DetectorBackend.valueOf(params.getOrDefault("detector", "trackmate").toUpperCase());
+        long seed = Long.parseLong(params.getOrDefault("seed", "1"));
+
+        System.out.println(String.format(Locale.US, "End-to-end benchmark: %d images %dx%dx%d px, %d spots/channel, " +
+                        "coloc fraction %.2f, radius %.2f um, threshold %.1f, %d threads, %s matching, %s detector",
+                numImages, width, width, nSlices, numSpots, colocFraction, radius_um, threshold, numThreads,
+                matchingMode, detectorBackend));
+
+        Stats warmup = new Stats();
+        for (int i = 0; i < 2; i++) {
+            processImage(new SyntheticImage(width, nSlices, pixelSize_um, radius_um, numSpots, colocFraction,
+                    seed + 1000 + i), radius_um, threshold, numThreads, matchingMode, detectorBackend, warmup);
+        }
+
+        resetPeakHeap();
+        Stats stats = new Stats();
+        for (int i = 0; i < numImages; i++) {
+            SyntheticImage image = new SyntheticImage(width, nSlices, pixelSize_um, radius_um, numSpots,
+                    colocFraction, seed + i);
+            processImage(image, radius_um, threshold, numThreads, matchingMode, detectorBackend, stats);
+        }
+        stats.print(numImages, getPeakHeap());
+    }
+
+
+    /**
+     * Runs detection + colocalization on one image (timed per stage) and compares with the ground truth.
+     */
+    private static void processImage(SyntheticImage image, double radius_um, double threshold, int numThreads,
+                                     SpotProcessor.MatchingMode matchingMode,
+                                     SpotProcessor.DetectorBackend detectorBackend, Stats stats) {
+        SpotProcessor spotProcessor = new SpotProcessor(image.imp);
+        spotProcessor.setNumThreads(numThreads);
+        spotProcessor.setDetectionCacheSize(0);
+        spotProcessor.setMatchingMode(matchingMode);
+        spotProcessor.setDetectorBackend(detectorBackend);
+
+        long t0 = System.nanoTime();
+        List<Spot> spotsA = spotProcessor.detectSpots(1, radius_um, threshold, true, false);
+        long t1 = System.nanoTime();
+        List<Spot> spotsB = spotProcessor.detectSpots(2, radius_um, threshold, true, false);
+        long t2 = System.nanoTime();
+        SpotProcessor.ColocResult CR = spotProcessor.findSpotCorrespondences(spotsA, spotsB, radius_um);
+        long t3 = System.nanoTime();
+
+        stats.detectA_ns += t1 - t0;
+        stats.detectB_ns += t2 - t1;
+        stats.match_ns += t3 - t2;
+        stats.numDetected += spotsA.size() + spotsB.size();
+
+        // == accuracy: detections within 0.5 radius of a true spot (one-to-one) ==
+        double tolerance = 0.5 * radius_um;
+        stats.numTrue += image.trueSpotsA.size() + image.trueSpotsB.size();
+        stats.numFound += countMatched(SpotTable.fromSpots(spotsA), image.trueSpotsA, tolerance);
+        stats.numFound += countMatched(SpotTable.fromSpots(spotsB), image.trueSpotsB, tolerance);
+
+        // coloc pairs: both spots found at a true coloc pair
+        SpotGrid gridA = new SpotGrid(image.trueSpotsA, tolerance).addAll();
+        SpotGrid gridB = new SpotGrid(image.trueSpotsB, tolerance).addAll();
+        SpotTable colocA = CR.tableA_coloc;
+        SpotTable colocB = CR.tableB_coloc;
+        for (int k = 0; k < colocA.size(); k++) {
+            int trueA = gridA.findNearest(colocA.x(k), colocA.y(k), colocA.z(k), tolerance * tolerance, null);
+            int trueB = gridB.findNearest(colocB.x(k), colocB.y(k), colocB.z(k), tolerance * tolerance, null);
+            if (trueA >= 0 && trueA == trueB && trueA < image.numColoc) {
+                stats.numColocCorrect++;
+            }
+        }
+        stats.numColocFound += colocA.size();
+        stats.numColocTrue += image.numColoc;
+
+        image.imp.flush();
+    }
+
+
+    /**
+     * @return number of detected spots which can be assigned one-to-one to a true spot within tolerance
+     */
+    private static int countMatched(SpotTable detected, SpotTable truth, double tolerance) {
+        SpotGrid grid = new SpotGrid(truth, tolerance).addAll();
+        boolean[] used = new boolean[truth.size()];
+        int count = 0;
+        for (int i = 0; i < detected.size(); i++) {
+            int t = grid.findNearest(detected.x(i), detected.y(i), detected.z(i), tolerance * tolerance, used);
+            if (t >= 0) {
+                used[t] = true;
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+
+    /**
+     * @return sum of the peak usage of all heap pools (bytes). An upper bound, pools peak at different times.
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+
+    /**
+     * Accumulated timings + accuracy counts.
+     */
+    private static class Stats {
+        long detectA_ns, detectB_ns, match_ns;
+        long numDetected, numTrue, numFound;
+        long numColocTrue, numColocFound, numColocCorrect;
+
+        void print(int numImages, long peakHeap) {
+            double total_s = (detectA_ns + detectB_ns + match_ns) * 1e-9;
+            System.out.println(String.format(Locale.US, "Throughput: %.2f images/s, %.0f spots/s",
+                    numImages / total_s, numDetected / total_s));
+            System.out.println(String.format(Locale.US, "Per image: detection A %.1f ms, detection B %.1f ms, " +
+                            "matching %.2f ms", detectA_ns * 1e-6 / numImages, detectB_ns * 1e-6 / numImages,
+                    match_ns * 1e-6 / numImages));
+            System.out.println(String.format(Locale.US, "Peak heap: %.1f MB", peakHeap / (1024.0 * 1024.0)));
+            System.out.println(String.format(Locale.US, "Detection: recall %.4f, precision %.4f (%d true, %d detected)",
+                    ratio(numFound, numTrue), ratio(numFound, numDetected), numTrue, numDetected));
+            System.out.println(String.format(Locale.US, "Colocalization: recall %.4f, precision %.4f " +
+                            "(%d true pairs, %d found)", ratio(numColocCorrect, numColocTrue),
+                    ratio(numColocCorrect, numColocFound), numColocTrue, numColocFound));
+        }
+
+        private static double ratio(long a, long b) {
+            return (b > 0) ? a / (double) b : Double.NaN;
+        }
+    }
+}
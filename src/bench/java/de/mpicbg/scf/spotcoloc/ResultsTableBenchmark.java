@@ -0,0 +1,108 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+import fiji.plugin.trackmate.Spot;
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Filling of the results tables (SpotProcessor.fill*Table(..)), into an ImageJ ResultsTable and streamed as CSV
+ * (to a writer which discards the text, so that only formatting is measured).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultsTableBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int numSpots;
+
+    @Param({"0.1", "1"})
+    double density;
+
+    @Param({"UNIFORM_3D"})
+    SyntheticSpots.Layout layout;
+
+    private final double radius_um = 1.0;
+
+    private ImagePlus imp;
+    private SpotProcessor spotProcessor;
+    private List<Spot> spots;
+    private SpotProcessor.ColocResult colocResult;
+
+
+    @Setup
+    public void setup() {
+        SyntheticSpots generator = new SyntheticSpots(layout, numSpots, density, radius_um);
+        imp = generator.createImage();
+        spotProcessor = new SpotProcessor(imp);
+
+        SpotTable spotsA = generator.createTable(numSpots, 1);
+        SpotTable spotsB = generator.createTable(numSpots, 2);
+        spots = spotsA.toSpots();
+        colocResult = spotProcessor.findSpotCorrespondences(spotsA, spotsB, radius_um);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        imp.flush();
+    }
+
+
+    @Benchmark
+    public ResultsTable fillSpotsDetectionTable() {
+        ResultsTableSink rt = new ResultsTableSink(new ResultsTable(), null);
+        spotProcessor.fillSpotsDetectionTable(rt, 1, spots);
+        return rt.getResultsTable();
+    }
+
+
+    @Benchmark
+    public ResultsTable fillSpotsColocTable() {
+        ResultsTableSink rt = new ResultsTableSink(new ResultsTable(), null);
+        spotProcessor.fillSpotsColocTable(rt, 1, 2, colocResult);
+        spotProcessor.fillSummaryColocTable(rt, 1, 2, 1, colocResult);
+        return rt.getResultsTable();
+    }
+
+
+    @Benchmark
+    public long fillSpotsColocTableCsv() throws IOException {
+        CsvResultSink rt = new CsvResultSink(new NullWriter(), 4);
+        spotProcessor.fillSpotsColocTable(rt, 1, 2, colocResult);
+        rt.close();
+        return rt.getNumRows();
+    }
+
+
+    /**
+     * Discards all text.
+     */
+    private static class NullWriter extends Writer {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+import fiji.plugin.trackmate.Spot;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Duplicate removal after detection (SpotProcessor.removeDuplicateSpots(..), as called in detectSpots(..)):
+ * exact duplicates only (mergeDist 0) and merging of close spots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpotDedupBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int numSpots;
+
+    @Param({"0.1", "1"})
+    double density;
+
+    @Param({"UNIFORM_2D", "UNIFORM_3D", "CLUSTERED_3D"})
+    SyntheticSpots.Layout layout;
+
+    // merge distance relative to the spot radius. 0: remove identical positions only
+    @Param({"0", "0.5"})
+    double mergeFactor;
+
+    private final double radius_um = 1.0;
+
+    private List<Spot> spots;
+
+
+    @Setup
+    public void setup() {
+        SyntheticSpots generator = new SyntheticSpots(layout, numSpots, density, radius_um);
+        // shift 0: exact duplicates, which are found by both variants
+        spots = generator.createSpotsWithDuplicates(numSpots, 0.1, (mergeFactor > 0) ? 0.25 * radius_um : 0, 1);
+    }
+
+
+    @Benchmark
+    public List<Spot> removeDuplicateSpots() {
+        return SpotProcessor.removeDuplicateSpots(spots, mergeFactor * radius_um);
+    }
+}
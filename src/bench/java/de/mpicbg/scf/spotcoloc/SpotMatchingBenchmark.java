@@ -0,0 +1,58 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Colocalization matching (SpotProcessor.findSpotCorrespondences(..)) of two independent synthetic spot sets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpotMatchingBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int numSpots;
+
+    // mean number of spots B within the coloc distance of a spot A
+    @Param({"0.1", "1"})
+    double density;
+
+    @Param({"UNIFORM_2D", "UNIFORM_3D", "CLUSTERED_3D"})
+    SyntheticSpots.Layout layout;
+
+    @Param({"GREEDY", "OPTIMAL"})
+    SpotProcessor.MatchingMode matchingMode;
+
+    private final double radius_um = 1.0;
+
+    private SpotProcessor spotProcessor;
+    private SpotTable spotsA;
+    private SpotTable spotsB;
+
+
+    @Setup
+    public void setup() {
+        SyntheticSpots generator = new SyntheticSpots(layout, numSpots, density, radius_um);
+        spotsA = generator.createTable(numSpots, 1);
+        spotsB = generator.createTable(numSpots, 2);
+
+        spotProcessor = new SpotProcessor(generator.createImage());
+        spotProcessor.setMatchingMode(matchingMode);
+    }
+
+
+    @Benchmark
+    public SpotProcessor.ColocResult findSpotCorrespondences() {
+        return spotProcessor.findSpotCorrespondences(spotsA, spotsB, radius_um);
+    }
+}
@@ -0,0 +1,66 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Overlay creation for the spots (SpotVisualization.createOverlayOfSpots(..)): one circle per spot, slice and channel.
+ * For comparison also the lazily drawn overlay of large spot sets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpotOverlayBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int numSpots;
+
+    @Param({"0.1", "1"})
+    double density;
+
+    @Param({"UNIFORM_2D", "UNIFORM_3D"})
+    SyntheticSpots.Layout layout;
+
+    private final double radius_um = 1.0;
+
+    private ImagePlus imp;
+    private SpotTable spots;
+
+
+    @Setup
+    public void setup() {
+        SyntheticSpots generator = new SyntheticSpots(layout, numSpots, density, radius_um);
+        imp = generator.createImage();
+        spots = generator.createTable(numSpots, 1);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        imp.flush();
+    }
+
+
+    @Benchmark
+    public Overlay createOverlayOfSpots() {
+        return SpotVisualization.createOverlayOfSpots(imp, spots, radius_um, new Overlay(), Color.magenta);
+    }
+
+
+    @Benchmark
+    public Overlay createLazyOverlayOfSpots() {
+        return SpotVisualization.createLazyOverlayOfSpots(imp, spots, radius_um, new Overlay(), Color.magenta);
+    }
+}
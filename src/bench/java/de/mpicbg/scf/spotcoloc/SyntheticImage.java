@@ -0,0 +1,170 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+
+/**
+ * Synthetic 2-channel image (2D or 3D, 16-bit) with gaussian spots at known positions, for end-to-end benchmarks and
+ * accuracy checks. Channel 1 holds the spots A, channel 2 the spots B. A fraction `colocFraction` of the spots A has
+ * a partner B (shifted by at most 0.2*radius), all other spots are far apart from each other (>= 4*radius), so that
+ * the true colocalization is unambiguous.
+ * Background 100 with gaussian noise (sigma 10), spot amplitude 1000.
+ */
+public class SyntheticImage {
+
+    // ground truth (um). trueSpotsA(i) and trueSpotsB(i) are colocalized for i < numColoc
+    public final SpotTable trueSpotsA;
+    public final SpotTable trueSpotsB;
+    public final int numColoc;
+
+    public final ImagePlus imp;
+
+    private static final double background = 100;
+    private static final double noise = 10;
+    private static final double amplitude = 1000;
+
+
+    /**
+     * @param width image width = height (px)
+     * @param nSlices number of slices. 1: 2D image
+     * @param pixelSize_um xy pixel size, the z spacing is 2x as large
+     * @param radius_um spot radius
+     * @param numSpots number of spots per channel (fewer if the image is too small to place them apart)
+     * @param colocFraction fraction of the spots A with a partner B
+     * @param seed random seed
+     */
+    public SyntheticImage(int width, int nSlices, double pixelSize_um, double radius_um, int numSpots,
+                          double colocFraction, long seed) {
+        Random random = new Random(seed);
+        boolean is3D = nSlices > 1;
+        double pixelDepth_um = is3D ? 2 * pixelSize_um : 1;
+
+        // == positions: independent spots at least 4 radii apart (dart throwing) ==
+        int numColocTarget = (int) Math.round(colocFraction * numSpots);
+        int numIndependent = 2 * numSpots - numColocTarget; // A spots + B spots without partner
+        double sizeXY = width * pixelSize_um;
+        double sizeZ = is3D ? nSlices * pixelDepth_um : 0;
+        double margin = 2 * radius_um;
+        double minDist = 4 * radius_um;
+
+        double[][] centers = new double[numIndependent][];
+        double[] xs = new double[numIndependent];
+        double[] ys = new double[numIndependent];
+        double[] zs = new double[numIndependent];
+        SpotGrid grid = new SpotGrid(xs, ys, zs, minDist); // filled while placing
+        int numPlaced = 0;
+        for (int attempt = 0; attempt < 50 * numIndependent && numPlaced < numIndependent; attempt++) {
+            double x = margin + random.nextDouble() * (sizeXY - 2 * margin);
+            double y = margin + random.nextDouble() * (sizeXY - 2 * margin);
+            double z = is3D ? margin + random.nextDouble() * (sizeZ - 2 * margin) : 0;
+            if (grid.findNearest(x, y, z, minDist * minDist, null) >= 0) {
+                continue;
+            }
+            xs[numPlaced] = x;
+            ys[numPlaced] = y;
+            zs[numPlaced] = z;
+            centers[numPlaced] = new double[]{x, y, z};
+            grid.add(numPlaced);
+            numPlaced++;
+        }
+
+        // first the coloc A, then the other A, then the other B
+        int numA = Math.min(numSpots, numPlaced);
+        this.numColoc = Math.min(numColocTarget, numA);
+        int numB = Math.min(numSpots, numColoc + numPlaced - numA);
+
+        trueSpotsA = SpotTable.allocate(numA);
+        for (int i = 0; i < numA; i++) {
+            trueSpotsA.set(i, centers[i][0], centers[i][1], centers[i][2], radius_um, Double.NaN, Double.NaN,
+                    Double.NaN, 1);
+        }
+        trueSpotsB = SpotTable.allocate(numB);
+        for (int i = 0; i < numB; i++) {
+            double x, y, z;
+            if (i < numColoc) {
+                // partner of A: random shift below 0.2 radius
+                double shift = 0.2 * radius_um / Math.sqrt(3);
+                x = centers[i][0] + shift * (2 * random.nextDouble() - 1);
+                y = centers[i][1] + shift * (2 * random.nextDouble() - 1);
+                z = is3D ? centers[i][2] + shift * (2 * random.nextDouble() - 1) : 0;
+            } else {
+                double[] c = centers[numA + i - numColoc];
+                x = c[0];
+                y = c[1];
+                z = c[2];
+            }
+            trueSpotsB.set(i, x, y, z, radius_um, Double.NaN, Double.NaN, Double.NaN, 1);
+        }
+
+        // == pixels ==
+        ImageStack stack = new ImageStack(width, width);
+        short[][] channelA = render(trueSpotsA, width, nSlices, pixelSize_um, pixelDepth_um, is3D, random);
+        short[][] channelB = render(trueSpotsB, width, nSlices, pixelSize_um, pixelDepth_um, is3D, random);
+        for (int s = 0; s < nSlices; s++) {
+            // hyperstack order czt
+            stack.addSlice("", new ShortProcessor(width, width, channelA[s], null));
+            stack.addSlice("", new ShortProcessor(width, width, channelB[s], null));
+        }
+        imp = new ImagePlus("synthetic_" + seed, stack);
+        imp.setDimensions(2, nSlices, 1);
+        imp.setOpenAsHyperStack(true);
+        Calibration calib = imp.getCalibration();
+        calib.pixelWidth = pixelSize_um;
+        calib.pixelHeight = pixelSize_um;
+        calib.pixelDepth = pixelDepth_um;
+        calib.setUnit("um");
+    }
+
+
+    /**
+     * Gaussian spots (sigma = radius/sqrt(dims), as expected by the LoG detector) on a noisy background.
+     */
+    private static short[][] render(SpotTable spots, int width, int nSlices, double pixelSize_um,
+                                    double pixelDepth_um, boolean is3D, Random random) {
+        double[][] planes = new double[nSlices][width * width];
+        for (double[] plane : planes) {
+            for (int p = 0; p < plane.length; p++) {
+                plane[p] = background + noise * random.nextGaussian();
+            }
+        }
+
+        for (int i = 0; i < spots.size(); i++) {
+            double sigma = spots.radius(i) / Math.sqrt(is3D ? 3 : 2);
+            double extent = 3 * sigma;
+            int x0 = Math.max(0, (int) Math.floor((spots.x(i) - extent) / pixelSize_um));
+            int x1 = Math.min(width - 1, (int) Math.ceil((spots.x(i) + extent) / pixelSize_um));
+            int y0 = Math.max(0, (int) Math.floor((spots.y(i) - extent) / pixelSize_um));
+            int y1 = Math.min(width - 1, (int) Math.ceil((spots.y(i) + extent) / pixelSize_um));
+            int z0 = is3D ? Math.max(0, (int) Math.floor((spots.z(i) - extent) / pixelDepth_um)) : 0;
+            int z1 = is3D ? Math.min(nSlices - 1, (int) Math.ceil((spots.z(i) + extent) / pixelDepth_um)) : 0;
+            for (int z = z0; z <= z1; z++) {
+                double dz = is3D ? z * pixelDepth_um - spots.z(i) : 0;
+                for (int y = y0; y <= y1; y++) {
+                    double dy = y * pixelSize_um - spots.y(i);
+                    for (int x = x0; x <= x1; x++) {
+                        double dx = x * pixelSize_um - spots.x(i);
+                        planes[z][y * width + x] += amplitude *
+                                Math.exp(-(dx * dx + dy * dy + dz * dz) / (2 * sigma * sigma));
+                    }
+                }
+            }
+        }
+
+        short[][] pixels = new short[nSlices][width * width];
+        for (int z = 0; z < nSlices; z++) {
+            for (int p = 0; p < width * width; p++) {
+                pixels[z][p] = (short) Math.min(65535, Math.max(0, Math.round(planes[z][p])));
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,147 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.spot.SpotIntensityAnalyzerFactory;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Synthetic spot sets for the benchmarks. Spots are placed in a box whose size is chosen such that a spot has on
+ * average `density` other spots within the distance `radius_um` (uniform layouts). Clustered layouts use the same
+ * box but place the spots in small gaussian clusters, so that local densities are much higher.
+ * All generators are deterministic for a given seed.
+ */
+public class SyntheticSpots {
+
+    public enum Layout {
+        UNIFORM_2D(false, false), UNIFORM_3D(true, false), CLUSTERED_2D(false, true), CLUSTERED_3D(true, true);
+
+        final boolean is3D;
+        final boolean isClustered;
+
+        Layout(boolean is3D, boolean isClustered) {
+            this.is3D = is3D;
+            this.isClustered = isClustered;
+        }
+    }
+
+    // spots per cluster in the clustered layouts
+    private static final int clusterSize = 20;
+
+    // image dimensions of createImage(..) (px). z only for 3D layouts
+    private static final int imageWidth = 256;
+    private static final int imageSlices = 32;
+
+    private final Layout layout;
+    private final double radius_um;
+    private final double boxXY_um;
+    private final double boxZ_um;
+
+
+    /**
+     * @param layout spot layout
+     * @param numSpots number of spots the box is sized for
+     * @param density mean number of neighbors within radius_um (uniform layouts)
+     * @param radius_um spot radius, also the neighbor distance of density
+     */
+    public SyntheticSpots(Layout layout, int numSpots, double density, double radius_um) {
+        this.layout = layout;
+        this.radius_um = radius_um;
+        if (layout.is3D) {
+            // flat box (z = xy/4), like a typical stack
+            double volume = numSpots * 4.0 / 3.0 * Math.PI * Math.pow(radius_um, 3) / density;
+            this.boxXY_um = Math.cbrt(4 * volume);
+            this.boxZ_um = boxXY_um / 4;
+        } else {
+            double area = numSpots * Math.PI * radius_um * radius_um / density;
+            this.boxXY_um = Math.sqrt(area);
+            this.boxZ_um = 0;
+        }
+    }
+
+
+    /**
+     * @return numSpots spots with quality in [0,100), mean intensity and frame 1
+     */
+    public SpotTable createTable(int numSpots, long seed) {
+        Random random = new Random(seed);
+        SpotTable table = SpotTable.allocate(numSpots);
+
+        double cx = 0, cy = 0, cz = 0;
+        for (int i = 0; i < numSpots; i++) {
+            double x, y, z;
+            if (layout.isClustered) {
+                if (i % clusterSize == 0) {
+                    cx = random.nextDouble() * boxXY_um;
+                    cy = random.nextDouble() * boxXY_um;
+                    cz = random.nextDouble() * boxZ_um;
+                }
+                double sigma = 2 * radius_um;
+                x = clamp(cx + sigma * random.nextGaussian(), boxXY_um);
+                y = clamp(cy + sigma * random.nextGaussian(), boxXY_um);
+                z = layout.is3D ? clamp(cz + sigma * random.nextGaussian(), boxZ_um) : 0;
+            } else {
+                x = random.nextDouble() * boxXY_um;
+                y = random.nextDouble() * boxXY_um;
+                z = random.nextDouble() * boxZ_um;
+            }
+            table.set(i, x, y, z, radius_um, 100 * random.nextDouble(), 1000 * random.nextDouble(), Double.NaN, 1);
+        }
+        return table;
+    }
+
+
+    /**
+     * Like createTable(..), but every spot gets a copy shifted by less than shift_um with probability
+     * fractionDuplicates (as LoG detection produces them), in list order after the original.
+     */
+    public List<Spot> createSpotsWithDuplicates(int numSpots, double fractionDuplicates, double shift_um, long seed) {
+        Random random = new Random(seed + 1);
+        SpotTable table = createTable(numSpots, seed);
+        List<Spot> spots = new ArrayList<>();
+        for (int i = 0; i < table.size(); i++) {
+            Spot spot = table.toSpot(i);
+            spots.add(spot);
+            if (random.nextDouble() < fractionDuplicates) {
+                Spot copy = new Spot(spot.getDoublePosition(0) + shift_um * random.nextDouble(),
+                        spot.getDoublePosition(1) + shift_um * random.nextDouble(),
+                        spot.getDoublePosition(2) + (layout.is3D ? shift_um * random.nextDouble() : 0),
+                        radius_um, 100 * random.nextDouble());
+                copy.putFeature(Spot.FRAME, 0.0);
+                copy.putFeature(SpotIntensityAnalyzerFactory.MEAN_INTENSITY, 1000 * random.nextDouble());
+                spots.add(copy);
+            }
+        }
+        return spots;
+    }
+
+
+    /**
+     * @return 8-bit image with 2 channels which covers the box (calibrated, for overlays and tables)
+     */
+    public ImagePlus createImage() {
+        int nSlices = layout.is3D ? imageSlices : 1;
+        ImagePlus imp = IJ.createHyperStack("synthetic", imageWidth, imageWidth, 2, nSlices, 1, 8);
+        Calibration calib = imp.getCalibration();
+        calib.pixelWidth = boxXY_um / imageWidth;
+        calib.pixelHeight = boxXY_um / imageWidth;
+        calib.pixelDepth = layout.is3D ? boxZ_um / nSlices : 1;
+        calib.setUnit("um");
+        return imp;
+    }
+
+
+    private static double clamp(double value, double max) {
+        return Math.min(Math.max(value, 0), max);
+    }
+}
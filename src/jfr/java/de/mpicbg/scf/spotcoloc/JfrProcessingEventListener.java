@@ -0,0 +1,159 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ * Emits the processing events of SpotProcessor as Java Flight Recorder events (category "Spot Colocalizer"), so that
+ * detection, matching and export can be correlated with GC pauses and allocation in a recording, e.g.
+ *   java -XX:StartFlightRecording=filename=spots.jfr ...   or   jcmd <pid> JFR.start
+ * Needs JDK 11+, built by the maven profile jfr. Events which are not enabled in the recording cost next to nothing.
+ */
+public class JfrProcessingEventListener implements ProcessingEventListener {
+
+    @Name("de.mpicbg.scf.spotcoloc.Detection")
+    @Label("Spot Detection")
+    @Category("Spot Colocalizer")
+    @Description("Spot detection in one channel and time point")
+    static class DetectionEvent extends Event {
+        @Label("Image")
+        String image;
+
+        @Label("Channel")
+        int channel;
+
+        @Label("Frame")
+        int frame;
+
+        @Label("Radius (um)")
+        double radius;
+
+        @Label("Threshold")
+        double threshold;
+
+        @Label("Cached")
+        @Description("Answered from the detection cache")
+        boolean cached;
+
+        @Label("Spots")
+        int numSpots;
+    }
+
+
+    @Name("de.mpicbg.scf.spotcoloc.Correspondence")
+    @Label("Spot Correspondence Search")
+    @Category("Spot Colocalizer")
+    @Description("Colocalization matching of two spot sets")
+    static class CorrespondenceEvent extends Event {
+        @Label("Image")
+        String image;
+
+        @Label("Spots A")
+        int numSpotsA;
+
+        @Label("Spots B")
+        int numSpotsB;
+
+        @Label("Matches")
+        int numMatches;
+
+        @Label("Max Distance (um)")
+        double maxDistance;
+
+        @Label("Matching Mode")
+        String matchingMode;
+    }
+
+
+    @Name("de.mpicbg.scf.spotcoloc.Export")
+    @Label("Results Export")
+    @Category("Spot Colocalizer")
+    @Description("Spots written to a results table or file")
+    static class ExportEvent extends Event {
+        @Label("Image")
+        String image;
+
+        @Label("Sink")
+        String sink;
+
+        @Label("Rows")
+        long numRows;
+    }
+
+
+    @Override
+    public Object beginDetection() {
+        DetectionEvent event = new DetectionEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endDetection(Object event, String image, int channel, int frame, double radius_um, double threshold,
+                             boolean cached, int numSpots) {
+        DetectionEvent detection = (DetectionEvent) event;
+        detection.end();
+        if (detection.shouldCommit()) {
+            detection.image = image;
+            detection.channel = channel;
+            detection.frame = frame;
+            detection.radius = radius_um;
+            detection.threshold = threshold;
+            detection.cached = cached;
+            detection.numSpots = numSpots;
+            detection.commit();
+        }
+    }
+
+
+    @Override
+    public Object beginCorrespondence() {
+        CorrespondenceEvent event = new CorrespondenceEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endCorrespondence(Object event, String image, int numSpotsA, int numSpotsB, int numMatches,
+                                  double maxdist_um, String matchingMode) {
+        CorrespondenceEvent correspondence = (CorrespondenceEvent) event;
+        correspondence.end();
+        if (correspondence.shouldCommit()) {
+            correspondence.image = image;
+            correspondence.numSpotsA = numSpotsA;
+            correspondence.numSpotsB = numSpotsB;
+            correspondence.numMatches = numMatches;
+            correspondence.maxDistance = maxdist_um;
+            correspondence.matchingMode = matchingMode;
+            correspondence.commit();
+        }
+    }
+
+
+    @Override
+    public Object beginExport() {
+        ExportEvent event = new ExportEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endExport(Object event, String image, String sink, long numRows) {
+        ExportEvent export = (ExportEvent) event;
+        export.end();
+        if (export.shouldCommit()) {
+            export.image = image;
+            export.sink = sink;
+            export.numRows = numRows;
+            export.commit();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * ResultSink which streams the rows to a compact binary file, column by column in blocks of rows.
+ * Only one block is kept in memory. All numbers are big-endian (java.io.DataOutputStream).
+ * <pre>
+ * header:  magic "SPOTCOL1" (8 bytes), int numColumns, numColumns x column name (modified UTF-8, writeUTF)
+ * blocks:  int numRows (0 terminates the file)
+ *          int numNewLabels, numNewLabels x label (writeUTF). labels get ids 0,1,2.. in order of appearance
+ *          numRows x int label id
+ *          for each column: numRows x double value (NaN: empty)
+ * </pre>
+ * read(..) reads such a file back.
+ */
+public class ColumnarResultSink extends StreamingResultSink {
+
+    static final String magic = "SPOTCOL1";
+    static final int defaultBlockSize = 65536;
+
+    private final DataOutputStream out;
+    private final int blockSize;
+
+    // current block, column major
+    private double[][] block;
+    private final int[] blockLabelIds;
+    private int blockRows = 0;
+
+    // label dictionary
+    private final Map<String, Integer> labelIds = new HashMap<>();
+    private final List<String> newLabels = new ArrayList<>();
+
+
+    /**
+     * @param file output file, overwritten if it exists
+     */
+    public ColumnarResultSink(File file) throws IOException {
+        this(file, defaultBlockSize);
+    }
+
+
+    /**
+     * @param file output file, overwritten if it exists
+     * @param blockSize number of rows buffered before they are written
+     */
+    public ColumnarResultSink(File file, int blockSize) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        this.blockSize = Math.max(1, blockSize);
+        this.blockLabelIds = new int[this.blockSize];
+    }
+
+
+    @Override
+    void writeHeader(List<String> columns) throws IOException {
+        out.writeBytes(magic);
+        out.writeInt(columns.size());
+        for (String column : columns) {
+            out.writeUTF(column);
+        }
+        block = new double[columns.size()][blockSize];
+    }
+
+
+    @Override
+    void writeRow(String label, double[] values) throws IOException {
+        Integer labelId = labelIds.get(label);
+        if (labelId == null) {
+            labelId = labelIds.size();
+            labelIds.put(label, labelId);
+            newLabels.add(label);
+        }
+        blockLabelIds[blockRows] = labelId;
+        for (int c = 0; c < block.length; c++) {
+            block[c][blockRows] = values[c];
+        }
+        blockRows++;
+
+        if (blockRows == blockSize) {
+            writeBlock();
+        }
+    }
+
+
+    @Override
+    void closeStream() throws IOException {
+        try {
+            if (block != null) {
+                if (blockRows > 0) {
+                    writeBlock();
+                }
+                out.writeInt(0);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+
+    /**
+     * Reads a file written by this sink and replays its rows into sink (e.g. a CsvResultSink to convert it), in the
+     * original order: per row incrementCounter(), addLabel(..) and addValue(..) for every column, also for the empty
+     * (NaN) ones. sink is not closed.
+     * @throws IOException if the file cannot be read, is not a columnar result file or is truncated
+     */
+    public static void read(File file, ResultSink sink) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            byte[] fileMagic = new byte[magic.length()];
+            in.readFully(fileMagic);
+            if (!magic.equals(new String(fileMagic, "US-ASCII"))) {
+                throw new IOException("Not a columnar result file: " + file);
+            }
+            String[] columns = new String[in.readInt()];
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = in.readUTF();
+            }
+
+            List<String> labels = new ArrayList<>();
+            for (int numRows = in.readInt(); numRows > 0; numRows = in.readInt()) {
+                int numNewLabels = in.readInt();
+                for (int l = 0; l < numNewLabels; l++) {
+                    labels.add(in.readUTF());
+                }
+                int[] labelIds = new int[numRows];
+                for (int r = 0; r < numRows; r++) {
+                    labelIds[r] = in.readInt();
+                    if (labelIds[r] < 0 || labelIds[r] >= labels.size()) {
+                        throw new IOException("Invalid label id " + labelIds[r] + " in " + file);
+                    }
+                }
+                double[][] values = new double[columns.length][numRows];
+                for (double[] column : values) {
+                    for (int r = 0; r < numRows; r++) {
+                        column[r] = in.readDouble();
+                    }
+                }
+
+                for (int r = 0; r < numRows; r++) {
+                    sink.incrementCounter();
+                    sink.addLabel(labels.get(labelIds[r]));
+                    for (int c = 0; c < columns.length; c++) {
+                        sink.addValue(columns[c], values[c][r]);
+                    }
+                }
+            }
+        }
+    }
+
+
+    private void writeBlock() throws IOException {
+        out.writeInt(blockRows);
+
+        out.writeInt(newLabels.size());
+        for (String label : newLabels) {
+            out.writeUTF(label);
+        }
+        newLabels.clear();
+
+        for (int r = 0; r < blockRows; r++) {
+            out.writeInt(blockLabelIds[r]);
+        }
+        for (double[] column : block) {
+            for (int r = 0; r < blockRows; r++) {
+                out.writeDouble(column[r]);
+            }
+        }
+        blockRows = 0;
+    }
+}
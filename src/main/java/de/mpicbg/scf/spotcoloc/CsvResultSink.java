@@ -0,0 +1,98 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+
+/**
+ * ResultSink which streams the rows to a CSV file (comma separated, header line, first column "Label").
+ * Values are rounded to a fixed number of decimal places like in the ImageJ results table. NaN is written as NaN.
+ */
+public class CsvResultSink extends StreamingResultSink {
+
+    private final Writer writer;
+    private final double scale;
+    private final StringBuilder line = new StringBuilder(256);
+    private int numColumns;
+
+
+    /**
+     * @param file output file, overwritten if it exists
+     * @param precision number of decimal places
+     */
+    public CsvResultSink(File file, int precision) throws IOException {
+        this(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8), precision);
+    }
+
+
+    /**
+     * @param writer destination, closed with the sink. Should be buffered.
+     * @param precision number of decimal places
+     */
+    public CsvResultSink(Writer writer, int precision) {
+        this.writer = (writer instanceof BufferedWriter) ? writer : new BufferedWriter(writer);
+        this.scale = Math.pow(10, Math.max(0, precision));
+    }
+
+
+    @Override
+    void writeHeader(List<String> columns) throws IOException {
+        numColumns = columns.size();
+        line.setLength(0);
+        line.append("Label");
+        for (String column : columns) {
+            line.append(',');
+            appendText(column);
+        }
+        writer.write(line.append('\n').toString());
+    }
+
+
+    @Override
+    void writeRow(String label, double[] values) throws IOException {
+        line.setLength(0);
+        appendText(label);
+        for (int i = 0; i < numColumns; i++) {
+            line.append(',');
+            appendNumber(values[i]);
+        }
+        writer.write(line.append('\n').toString());
+    }
+
+
+    @Override
+    void closeStream() throws IOException {
+        writer.close();
+    }
+
+
+    private void appendNumber(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            line.append(value);
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            line.append((long) value);
+        } else {
+            line.append(Math.round(value * scale) / scale);
+        }
+    }
+
+
+    /** Quotes text which contains separators or quotes. */
+    private void appendText(String text) {
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0) {
+            line.append(text);
+        } else {
+            line.append('"').append(text.replace("\"", "\"\"")).append('"');
+        }
+    }
+}
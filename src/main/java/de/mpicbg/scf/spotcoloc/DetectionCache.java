@@ -0,0 +1,237 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+
+import java.awt.*;
+import java.util.*;
+
+
+/**
+ * LRU cache of spot detection results, bounded by an estimate of the memory used by the cached spots.
+ * Used by SpotProcessor so that e.g. "Generate Preview" followed by "Full Analysis" with the same parameters
+ * runs the trackmate detection only once.
+ * Entries are keyed by image identity + pixel content fingerprint, channel, detection parameters and roi.
+ * If the pixel content of an image channel changes, all entries of this channel are dropped.
+ * The cached spot objects are owned by the cache: SpotProcessor hands out copies of them.
+ * Thread-safe: channels may be detected concurrently.
+ */
+class DetectionCache {
+
+    // rough memory estimate of one trackmate spot object incl. its feature map (bytes)
+    static final long bytesPerSpot = 800;
+
+    private long maxBytes;
+    private long usedBytes = 0;
+
+    // access-ordered: first entry is the least recently used one
+    private final LinkedHashMap<Key, QualitySortedSpots> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+
+    /**
+     * @param maxBytes memory bound for the cached spots. 0 disables caching.
+     */
+    DetectionCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        evict();
+    }
+
+
+    /**
+     * @return false if caching is disabled (memory bound 0)
+     */
+    synchronized boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+
+    /**
+     * @return the cached detection for key, or null
+     */
+    synchronized QualitySortedSpots get(Key key) {
+        removeStaleEntries(key);
+        return entries.get(key);
+    }
+
+
+    /**
+     * Adds the spots for key. Evicts the least recently used entries if the memory bound is exceeded.
+     * Results larger than the memory bound are not cached.
+     */
+    synchronized void put(Key key, QualitySortedSpots spots) {
+        removeStaleEntries(key);
+
+        long bytes = spots.size() * bytesPerSpot;
+        if (bytes > maxBytes) {
+            return;
+        }
+
+        QualitySortedSpots previous = entries.put(key, spots);
+        if (previous != null) {
+            usedBytes -= previous.size() * bytesPerSpot;
+        }
+        usedBytes += bytes;
+
+        evict();
+    }
+
+
+    synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+
+    private void evict() {
+        Iterator<Map.Entry<Key, QualitySortedSpots>> it = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            usedBytes -= it.next().getValue().size() * bytesPerSpot;
+            it.remove();
+        }
+    }
+
+
+    /**
+     * Drops all entries which belong to the same image, channel and frame as key but were computed on different
+     * pixel content (i.e. the image was modified since).
+     */
+    private void removeStaleEntries(Key key) {
+        Iterator<Map.Entry<Key, QualitySortedSpots>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, QualitySortedSpots> entry = it.next();
+            Key other = entry.getKey();
+            if (other.imageId == key.imageId && other.channel == key.channel && other.frame == key.frame &&
+                    other.imageFingerprint != key.imageFingerprint) {
+                usedBytes -= entry.getValue().size() * bytesPerSpot;
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Hash of the pixel values of one channel in one time point (all slices), plus dimensions and calibration.
+     * Requires one pass over the channel, which is cheap compared to a LoG detection.
+     * Virtual stacks are not read (would load every plane from disk): only the stack identity and size are used,
+     * so edits of a virtual stack are not noticed. SpotProcessor therefore does not cache virtual stacks.
+     */
+    static long imageFingerprint(ImagePlus imp, int channel, int frame) {
+        Calibration calib = imp.getCalibration();
+        long hash = Objects.hash(imp.getWidth(), imp.getHeight(), imp.getNChannels(), imp.getNSlices(), imp.getNFrames(),
+                calib.pixelWidth, calib.pixelHeight, calib.pixelDepth);
+
+        ImageStack stack = imp.getStack();
+        if (stack.isVirtual()) {
+            return 31 * hash + System.identityHashCode(stack);
+        }
+
+        int c = Math.min(Math.max(channel, 1), imp.getNChannels());
+        int t = Math.min(Math.max(frame, 1), imp.getNFrames());
+        for (int z = 1; z <= imp.getNSlices(); z++) {
+            Object pixels = stack.getPixels(imp.getStackIndex(c, z, t));
+            hash = 31 * hash + pixelsHash(pixels);
+        }
+        return hash;
+    }
+
+
+    private static int pixelsHash(Object pixels) {
+        if (pixels instanceof byte[]) {
+            return Arrays.hashCode((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            return Arrays.hashCode((short[]) pixels);
+        } else if (pixels instanceof float[]) {
+            return Arrays.hashCode((float[]) pixels);
+        } else if (pixels instanceof int[]) {
+            return Arrays.hashCode((int[]) pixels);
+        }
+        return System.identityHashCode(pixels);
+    }
+
+
+    /**
+     * Cache key: everything the result of SpotProcessor.detectSpots(..) depends on.
+     */
+    static final class Key {
+        final int imageId;
+        final long imageFingerprint;
+        final int channel;
+        final int frame;
+        final double radius_um;
+        final double threshold; // after radius scaling. NaN: any threshold (see SpotProcessor.setThresholdIndependentDetection)
+        final boolean doSubpixel;
+        final boolean doMedian;
+        // roi: type, bounds and polygon. all empty if no roi
+        final int roiType;
+        final int[] roiBounds;
+        final int[] roiXpoints;
+        final int[] roiYpoints;
+
+
+        Key(ImagePlus imp, long imageFingerprint, int channel, int frame, double radius_um, double threshold,
+            boolean doSubpixel, boolean doMedian) {
+            this.imageId = imp.getID();
+            this.imageFingerprint = imageFingerprint;
+            this.channel = channel;
+            this.frame = frame;
+            this.radius_um = radius_um;
+            this.threshold = threshold;
+            this.doSubpixel = doSubpixel;
+            this.doMedian = doMedian;
+
+            Roi roi = imp.getRoi();
+            if (roi != null) {
+                Rectangle bounds = roi.getBounds();
+                Polygon polygon = roi.getPolygon();
+                roiType = roi.getType();
+                roiBounds = new int[]{bounds.x, bounds.y, bounds.width, bounds.height};
+                roiXpoints = Arrays.copyOf(polygon.xpoints, polygon.npoints);
+                roiYpoints = Arrays.copyOf(polygon.ypoints, polygon.npoints);
+            } else {
+                roiType = -1;
+                roiBounds = new int[0];
+                roiXpoints = new int[0];
+                roiYpoints = new int[0];
+            }
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return imageId == key.imageId && imageFingerprint == key.imageFingerprint && channel == key.channel && frame == key.frame &&
+                    Double.compare(radius_um, key.radius_um) == 0 && Double.compare(threshold, key.threshold) == 0 &&
+                    doSubpixel == key.doSubpixel && doMedian == key.doMedian && roiType == key.roiType &&
+                    Arrays.equals(roiBounds, key.roiBounds) && Arrays.equals(roiXpoints, key.roiXpoints) &&
+                    Arrays.equals(roiYpoints, key.roiYpoints);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Objects.hash(imageId, imageFingerprint, channel, frame, radius_um, threshold, doSubpixel, doMedian, roiType);
+            result = 31 * result + Arrays.hashCode(roiBounds);
+            result = 31 * result + Arrays.hashCode(roiXpoints);
+            result = 31 * result + Arrays.hashCode(roiYpoints);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Colocalization counts of one pair of spot sets for a whole range of coloc distance factors
+ * (SpotProcessor.sweepDistanceFactors(..)), e.g. to choose the distance factor from the coloc curve.
+ * For every factor f the count is the one findSpotCorrespondences(..) gives at maxdist = f*0.5*(radiusA+radiusB),
+ * with the same matching mode.
+ * GREEDY: candidate pairs up to the largest distance are collected once (SpotGrid) and sorted per spot A by
+ * distance. Every factor then replays the greedy matching on these lists: spot A takes its first free candidate
+ * within the distance. Cost O(P log P) once plus O(P) per factor (P: number of candidate pairs) instead of a
+ * grid search per factor. OPTIMAL: OptimalMatcher runs per factor, on a grid shared by all factors.
+ */
+public class DistanceFactorSweep {
+
+    private final double[] distanceFactors;
+    private final double[] maxdists_um;
+    private final int[] numColoc;
+    private final int numSpotsA;
+    private final int numSpotsB;
+
+
+    DistanceFactorSweep(double[] distanceFactors, double[] maxdists_um, int[] numColoc, int numSpotsA, int numSpotsB) {
+        this.distanceFactors = distanceFactors;
+        this.maxdists_um = maxdists_um;
+        this.numColoc = numColoc;
+        this.numSpotsA = numSpotsA;
+        this.numSpotsB = numSpotsB;
+    }
+
+
+    public int size() {
+        return distanceFactors.length;
+    }
+
+    public double getDistanceFactor(int k) {
+        return distanceFactors[k];
+    }
+
+    /** @return coloc distance of factor k (um) */
+    public double getMaxDistance(int k) {
+        return maxdists_um[k];
+    }
+
+    /** @return number of colocalized spot pairs at factor k */
+    public int getNumColoc(int k) {
+        return numColoc[k];
+    }
+
+    public int getNumSpotsA() {
+        return numSpotsA;
+    }
+
+    public int getNumSpotsB() {
+        return numSpotsB;
+    }
+
+    /** @return fraction of spots A which are colocalized at factor k, NaN if there are no spots A */
+    public double getFractionA(int k) {
+        return (numSpotsA > 0) ? numColoc[k] / (double) numSpotsA : Double.NaN;
+    }
+
+    /** @return fraction of spots B which are colocalized at factor k, NaN if there are no spots B */
+    public double getFractionB(int k) {
+        return (numSpotsB > 0) ? numColoc[k] / (double) numSpotsB : Double.NaN;
+    }
+
+
+    /**
+     * @param maxdists_um coloc distance per factor (um)
+     * @param optimal OPTIMAL matching mode, otherwise GREEDY
+     * @param executor, numThreads for the OPTIMAL mode, see OptimalMatcher.match(..)
+     * @return number of colocalized pairs per distance
+     */
+    static int[] countColoc(SpotTable spotsA, SpotTable spotsB, double[] maxdists_um, boolean optimal,
+                            ExecutorService executor, int numThreads) {
+        final int numspotsA = spotsA.size();
+        int[] counts = new int[maxdists_um.length];
+
+        double largest = 0;
+        for (double maxdist_um : maxdists_um) {
+            largest = Math.max(largest, Math.abs(maxdist_um));
+        }
+        SpotGrid gridB = new SpotGrid(spotsB, largest).addAll();
+
+        if (optimal) {
+            for (int k = 0; k < maxdists_um.length; k++) {
+                int[] partnersOfA = OptimalMatcher.match(spotsA, spotsB, gridB, maxdists_um[k], executor, numThreads);
+                for (int partner : partnersOfA) {
+                    if (partner >= 0) {
+                        counts[k]++;
+                    }
+                }
+            }
+            return counts;
+        }
+
+        // ===== candidate pairs up to the largest distance (CSR layout), per A sorted by distance, then B id =====
+        final double largest2 = largest * largest;
+        final int[] edgeStart = new int[numspotsA + 1];
+        for (int a = 0; a < numspotsA; a++) {
+            final int[] count = {0};
+            gridB.forEachWithin(spotsA.x(a), spotsA.y(a), spotsA.z(a), largest2, null, b -> count[0]++);
+            edgeStart[a + 1] = edgeStart[a] + count[0];
+        }
+
+        final int[] edgeB = new int[edgeStart[numspotsA]];
+        final double[] edgeDist2 = new double[edgeStart[numspotsA]];
+        for (int a = 0; a < numspotsA; a++) {
+            final int[] pos = {edgeStart[a]};
+            gridB.forEachWithin(spotsA.x(a), spotsA.y(a), spotsA.z(a), largest2, null, b -> edgeB[pos[0]++] = b);
+            sortCandidates(spotsA, a, gridB, edgeB, edgeDist2, edgeStart[a], edgeStart[a + 1]);
+        }
+
+        // ===== replay the greedy matching for every distance =====
+        // same as SpotProcessor.matchSpots(..): spots A in order take the closest free B (lower id on equal distance)
+        boolean[] burnedSpotsB = new boolean[spotsB.size()];
+        for (int k = 0; k < maxdists_um.length; k++) {
+            double maxdist2 = maxdists_um[k] * maxdists_um[k];
+            Arrays.fill(burnedSpotsB, false);
+            int count = 0;
+            for (int a = 0; a < numspotsA; a++) {
+                for (int e = edgeStart[a]; e < edgeStart[a + 1] && edgeDist2[e] <= maxdist2; e++) {
+                    if (!burnedSpotsB[edgeB[e]]) {
+                        burnedSpotsB[edgeB[e]] = true;
+                        count++;
+                        break;
+                    }
+                }
+            }
+            counts[k] = count;
+        }
+        return counts;
+    }
+
+
+    /**
+     * Sorts the candidates start..end-1 of spot a by (distance, B id) and fills their squared distances.
+     * Insertion sort: the candidate lists of a spot are short.
+     */
+    private static void sortCandidates(SpotTable spotsA, int a, SpotGrid gridB, int[] edgeB, double[] edgeDist2,
+                                       int start, int end) {
+        for (int e = start; e < end; e++) {
+            edgeDist2[e] = gridB.dist2(spotsA.x(a), spotsA.y(a), spotsA.z(a), edgeB[e]);
+        }
+        for (int e = start + 1; e < end; e++) {
+            int b = edgeB[e];
+            double d2 = edgeDist2[e];
+            int pos = e - 1;
+            while (pos >= start && (edgeDist2[pos] > d2 || (edgeDist2[pos] == d2 && edgeB[pos] > b))) {
+                edgeB[pos + 1] = edgeB[pos];
+                edgeDist2[pos + 1] = edgeDist2[pos];
+                pos--;
+            }
+            edgeB[pos + 1] = b;
+            edgeDist2[pos + 1] = d2;
+        }
+    }
+}
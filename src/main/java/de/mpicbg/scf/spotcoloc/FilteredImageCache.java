@@ -0,0 +1,148 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import java.util.*;
+
+
+/**
+ * LRU cache of median filtered image regions (float pixels, see NativeLogDetector.medianFilter3x3(..)), bounded by
+ * their memory. Used by SpotProcessor so that with median filtering the channel is filtered only once per image
+ * content, channel, time point and detection region, and not again for every preview, threshold change and full
+ * analysis.
+ * If the pixel content of an image channel changes, all entries of this channel are dropped (as in DetectionCache).
+ * Cached arrays must not be modified. Thread-safe.
+ */
+class FilteredImageCache {
+
+    private long maxBytes;
+    private long usedBytes = 0;
+
+    // access-ordered: first entry is the least recently used one
+    private final LinkedHashMap<Key, float[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+
+    /**
+     * @param maxBytes memory bound for the cached pixels. 0 disables caching.
+     */
+    FilteredImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        evict();
+    }
+
+
+    /**
+     * @return false if caching is disabled (memory bound 0)
+     */
+    synchronized boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+
+    /**
+     * @return the cached pixels for key, or null
+     */
+    synchronized float[] get(Key key) {
+        removeStaleEntries(key);
+        return entries.get(key);
+    }
+
+
+    /**
+     * Adds the pixels for key. Evicts the least recently used entries if the memory bound is exceeded.
+     * Regions larger than the memory bound are not cached.
+     */
+    synchronized void put(Key key, float[] pixels) {
+        removeStaleEntries(key);
+
+        long bytes = 4L * pixels.length;
+        if (bytes > maxBytes) {
+            return;
+        }
+
+        float[] previous = entries.put(key, pixels);
+        if (previous != null) {
+            usedBytes -= 4L * previous.length;
+        }
+        usedBytes += bytes;
+
+        evict();
+    }
+
+
+    synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+
+    private void evict() {
+        Iterator<Map.Entry<Key, float[]>> it = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            usedBytes -= 4L * it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+
+    /**
+     * Drops all entries of the same image, channel and frame as key which were computed on different pixel content.
+     */
+    private void removeStaleEntries(Key key) {
+        Iterator<Map.Entry<Key, float[]>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, float[]> entry = it.next();
+            Key other = entry.getKey();
+            if (other.imageId == key.imageId && other.channel == key.channel && other.frame == key.frame &&
+                    other.imageFingerprint != key.imageFingerprint) {
+                usedBytes -= 4L * entry.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Cache key: image (id + pixel fingerprint, see DetectionCache.imageFingerprint(..)), channel, time point and
+     * pixel region {xstart, xend, ystart, yend, zstart, zend}.
+     */
+    static final class Key {
+        final int imageId;
+        final long imageFingerprint;
+        final int channel;
+        final int frame;
+        final int[] region;
+
+
+        Key(int imageId, long imageFingerprint, int channel, int frame, int[] region) {
+            this.imageId = imageId;
+            this.imageFingerprint = imageFingerprint;
+            this.channel = channel;
+            this.frame = frame;
+            this.region = region.clone();
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return imageId == key.imageId && imageFingerprint == key.imageFingerprint && channel == key.channel &&
+                    frame == key.frame && Arrays.equals(region, key.region);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hash(imageId, imageFingerprint, channel, frame) + Arrays.hashCode(region);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+/**
+ * Result of a colocalization analysis of N channels (SpotProcessor.findMultiChannelCorrespondences(..)):
+ * the spots of every channel, the pairwise colocalization of every channel pair and the higher-order coloc sets.
+ * Channels are addressed by their index 0..N-1 in the analysis (see getChannel(..) for the channel number).
+ * A coloc set of a channel subset S (|S| >= 2) is a group of one spot per channel of S in which every two spots
+ * are paired with each other (e.g. a spot triple for 3 channels).
+ */
+public class MultiColocResult {
+
+    // channel numbers (count starts at 1)
+    private final int[] channels;
+
+    // spots per channel
+    private final SpotTable[] spots;
+
+    // pairwise results, for i<j: pairs[i][j] with A=channel i, B=channel j
+    private final SpotProcessor.ColocResult[][] pairs;
+
+    // partners[i][j][k]: index in channel j of the partner of spot k of channel i, -1 if none. partners[i][i] unused
+    private final int[][][] partners;
+
+    // number of coloc sets per channel subset (bit i set: channel index i is part of the subset)
+    private final int[] setCounts;
+
+
+    MultiColocResult(int[] channels, SpotTable[] spots, SpotProcessor.ColocResult[][] pairs, int[][][] partners) {
+        this.channels = channels;
+        this.spots = spots;
+        this.pairs = pairs;
+        this.partners = partners;
+        this.setCounts = countColocSets();
+    }
+
+
+    public int getNumChannels() {
+        return channels.length;
+    }
+
+    /** @return channel number of channel index i */
+    public int getChannel(int i) {
+        return channels[i];
+    }
+
+    public SpotTable getSpots(int i) {
+        return spots[i];
+    }
+
+    /**
+     * @return colocalization result of channel indices i and j (i != j). For i > j, A and B of the result are the
+     * channels j and i.
+     */
+    public SpotProcessor.ColocResult getPair(int i, int j) {
+        return (i < j) ? pairs[i][j] : pairs[j][i];
+    }
+
+    /** @return number of colocalized spot pairs of channel indices i and j */
+    public int countColoc(int i, int j) {
+        return getPair(i, j).tableAvg_coloc.size();
+    }
+
+    /** @return index of the partner of spot k of channel index i in channel index j, -1 if not colocalized */
+    public int getPartner(int i, int j, int k) {
+        return partners[i][j][k];
+    }
+
+    /**
+     * @param mask channel subset: bit i set = channel index i included. At least 2 channels.
+     * @return number of coloc sets in which all channels of the subset take part
+     */
+    public int countColocSet(int mask) {
+        return setCounts[mask];
+    }
+
+
+    /**
+     * A coloc set is determined by its spot in the lowest channel of the subset (pairings are one-to-one): follow the
+     * partners of this spot into the other channels and check that these partners are paired with each other, too.
+     */
+    private int[] countColocSets() {
+        int numChannels = channels.length;
+        int[] counts = new int[1 << numChannels];
+        int[] members = new int[numChannels];
+
+        for (int mask = 1; mask < counts.length; mask++) {
+            if (Integer.bitCount(mask) < 2) {
+                continue;
+            }
+            int first = Integer.numberOfTrailingZeros(mask);
+
+            int count = 0;
+            for (int k = 0; k < spots[first].size(); k++) {
+                boolean isSet = true;
+                // partners of spot k in all other channels of the subset
+                for (int j = first + 1; j < numChannels && isSet; j++) {
+                    if ((mask & (1 << j)) != 0) {
+                        members[j] = partners[first][j][k];
+                        isSet = members[j] >= 0;
+                    }
+                }
+                // ..which must be pairwise partners, too
+                for (int i = first + 1; i < numChannels && isSet; i++) {
+                    if ((mask & (1 << i)) == 0) {
+                        continue;
+                    }
+                    for (int j = i + 1; j < numChannels && isSet; j++) {
+                        if ((mask & (1 << j)) != 0) {
+                            isSet = partners[i][j][members[i]] == members[j];
+                        }
+                    }
+                }
+                if (isSet) {
+                    count++;
+                }
+            }
+            counts[mask] = count;
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,540 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import fiji.plugin.trackmate.Spot;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * LoG spot detector working directly on the pixel arrays of the image (SpotProcessor.DetectorBackend.NATIVE), without
+ * a trackmate model, settings and spot collection per call. Follows the trackmate LogDetector:
+ * - optional 3x3 median filter per slice (done by the caller, see medianFilter3x3(..), so it can be cached)
+ * - convolution with the trackmate LoG kernel (sigma = radius/sqrt(dims)). The kernel is a sum of separable terms,
+ *   one per dimension: second derivative along that dimension times gaussians along the others. So instead of an
+ *   FFT, the convolution is done as 1D passes over the image lines, which are distributed over the threads.
+ * - local maxima (3x3(x3) neighborhood, not at the region border) with a value above the threshold
+ * - optional subpixel localization by a quadratic fit (as imglib2 SubpixelLocalization). Quality: fitted peak value
+ * - spots outside an area roi are dropped
+ * The image is mirrored at the region border, where trackmate's FFT convolution fades out instead, so spots within
+ * a kernel width of the border can differ slightly. Spots are returned in raster order (z, y, x).
+ */
+class NativeLogDetector {
+
+    private final ExecutorService executor;
+    private final int numThreads;
+
+    // subpixel localization: max. number of moves of the integer peak position
+    private static final int maxNumMoves = 10;
+
+    // reports the completed blocks of each pass, see setProgress(..)
+    private Progress progress = Progress.NONE;
+
+
+    /**
+     * @param executor runs the parallel parts. null: everything in the calling thread
+     * @param numThreads number of parallel tasks
+     */
+    NativeLogDetector(ExecutorService executor, int numThreads) {
+        this.executor = executor;
+        this.numThreads = (executor == null) ? 1 : Math.max(1, numThreads);
+    }
+
+
+    /**
+     * @param progress progress of detect(..)/findPeaks(..) (all LoG passes and the peak search) or of
+     *                 medianFilter3x3(..), whichever is called
+     * @return this
+     */
+    NativeLogDetector setProgress(Progress progress) {
+        this.progress = progress;
+        return this;
+    }
+
+
+    /**
+     * Copies a region of one channel and time point of imp to a float array (x fastest, then y, then z).
+     * @param region pixel region {xstart, xend, ystart, yend, zstart, zend} (inclusive)
+     */
+    static float[] readRegion(ImagePlus imp, int channel, int frame, int[] region) {
+        int nx = region[1] - region[0] + 1;
+        int ny = region[3] - region[2] + 1;
+        int nz = region[5] - region[4] + 1;
+
+        float[] data = new float[nx * ny * nz];
+        ImageStack stack = imp.getStack();
+        for (int z = 0; z < nz; z++) {
+            ImageProcessor ip = stack.getProcessor(imp.getStackIndex(channel, region[4] + z + 1, frame));
+            int offset = z * nx * ny;
+            for (int y = 0; y < ny; y++) {
+                for (int x = 0; x < nx; x++) {
+                    data[offset + y * nx + x] = ip.getf(region[0] + x, region[2] + y);
+                }
+            }
+        }
+        return data;
+    }
+
+
+    /**
+     * Detects spots in one time point of imp.
+     * @param region pixel region {xstart, xend, ystart, yend, zstart, zend} (inclusive)
+     * @param data pixels of the region (see readRegion(..)), optionally median filtered (see medianFilter3x3(..)).
+     *             Not modified.
+     * @param threshold quality threshold, already scaled with the radius (see SpotProcessor.detectSpots(..))
+     * @return spots with position (um), radius, quality and frame feature (0-based as in trackmate)
+     */
+    List<Spot> detect(ImagePlus imp, int frame, int[] region, float[] data, double radius_um, double threshold,
+                      boolean doSubpixel) {
+        Calibration calib = imp.getCalibration();
+        boolean is3D = imp.getNSlices() > 1;
+        int[] dims = {region[1] - region[0] + 1, region[3] - region[2] + 1, region[5] - region[4] + 1};
+
+        double[] calibration = {calib.pixelWidth, calib.pixelHeight, calib.pixelDepth};
+        List<double[]> peaks = findPeaks(data, dims, is3D, calibration, radius_um, threshold, doSubpixel);
+
+        // to spots (um), restricted to the roi
+        Roi roi = imp.getRoi();
+        boolean useRoi = roi != null && roi.isArea();
+        List<Spot> spots = new ArrayList<>(peaks.size());
+        for (double[] peak : peaks) {
+            double x = (region[0] + peak[0]) * calibration[0];
+            double y = (region[2] + peak[1]) * calibration[1];
+            double z = is3D ? (region[4] + peak[2]) * calibration[2] : 0;
+            if (useRoi && !roi.contains((int) Math.round(x / calibration[0]), (int) Math.round(y / calibration[1]))) {
+                continue;
+            }
+            Spot spot = new Spot(x, y, z, radius_um, peak[3]);
+            spot.putFeature(Spot.FRAME, (double) (frame - 1));
+            spots.add(spot);
+        }
+        return spots;
+    }
+
+
+    /**
+     * Half size (px) of the LoG kernel along one dimension, as in trackmate DetectionUtils.createLoGKernel(..).
+     * The LoG response of a voxel depends on all voxels within this distance.
+     * @param sigmaPixels LoG sigma (radius / sqrt(number of dimensions)) in pixels of this dimension
+     */
+    static int kernelHalfSize(double sigmaPixels) {
+        return 1 + Math.max(2, (int) (3 * sigmaPixels + 0.5) + 1);
+    }
+
+
+    /**
+     * LoG peaks of an image given as float array.
+     * @param data pixels, x fastest, then y, then z. Not modified.
+     * @param dims {nx, ny, nz}
+     * @param is3D false: 2D image (nz = 1)
+     * @param calibration pixel size {x, y, z} (um)
+     * @return peaks {x, y, z (px, subpixel), quality}, in raster order
+     */
+    List<double[]> findPeaks(float[] data, int[] dims, boolean is3D, double[] calibration, double radius_um,
+                             double threshold, boolean doSubpixel) {
+        int nDims = is3D ? 3 : 2;
+
+        // == LoG kernel (trackmate DetectionUtils.createLoGKernel), split into 1D factors ==
+        double sigma = radius_um / Math.sqrt(nDims);
+        double[] sigmaPixels = new double[nDims];
+        for (int d = 0; d < nDims; d++) {
+            sigmaPixels[d] = sigma / calibration[d];
+        }
+        double C = 1d / Math.PI / sigmaPixels[0] / sigmaPixels[0];
+
+        float[][] gauss = new float[nDims][];
+        float[][] secondDerivative = new float[nDims][];
+        for (int d = 0; d < nDims; d++) {
+            int halfSize = kernelHalfSize(sigmaPixels[d]);
+            gauss[d] = new float[2 * halfSize + 1];
+            secondDerivative[d] = new float[2 * halfSize + 1];
+            for (int k = -halfSize; k <= halfSize; k++) {
+                double x2 = k * k / sigmaPixels[d] / sigmaPixels[d];
+                double g = Math.exp(-x2 / 2);
+                gauss[d][k + halfSize] = (float) g;
+                secondDerivative[d][k + halfSize] = (float) (-C * (x2 - 1) * g);
+            }
+        }
+
+        // passes over the image, for the progress: nDims^2 1D convolutions + peak search
+        final double passShare = 1.0 / (nDims * nDims + 1);
+
+        // == convolution: sum over d of (second derivative along d, gaussian along the others) ==
+        float[] log = new float[data.length];
+        float[] bufferA = new float[data.length];
+        float[] bufferB = new float[data.length];
+        for (int term = 0; term < nDims; term++) {
+            float[] in = data;
+            float[] out = bufferA;
+            for (int d = 0; d < nDims; d++) {
+                convolve1D(in, out, dims, d, (d == term) ? secondDerivative[d] : gauss[d], progress.part(passShare));
+                in = out;
+                out = (out == bufferA) ? bufferB : bufferA;
+            }
+            for (int i = 0; i < log.length; i++) {
+                log[i] += in[i];
+            }
+        }
+
+        // == local maxima + subpixel localization, in parallel over slices (3D) or rows (2D) ==
+        final int numBlocks = is3D ? dims[2] : dims[1];
+        List<List<double[]>> peaksPerBlock = parallelBlocks(numBlocks, progress.part(passShare), block -> {
+            List<double[]> blockPeaks = new ArrayList<>();
+            findMaxima(log, dims, is3D, block, threshold, doSubpixel, blockPeaks);
+            return blockPeaks;
+        });
+
+        List<double[]> peaks = new ArrayList<>();
+        for (List<double[]> blockPeaks : peaksPerBlock) {
+            peaks.addAll(blockPeaks);
+        }
+        return peaks;
+    }
+
+
+    /**
+     * Local maxima above threshold in one slice (3D) or row (2D), border pixels excluded.
+     */
+    private static void findMaxima(float[] log, int[] dims, boolean is3D, int block, double threshold,
+                                   boolean doSubpixel, List<double[]> peaks) {
+        int nx = dims[0];
+        int ny = dims[1];
+        int nz = dims[2];
+        int z0, z1, y0, y1;
+        if (is3D) {
+            if (block < 1 || block > nz - 2) {
+                return;
+            }
+            z0 = z1 = block;
+            y0 = 1;
+            y1 = ny - 2;
+        } else {
+            if (block < 1 || block > ny - 2) {
+                return;
+            }
+            z0 = z1 = 0;
+            y0 = y1 = block;
+        }
+        int dzMax = is3D ? 1 : 0;
+
+        for (int z = z0; z <= z1; z++) {
+            for (int y = y0; y <= y1; y++) {
+                for (int x = 1; x < nx - 1; x++) {
+                    int idx = (z * ny + y) * nx + x;
+                    float center = log[idx];
+                    if (center <= threshold) {
+                        continue;
+                    }
+                    boolean isMax = true;
+                    for (int dz = -dzMax; dz <= dzMax && isMax; dz++) {
+                        for (int dy = -1; dy <= 1 && isMax; dy++) {
+                            for (int dx = -1; dx <= 1; dx++) {
+                                if (log[idx + (dz * ny + dy) * nx + dx] > center) {
+                                    isMax = false;
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                    if (isMax) {
+                        peaks.add(doSubpixel ? refinePeak(log, dims, is3D, x, y, z) : new double[]{x, y, z, center});
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Subpixel localization of a peak by fitting a quadratic function to the 3x3(x3) neighborhood (Newton step),
+     * moving the integer position if the fitted maximum is more than half a pixel away. Peaks which don't converge
+     * keep their integer position and value.
+     * @return {x, y, z, value}
+     */
+    private static double[] refinePeak(float[] log, int[] dims, boolean is3D, int x, int y, int z) {
+        int nDims = is3D ? 3 : 2;
+        int[] stride = {1, dims[0], dims[0] * dims[1]};
+        int[] p = {x, y, z};
+
+        for (int move = 0; move <= maxNumMoves; move++) {
+            int idx = p[0] + p[1] * stride[1] + p[2] * stride[2];
+            double value = log[idx];
+
+            // gradient + hessian by central differences
+            double[] g = new double[nDims];
+            double[][] H = new double[nDims][nDims];
+            for (int d = 0; d < nDims; d++) {
+                double plus = log[idx + stride[d]];
+                double minus = log[idx - stride[d]];
+                g[d] = 0.5 * (plus - minus);
+                H[d][d] = plus - 2 * value + minus;
+                for (int e = d + 1; e < nDims; e++) {
+                    H[d][e] = H[e][d] = 0.25 * (log[idx + stride[d] + stride[e]] - log[idx + stride[d] - stride[e]]
+                            - log[idx - stride[d] + stride[e]] + log[idx - stride[d] - stride[e]]);
+                }
+            }
+
+            double[] offset = solve(H, g);
+            if (offset == null) {
+                break;
+            }
+
+            // converged, or move towards the maximum
+            boolean stable = true;
+            boolean canMove = true;
+            int[] next = p.clone();
+            for (int d = 0; d < nDims; d++) {
+                if (Math.abs(offset[d]) > 0.5) {
+                    stable = false;
+                    next[d] += (int) Math.signum(offset[d]);
+                    canMove = canMove && next[d] >= 1 && next[d] <= dims[d] - 2;
+                }
+            }
+            if (stable) {
+                double fitted = value;
+                for (int d = 0; d < nDims; d++) {
+                    fitted += 0.5 * g[d] * offset[d];
+                }
+                return new double[]{p[0] + offset[0], p[1] + offset[1], is3D ? p[2] + offset[2] : 0, fitted};
+            }
+            if (!canMove) {
+                break;
+            }
+            p = next;
+        }
+
+        // not converged: integer peak
+        return new double[]{x, y, z, log[x + y * stride[1] + z * stride[2]]};
+    }
+
+
+    /**
+     * @return solution of H * offset = -g (Gaussian elimination with partial pivoting), null if H is singular
+     */
+    private static double[] solve(double[][] H, double[] g) {
+        int n = g.length;
+        double[][] A = new double[n][n + 1];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(H[i], 0, A[i], 0, n);
+            A[i][n] = -g[i];
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++) {
+                if (Math.abs(A[row][col]) > Math.abs(A[pivot][col])) {
+                    pivot = row;
+                }
+            }
+            if (Math.abs(A[pivot][col]) < 1e-12) {
+                return null;
+            }
+            double[] tmp = A[col];
+            A[col] = A[pivot];
+            A[pivot] = tmp;
+            for (int row = col + 1; row < n; row++) {
+                double factor = A[row][col] / A[col][col];
+                for (int k = col; k <= n; k++) {
+                    A[row][k] -= factor * A[col][k];
+                }
+            }
+        }
+        double[] result = new double[n];
+        for (int row = n - 1; row >= 0; row--) {
+            double sum = A[row][n];
+            for (int k = row + 1; k < n; k++) {
+                sum -= A[row][k] * result[k];
+            }
+            result[row] = sum / A[row][row];
+        }
+        return result;
+    }
+
+
+    /**
+     * Convolves all lines along dimension d with a symmetric kernel (odd length), mirroring at the borders.
+     * Lines are distributed over the threads.
+     */
+    private void convolve1D(float[] in, float[] out, int[] dims, int d, float[] kernel, Progress pass) {
+        final int n = dims[d];
+        final int stride = (d == 0) ? 1 : (d == 1) ? dims[0] : dims[0] * dims[1];
+        final int half = kernel.length / 2;
+        final int numLines = in.length / n;
+
+        // mirrored index for every kernel position that falls outside the line
+        final int[] mirror = new int[n + 2 * half];
+        for (int i = -half; i < n + half; i++) {
+            mirror[i + half] = mirrorIndex(i, n);
+        }
+
+        int linesPerBlock = Math.max(1, (numLines + 4 * numThreads - 1) / (4 * numThreads));
+        int numBlocks = (numLines + linesPerBlock - 1) / linesPerBlock;
+        parallelBlocks(numBlocks, pass, block -> {
+            double[] line = new double[n + 2 * half];
+            int lineEnd = Math.min(numLines, (block + 1) * linesPerBlock);
+            for (int l = block * linesPerBlock; l < lineEnd; l++) {
+                int start = lineStart(l, dims, d);
+                for (int i = 0; i < n + 2 * half; i++) {
+                    line[i] = in[start + mirror[i] * stride];
+                }
+                for (int i = 0; i < n; i++) {
+                    double sum = kernel[half] * line[i + half];
+                    for (int k = 1; k <= half; k++) {
+                        sum += kernel[half + k] * (line[i + half - k] + line[i + half + k]);
+                    }
+                    out[start + i * stride] = (float) sum;
+                }
+            }
+            return null;
+        });
+    }
+
+
+    /**
+     * @return index of the first pixel of line l along dimension d
+     */
+    private static int lineStart(int l, int[] dims, int d) {
+        if (d == 0) {
+            return l * dims[0];
+        }
+        if (d == 1) {
+            int z = l / dims[0];
+            int x = l % dims[0];
+            return z * dims[0] * dims[1] + x;
+        }
+        return l; // d == 2: l = y * nx + x
+    }
+
+
+    /**
+     * Mirror without repeating the border pixel: -1 -> 1, n -> n-2.
+     */
+    private static int mirrorIndex(int i, int n) {
+        if (n == 1) {
+            return 0;
+        }
+        int period = 2 * (n - 1);
+        i = Math.abs(i) % period;
+        return (i < n) ? i : period - i;
+    }
+
+
+    /**
+     * 3x3 median filter of every slice (as the median filtering of the trackmate detector), in place. At the border
+     * the available neighbors are used. Rows are distributed over the threads.
+     * @param dims {nx, ny, nz}
+     */
+    void medianFilter3x3(float[] data, int[] dims) {
+        final int nx = dims[0];
+        final int ny = dims[1];
+        final float[] input = data.clone();
+
+        int numRows = ny * dims[2];
+        int rowsPerBlock = Math.max(1, (numRows + 4 * numThreads - 1) / (4 * numThreads));
+        int numBlocks = (numRows + rowsPerBlock - 1) / rowsPerBlock;
+        parallelBlocks(numBlocks, progress, block -> {
+            float[] values = new float[9];
+            int rowEnd = Math.min(numRows, (block + 1) * rowsPerBlock);
+            for (int row = block * rowsPerBlock; row < rowEnd; row++) {
+                int offset = (row / ny) * nx * ny;
+                int y = row % ny;
+                for (int x = 0; x < nx; x++) {
+                    int count = 0;
+                    for (int yy = Math.max(0, y - 1); yy <= Math.min(ny - 1, y + 1); yy++) {
+                        for (int xx = Math.max(0, x - 1); xx <= Math.min(nx - 1, x + 1); xx++) {
+                            values[count++] = input[offset + yy * nx + xx];
+                        }
+                    }
+                    Arrays.sort(values, 0, count);
+                    data[offset + y * nx + x] = (count % 2 == 1) ? values[count / 2] :
+                            0.5f * (values[count / 2 - 1] + values[count / 2]);
+                }
+            }
+            return null;
+        });
+    }
+
+
+    private interface BlockTask<R> {
+        R process(int block);
+    }
+
+
+    /**
+     * Runs task for blocks 0..numBlocks-1, in parallel if possible. The calling thread takes part and the workers
+     * pull blocks from a shared counter, so this also completes if the executor is busy (e.g. when called from a
+     * task of the same executor): workers which haven't started when all blocks are taken are cancelled.
+     * If the calling thread is interrupted (e.g. a superseded preview), the remaining blocks are skipped.
+     * @param pass progress of this pass, advanced per finished block
+     * @return results in block order
+     */
+    @SuppressWarnings("unchecked")
+    private <R> List<R> parallelBlocks(int numBlocks, Progress pass, BlockTask<R> task) {
+        final Object[] results = new Object[numBlocks];
+        final AtomicInteger nextBlock = new AtomicInteger();
+        final CountDownLatch blocksDone = new CountDownLatch(numBlocks);
+        final AtomicReference<RuntimeException> error = new AtomicReference<>();
+        Runnable worker = () -> {
+            for (int block = nextBlock.getAndIncrement(); block < numBlocks; block = nextBlock.getAndIncrement()) {
+                try {
+                    if (Thread.currentThread().isInterrupted()) {
+                        error.compareAndSet(null, new CancellationException("Spot detection was interrupted."));
+                    }
+                    if (error.get() == null) {
+                        results[block] = task.process(block);
+                    }
+                } catch (RuntimeException e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    pass.worked(1.0 / numBlocks);
+                    blocksDone.countDown();
+                }
+            }
+        };
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 1; t < Math.min(numThreads, numBlocks); t++) {
+            futures.add(executor.submit(worker));
+        }
+        worker.run();
+        for (Future<?> future : futures) {
+            future.cancel(false);
+        }
+
+        // blocks taken by other workers
+        try {
+            blocksDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Spot detection was interrupted.", e);
+        }
+        if (error.get() instanceof CancellationException) {
+            throw new IllegalStateException(error.get().getMessage(), error.get());
+        }
+        if (error.get() != null) {
+            throw new IllegalStateException("Spot detection failed: " + error.get(), error.get());
+        }
+
+        List<R> resultList = new ArrayList<>(numBlocks);
+        for (Object result : results) {
+            resultList.add((R) result);
+        }
+        return resultList;
+    }
+}
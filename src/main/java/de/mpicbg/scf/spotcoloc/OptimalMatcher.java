@@ -0,0 +1,405 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Globally optimal pairing of spots A and B (SpotProcessor.MatchingMode.OPTIMAL): among all pairings where paired
+ * spots are at most maxdist_um apart, finds one with the maximal number of pairs and, among those, the minimal sum
+ * of pair distances.
+ * Only spot pairs within maxdist_um are candidates (found with a SpotGrid). The candidate graph falls apart into
+ * connected components which are independent of each other. Each component is solved exactly with successive
+ * shortest augmenting paths on its candidate pairs (see solveComponent(..)), several components in parallel.
+ * Memory is linear in the number of spots and candidate pairs, also for large components of dense images. Each
+ * augmenting path search only explores the neighborhood of its spot, so runtime stays close to linear for
+ * typical spot densities.
+ */
+class OptimalMatcher {
+
+    private OptimalMatcher() {
+    }
+
+
+    /**
+     * @param gridB SpotGrid over all spots of spotsB with a cell size >= maxdist_um. null: created here
+     * @param executor runs the components in parallel. null: everything in the calling thread
+     * @param numThreads number of parallel tasks
+     * @return partner id in spotsB for every spot in spotsA, -1 if not paired
+     */
+    static int[] match(SpotTable spotsA, SpotTable spotsB, SpotGrid gridB, double maxdist_um, ExecutorService executor,
+                       int numThreads) {
+        final int numspotsA = spotsA.size();
+        final int numspotsB = spotsB.size();
+        final double maxdist2 = maxdist_um * maxdist_um;
+
+        int[] partnersOfA = new int[numspotsA];
+        Arrays.fill(partnersOfA, -1);
+
+        // ===== sparse candidate graph: for every A the B spots within maxdist_um (CSR layout, B ascending) =====
+        if (gridB == null) {
+            gridB = new SpotGrid(spotsB, Math.abs(maxdist_um)).addAll();
+        }
+
+        final int[] edgeStart = new int[numspotsA + 1];
+        for (int a = 0; a < numspotsA; a++) {
+            final int[] count = {0};
+            gridB.forEachWithin(spotsA.x(a), spotsA.y(a), spotsA.z(a), maxdist2, null, b -> count[0]++);
+            edgeStart[a + 1] = edgeStart[a] + count[0];
+        }
+
+        final int[] edgeB = new int[edgeStart[numspotsA]];
+        final double[] edgeDist = new double[edgeStart[numspotsA]];
+        for (int a = 0; a < numspotsA; a++) {
+            final int[] pos = {edgeStart[a]};
+            gridB.forEachWithin(spotsA.x(a), spotsA.y(a), spotsA.z(a), maxdist2, null, b -> edgeB[pos[0]++] = b);
+            Arrays.sort(edgeB, edgeStart[a], edgeStart[a + 1]);
+            for (int e = edgeStart[a]; e < edgeStart[a + 1]; e++) {
+                edgeDist[e] = Math.sqrt(gridB.dist2(spotsA.x(a), spotsA.y(a), spotsA.z(a), edgeB[e]));
+            }
+        }
+
+        // ===== connected components (union-find over A: 0..NA-1, B: NA..NA+NB-1) =====
+        int[] parent = new int[numspotsA + numspotsB];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        for (int a = 0; a < numspotsA; a++) {
+            for (int e = edgeStart[a]; e < edgeStart[a + 1]; e++) {
+                union(parent, a, numspotsA + edgeB[e]);
+            }
+        }
+
+        // group the A and B spots of components with at least one edge. members in ascending order
+        int[] componentOfRoot = new int[parent.length];
+        Arrays.fill(componentOfRoot, -1);
+        List<IntArrayBuilder> componentsA = new ArrayList<>();
+        List<IntArrayBuilder> componentsB = new ArrayList<>();
+        for (int node = 0; node < parent.length; node++) {
+            int root = find(parent, node);
+            // spots without candidate partner are never paired. (a B spot with a candidate always has an A root,
+            // since A spots have the lower indices)
+            boolean isolated = (node < numspotsA) ? edgeStart[node + 1] == edgeStart[node] : root == node;
+            if (isolated) {
+                continue;
+            }
+            if (componentOfRoot[root] < 0) {
+                componentOfRoot[root] = componentsA.size();
+                componentsA.add(new IntArrayBuilder());
+                componentsB.add(new IntArrayBuilder());
+            }
+            int c = componentOfRoot[root];
+            if (node < numspotsA) {
+                componentsA.get(c).add(node);
+            } else {
+                componentsB.get(c).add(node - numspotsA);
+            }
+        }
+
+        // local index of every B spot within its component (each B belongs to at most one component)
+        final int[] localIdxB = new int[numspotsB];
+        for (IntArrayBuilder members : componentsB) {
+            for (int k = 0; k < members.size; k++) {
+                localIdxB[members.values[k]] = k;
+            }
+        }
+
+        // ===== solve components =====
+        final int numComponents = componentsA.size();
+        final int numTasks = (executor == null) ? 1 : Math.max(1, Math.min(numThreads, numComponents));
+        if (numTasks == 1) {
+            for (int c = 0; c < numComponents; c++) {
+                checkInterrupted();
+                solveComponent(componentsA.get(c), componentsB.get(c), edgeStart, edgeB, edgeDist, localIdxB,
+                        maxdist_um, partnersOfA);
+            }
+            return partnersOfA;
+        }
+
+        // components are distributed round-robin. each writes only the entries of its own A spots
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < numTasks; t++) {
+            final int task = t;
+            futures.add(executor.submit(() -> {
+                for (int c = task; c < numComponents; c += numTasks) {
+                    checkInterrupted();
+                    solveComponent(componentsA.get(c), componentsB.get(c), edgeStart, edgeB, edgeDist, localIdxB,
+                            maxdist_um, partnersOfA);
+                }
+            }));
+        }
+        // a partial result must not look like a complete one: failures are propagated
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<?> f : futures) { f.cancel(true); }
+                throw new IllegalStateException("Spot matching was interrupted.", e);
+            } catch (ExecutionException e) {
+                for (Future<?> f : futures) { f.cancel(true); }
+                throw new IllegalStateException("Spot matching failed: " + e.getCause(), e.getCause());
+            }
+        }
+        return partnersOfA;
+    }
+
+
+    /**
+     * Optimal assignment within one component, on its candidate edges only (successive shortest augmenting paths,
+     * as in the Jonker-Volgenant algorithm, with Dijkstra on reduced costs).
+     * Every spot A has a private "unpaired" column with cost 0. A candidate pair costs (dist - M), with
+     * M > n*maxdist_um: every additional pair lowers the cost more than any change of distances can raise it, so the
+     * number of pairs is maximized first and the total distance minimized second.
+     * The spots A are added one after the other; each search stops at the first free column, so it only explores the
+     * neighborhood of the new spot. Memory is linear in the number of spots and candidate pairs.
+     */
+    private static void solveComponent(IntArrayBuilder membersA, IntArrayBuilder membersB, int[] edgeStart,
+                                       int[] edgeB, double[] edgeDist, int[] localIdxB, double maxdist_um,
+                                       int[] partnersOfA) {
+        final int nA = membersA.size;
+        final int nB = membersB.size;
+
+        // trivial component: one candidate pair
+        if (nA == 1 && nB == 1) {
+            partnersOfA[membersA.values[0]] = membersB.values[0];
+            return;
+        }
+
+        // columns: spots B (0..nB-1), then the unpaired column of every A (nB+i)
+        final int nCols = nB + nA;
+        final double bonus = (Math.min(nA, nB) + 1) * Math.abs(maxdist_um) + 1;
+
+        // dual variables: reduced cost of edge (i,k) is cost - u[i] - v[k] >= 0, = 0 for assigned edges
+        double[] u = new double[nA];
+        double[] v = new double[nCols];
+        int[] colOfRow = new int[nA];
+        int[] rowOfCol = new int[nCols];
+        double[] costOfRow = new double[nA]; // cost of the assigned edge
+        Arrays.fill(rowOfCol, -1);
+
+        // search state. entries are valid if stamp[k] == search
+        double[] dist = new double[nCols];
+        int[] predRow = new int[nCols];
+        double[] predCost = new double[nCols];
+        int[] stamp = new int[nCols];
+        boolean[] settled = new boolean[nCols];
+        IntArrayBuilder settledCols = new IntArrayBuilder();
+        ColumnHeap heap = new ColumnHeap();
+
+        for (int s = 0; s < nA; s++) {
+            final int search = s + 1;
+            heap.clear();
+            settledCols.size = 0;
+
+            // start: columns of row s, with u[s] = 0
+            relaxRow(s, 0, membersA, edgeStart, edgeB, edgeDist, localIdxB, nB, bonus, u, v, search, dist, predRow,
+                    predCost, stamp, settled, heap, true);
+
+            // Dijkstra until the first free column
+            int endCol = -1;
+            double pathDist = 0;
+            while (heap.size > 0) {
+                int j = heap.pollColumn();
+                double d = heap.polledKey;
+                if (settled[j] || d > dist[j]) {
+                    continue; // stale heap entry
+                }
+                settled[j] = true;
+                settledCols.add(j);
+                if (rowOfCol[j] < 0) {
+                    endCol = j;
+                    pathDist = d;
+                    break;
+                }
+                relaxRow(rowOfCol[j], d, membersA, edgeStart, edgeB, edgeDist, localIdxB, nB, bonus, u, v, search,
+                        dist, predRow, predCost, stamp, settled, heap, false);
+            }
+            // (the unpaired column of s is always free, so a path is always found)
+
+            // update the duals of the settled columns and their rows: keeps reduced costs >= 0
+            for (int k = 0; k < settledCols.size; k++) {
+                int j = settledCols.values[k];
+                settled[j] = false;
+                if (j != endCol) {
+                    double delta = pathDist - dist[j];
+                    v[j] -= delta;
+                    u[rowOfCol[j]] += delta;
+                }
+            }
+
+            // augment along the path
+            int j = endCol;
+            while (true) {
+                int i = predRow[j];
+                int previousCol = (i == s) ? -1 : colOfRow[i];
+                colOfRow[i] = j;
+                rowOfCol[j] = i;
+                costOfRow[i] = predCost[j];
+                if (i == s) {
+                    break;
+                }
+                j = previousCol;
+            }
+            u[s] = costOfRow[s] - v[colOfRow[s]];
+        }
+
+        for (int i = 0; i < nA; i++) {
+            if (colOfRow[i] < nB) {
+                partnersOfA[membersA.values[i]] = membersB.values[colOfRow[i]];
+            }
+        }
+    }
+
+
+    /**
+     * Dijkstra step of solveComponent(..): relaxes all columns of row i (its candidate spots B and its unpaired
+     * column), reached at distance d.
+     * @param start row i is the new row of the search: distances are cost - v (u[i] = 0), not reduced costs
+     */
+    private static void relaxRow(int i, double d, IntArrayBuilder membersA, int[] edgeStart, int[] edgeB,
+                                 double[] edgeDist, int[] localIdxB, int nB, double bonus, double[] u, double[] v,
+                                 int search, double[] dist, int[] predRow, double[] predCost, int[] stamp,
+                                 boolean[] settled, ColumnHeap heap, boolean start) {
+        int a = membersA.values[i];
+        double ui = start ? 0 : u[i];
+        for (int e = edgeStart[a]; e <= edgeStart[a + 1]; e++) {
+            // last iteration: the unpaired column of row i
+            int k = (e < edgeStart[a + 1]) ? localIdxB[edgeB[e]] : nB + i;
+            double cost = (e < edgeStart[a + 1]) ? edgeDist[e] - bonus : 0;
+            if (stamp[k] == search && settled[k]) {
+                continue;
+            }
+            double reduced = cost - ui - v[k];
+            double nd = start ? reduced : d + Math.max(0, reduced); // rounding may give tiny negative values
+            if (stamp[k] != search || nd < dist[k]) {
+                stamp[k] = search;
+                dist[k] = nd;
+                predRow[k] = i;
+                predCost[k] = cost;
+                heap.add(nd, k);
+            }
+        }
+    }
+
+
+    /**
+     * Binary min-heap of (distance, column) entries for the Dijkstra search. Outdated entries are skipped by the
+     * caller. Equal distances: lower column first (deterministic result).
+     */
+    private static class ColumnHeap {
+        double[] keys = new double[16];
+        int[] cols = new int[16];
+        int size = 0;
+        double polledKey;
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(double key, int col) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * size);
+                cols = Arrays.copyOf(cols, 2 * size);
+            }
+            int pos = size++;
+            while (pos > 0) {
+                int parent = (pos - 1) / 2;
+                if (!less(key, col, keys[parent], cols[parent])) {
+                    break;
+                }
+                keys[pos] = keys[parent];
+                cols[pos] = cols[parent];
+                pos = parent;
+            }
+            keys[pos] = key;
+            cols[pos] = col;
+        }
+
+        /** Removes the smallest entry. Its key is stored in polledKey. */
+        int pollColumn() {
+            polledKey = keys[0];
+            int result = cols[0];
+            double key = keys[--size];
+            int col = cols[size];
+            int pos = 0;
+            while (true) {
+                int child = 2 * pos + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && less(keys[child + 1], cols[child + 1], keys[child], cols[child])) {
+                    child++;
+                }
+                if (!less(keys[child], cols[child], key, col)) {
+                    break;
+                }
+                keys[pos] = keys[child];
+                cols[pos] = cols[child];
+                pos = child;
+            }
+            keys[pos] = key;
+            cols[pos] = col;
+            return result;
+        }
+
+        private static boolean less(double key1, int col1, double key2, int col2) {
+            return key1 < key2 || (key1 == key2 && col1 < col2);
+        }
+    }
+
+
+    private static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new IllegalStateException("Spot matching was interrupted.");
+        }
+    }
+
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]]; // path halving
+            i = parent[i];
+        }
+        return i;
+    }
+
+
+    private static void union(int[] parent, int i, int j) {
+        int ri = find(parent, i);
+        int rj = find(parent, j);
+        if (ri != rj) {
+            // lower index becomes root: deterministic
+            if (ri < rj) {
+                parent[rj] = ri;
+            } else {
+                parent[ri] = rj;
+            }
+        }
+    }
+
+
+    /**
+     * Minimal growable int array for the component members.
+     */
+    private static class IntArrayBuilder {
+        int[] values = new int[2];
+        int size = 0;
+
+        void add(int v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            values[size++] = v;
+        }
+    }
+}
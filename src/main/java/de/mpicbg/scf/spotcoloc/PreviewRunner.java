@@ -0,0 +1,156 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Overlay;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.DoubleConsumer;
+
+
+/**
+ * Runs the spot previews of the interactive plugins on a background thread, so that the dialog stays responsive.
+ * Every submit(..) supersedes the previous preview: it is cancelled (its thread interrupted, see
+ * SpotProcessor.createDetectionPreviewMultiChannel(..)) and its overlay is never drawn. A preview starts only after
+ * a short debounce delay, so that quickly repeated clicks run just the last one.
+ * cancelAndWait() also waits for the cancelled preview to return, so that a full analysis does not run concurrently
+ * with it. Only the newest preview's overlay is set on the image. Status and duration are shown in the ImageJ status bar,
+ * the progress of the newest preview (per channel, tile and detection pass) in the ImageJ progress bar.
+ */
+class PreviewRunner {
+
+    /**
+     * Computes the overlay of one preview. Should return early if the thread is interrupted.
+     */
+    interface PreviewTask {
+        /**
+         * @param progress receives the completed fraction (0..1), also from worker threads
+         */
+        Overlay compute(DoubleConsumer progress);
+    }
+
+    // waiting time before a preview starts (ms)
+    private static final long debounceMillis = 150;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SpotColocalizer-preview");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // id of the newest preview. a preview may only draw while it is the newest one
+    private long generation = 0;
+    private Future<?> current = null;
+
+
+    /**
+     * Starts a preview for imp, cancelling the running one.
+     */
+    synchronized void submit(final ImagePlus imp, final PreviewTask task) {
+        final long gen = ++generation;
+        if (current != null) {
+            current.cancel(true);
+        }
+        current = executor.submit(() -> run(imp, task, gen));
+    }
+
+
+    /**
+     * Cancels the running preview (e.g. before a full analysis). Its overlay is not drawn.
+     */
+    synchronized void cancel() {
+        generation++;
+        if (current != null && current.cancel(true)) {
+            IJ.showStatus("Spot preview cancelled.");
+            IJ.showProgress(1.0);
+        }
+        current = null;
+    }
+
+
+    /**
+     * Cancels the running preview and waits until its thread has left it, e.g. before a full analysis which uses
+     * the same SpotProcessor. Must not be called from the preview thread.
+     */
+    void cancelAndWait() {
+        Future<?> barrier;
+        synchronized (this) {
+            cancel();
+            // the executor is single-threaded: this no-op runs only after the cancelled preview returned
+            barrier = executor.submit(() -> { });
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                barrier.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true; // the analysis must not start while the preview is still running
+            } catch (ExecutionException e) {
+                break; // cannot happen for the no-op
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private synchronized boolean isNewest(long gen) {
+        return gen == generation;
+    }
+
+
+    private void run(ImagePlus imp, PreviewTask task, long gen) {
+        try {
+            Thread.sleep(debounceMillis);
+        } catch (InterruptedException e) {
+            return; // superseded while waiting
+        }
+        if (!isNewest(gen)) {
+            return;
+        }
+
+        IJ.showStatus("Spot preview running...");
+        long start = System.nanoTime();
+        // a superseded preview must not move the progress bar of the newest one
+        DoubleConsumer progress = fraction -> {
+            synchronized (this) {
+                if (gen == generation) {
+                    IJ.showProgress(fraction);
+                }
+            }
+        };
+        Overlay ov;
+        try {
+            ov = task.compute(progress);
+        } catch (RuntimeException e) {
+            // a superseded or cancelled preview ends with an interrupted detection: not an error
+            if (isNewest(gen) && !Thread.currentThread().isInterrupted()) {
+                IJ.log("Spot preview failed: " + e);
+                IJ.showProgress(1.0);
+            }
+            IJ.showStatus("");
+            return;
+        }
+
+        // draw only if no newer preview was requested meanwhile. checked + drawn atomically w.r.t. submit/cancel
+        synchronized (this) {
+            if (gen != generation || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            imp.setOverlay(ov);
+            IJ.showProgress(1.0);
+        }
+        IJ.showStatus(String.format(Locale.US, "Spot preview done (%.1f s).", (System.nanoTime() - start) * 1e-9));
+    }
+}
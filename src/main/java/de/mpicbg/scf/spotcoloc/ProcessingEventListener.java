@@ -0,0 +1,46 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+/**
+ * Receives an event for every spot detection, correspondence search and results export of a SpotProcessor, e.g. to
+ * emit Java Flight Recorder events (JfrProcessingEventListener, built on JDK 11+).
+ * Implementations are found with java.util.ServiceLoader (META-INF/services), the first one found is used.
+ * Each event is started with begin*() directly before the stage and finished with the matching end*() call, which
+ * gets the object returned by begin*(). Calls come from several threads; implementations must be thread safe and
+ * cheap when not recording.
+ */
+public interface ProcessingEventListener {
+
+    Object beginDetection();
+
+    /**
+     * @param image image title
+     * @param frame time point, count starts at 1
+     * @param threshold quality threshold as given by the user (before radius scaling)
+     * @param cached whether the detection was answered from the detection cache
+     * @param numSpots number of detected spots
+     */
+    void endDetection(Object event, String image, int channel, int frame, double radius_um, double threshold,
+                      boolean cached, int numSpots);
+
+    Object beginCorrespondence();
+
+    /**
+     * @param matchingMode see SpotProcessor.MatchingMode
+     * @param numMatches number of colocalized pairs
+     */
+    void endCorrespondence(Object event, String image, int numSpotsA, int numSpotsB, int numMatches,
+                           double maxdist_um, String matchingMode);
+
+    Object beginExport();
+
+    /**
+     * @param sink type of the results sink, e.g. CsvResultSink
+     * @param numRows number of rows written
+     */
+    void endExport(Object event, String image, String sink, long numRows);
+}
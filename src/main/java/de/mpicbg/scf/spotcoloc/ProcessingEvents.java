@@ -0,0 +1,70 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import java.util.ServiceLoader;
+
+
+/**
+ * Holds the ProcessingEventListener used by all SpotProcessors: the first one found via ServiceLoader, or a
+ * listener which does nothing. If the listener can't be loaded (e.g. the JFR listener on Java 8), events are ignored.
+ */
+final class ProcessingEvents {
+
+    static final ProcessingEventListener listener = load();
+
+
+    private ProcessingEvents() {
+    }
+
+
+    private static ProcessingEventListener load() {
+        try {
+            for (ProcessingEventListener candidate : ServiceLoader.load(ProcessingEventListener.class,
+                    ProcessingEvents.class.getClassLoader())) {
+                return candidate;
+            }
+        } catch (Throwable e) { // ServiceConfigurationError, UnsupportedClassVersionError, NoClassDefFoundError
+            // no usable listener on this JVM
+        }
+        return new NoListener();
+    }
+
+
+    /**
+     * Default: ignores all events.
+     */
+    private static class NoListener implements ProcessingEventListener {
+        @Override
+        public Object beginDetection() {
+            return null;
+        }
+
+        @Override
+        public void endDetection(Object event, String image, int channel, int frame, double radius_um,
+                                 double threshold, boolean cached, int numSpots) {
+        }
+
+        @Override
+        public Object beginCorrespondence() {
+            return null;
+        }
+
+        @Override
+        public void endCorrespondence(Object event, String image, int numSpotsA, int numSpotsB, int numMatches,
+                                      double maxdist_um, String matchingMode) {
+        }
+
+        @Override
+        public Object beginExport() {
+            return null;
+        }
+
+        @Override
+        public void endExport(Object event, String image, String sink, long numRows) {
+        }
+    }
+}
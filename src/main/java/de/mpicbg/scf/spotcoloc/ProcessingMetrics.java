@@ -0,0 +1,241 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import ij.IJ;
+import ij.measure.ResultsTable;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+
+/**
+ * Per-stage timing and counters of a SpotProcessor (see SpotProcessor.getMetrics()): for every processing stage the
+ * number of calls, wall time, number of spots processed and bytes allocated. Values are summed over all calls, and
+ * one instance can be shared by several SpotProcessors (SpotProcessor.setMetrics(..)) to aggregate a whole batch.
+ * Thread safe.
+ * Allocation is measured for the calling thread only (where supported by the JVM, otherwise -1): stages which run
+ * on worker threads, like the trackmate detection with several threads, report a lower bound.
+ * Jython example: print(spotProcessor.getMetrics())
+ */
+public class ProcessingMetrics {
+
+    public enum Stage {
+        MEDIAN("median filter"),
+        DETECTION("detection (LoG)"),
+        INITIAL_FILTERING("initial spot filtering"),
+        FEATURES("spot features"),
+        DEDUP("duplicate removal"),
+        MATCHING("coloc matching"),
+        TABLES("results tables"),
+        OVERLAY("overlay"),
+        ROI_MANAGER("roi manager");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final int numStages = Stage.values().length;
+    private final long[] calls = new long[numStages];
+    private final long[] nanos = new long[numStages];
+    private final long[] maxNanos = new long[numStages];
+    private final long[] spots = new long[numStages];
+    private final long[] allocatedBytes = new long[numStages];
+
+    // per-thread allocation counter of hotspot JVMs. null if not available
+    private static final com.sun.management.ThreadMXBean threadBean = initThreadBean();
+
+
+    /**
+     * Starts timing a stage. Call stop(..) on the result when the stage is done (same thread).
+     */
+    public Measurement start(Stage stage) {
+        return new Measurement(stage);
+    }
+
+
+    /**
+     * Adds one call of a stage.
+     * @param allocated bytes allocated during the call, <0 if unknown
+     */
+    public synchronized void add(Stage stage, long durationNanos, long numSpots, long allocated) {
+        int s = stage.ordinal();
+        calls[s]++;
+        nanos[s] += durationNanos;
+        maxNanos[s] = Math.max(maxNanos[s], durationNanos);
+        spots[s] += numSpots;
+        if (allocated >= 0 && allocatedBytes[s] >= 0) {
+            allocatedBytes[s] += allocated;
+        } else {
+            allocatedBytes[s] = -1;
+        }
+    }
+
+
+    /**
+     * Adds all counters of other to this (e.g. to aggregate the metrics of several images).
+     */
+    public void addAll(ProcessingMetrics other) {
+        for (Stage stage : Stage.values()) {
+            int s = stage.ordinal();
+            long otherCalls, otherNanos, otherMax, otherSpots, otherBytes;
+            synchronized (other) {
+                otherCalls = other.calls[s];
+                otherNanos = other.nanos[s];
+                otherMax = other.maxNanos[s];
+                otherSpots = other.spots[s];
+                otherBytes = other.allocatedBytes[s];
+            }
+            synchronized (this) {
+                calls[s] += otherCalls;
+                nanos[s] += otherNanos;
+                maxNanos[s] = Math.max(maxNanos[s], otherMax);
+                spots[s] += otherSpots;
+                allocatedBytes[s] = (otherBytes >= 0 && allocatedBytes[s] >= 0) ? allocatedBytes[s] + otherBytes : -1;
+            }
+        }
+    }
+
+
+    public synchronized void reset() {
+        for (int s = 0; s < numStages; s++) {
+            calls[s] = 0;
+            nanos[s] = 0;
+            maxNanos[s] = 0;
+            spots[s] = 0;
+            allocatedBytes[s] = 0;
+        }
+    }
+
+
+    public synchronized long getCalls(Stage stage) {
+        return calls[stage.ordinal()];
+    }
+
+    /** @return total wall time of all calls (ns) */
+    public synchronized long getNanos(Stage stage) {
+        return nanos[stage.ordinal()];
+    }
+
+    /** @return wall time of the longest call (ns) */
+    public synchronized long getMaxNanos(Stage stage) {
+        return maxNanos[stage.ordinal()];
+    }
+
+    /** @return number of spots processed, e.g. detected or written to a table */
+    public synchronized long getSpots(Stage stage) {
+        return spots[stage.ordinal()];
+    }
+
+    /** @return bytes allocated by the calling threads, -1 if not measurable */
+    public synchronized long getAllocatedBytes(Stage stage) {
+        return allocatedBytes[stage.ordinal()];
+    }
+
+
+    /**
+     * @return one row per stage that was called at least once
+     */
+    public synchronized ResultsTable toResultsTable() {
+        ResultsTable rt = new ResultsTable();
+        for (Stage stage : Stage.values()) {
+            int s = stage.ordinal();
+            if (calls[s] == 0) {
+                continue;
+            }
+            rt.incrementCounter();
+            rt.addLabel(stage.getLabel());
+            rt.addValue("calls", calls[s]);
+            rt.addValue("total time (ms)", nanos[s] * 1e-6);
+            rt.addValue("max time (ms)", maxNanos[s] * 1e-6);
+            rt.addValue("spots", spots[s]);
+            rt.addValue("spots/s", (nanos[s] > 0) ? spots[s] / (nanos[s] * 1e-9) : Double.NaN);
+            rt.addValue("allocated (MB)", (allocatedBytes[s] >= 0) ? allocatedBytes[s] / (1024.0 * 1024.0) : Double.NaN);
+        }
+        return rt;
+    }
+
+
+    /**
+     * Writes the table of toString() to the log window.
+     */
+    public void log() {
+        for (String line : toString().split("\n")) {
+            IJ.log(line);
+        }
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder(String.format(Locale.US, "%-24s %8s %12s %12s %10s %14s%n",
+                "stage", "calls", "total (ms)", "max (ms)", "spots", "alloc (MB)"));
+        for (Stage stage : Stage.values()) {
+            int s = stage.ordinal();
+            if (calls[s] == 0) {
+                continue;
+            }
+            text.append(String.format(Locale.US, "%-24s %8d %12.1f %12.1f %10d %14s%n", stage.getLabel(), calls[s],
+                    nanos[s] * 1e-6, maxNanos[s] * 1e-6, spots[s],
+                    (allocatedBytes[s] >= 0) ? String.format(Locale.US, "%.1f", allocatedBytes[s] / (1024.0 * 1024.0)) : "n/a"));
+        }
+        return text.toString();
+    }
+
+
+    private static com.sun.management.ThreadMXBean initThreadBean() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean hotspotBean = (com.sun.management.ThreadMXBean) bean;
+                if (hotspotBean.isThreadAllocatedMemorySupported() && hotspotBean.isThreadAllocatedMemoryEnabled()) {
+                    return hotspotBean;
+                }
+            }
+        } catch (LinkageError e) {
+            // not a hotspot JVM
+        }
+        return null;
+    }
+
+
+    private static long allocatedBytesOfThread() {
+        return (threadBean != null) ? threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+
+    /**
+     * A running stage, see start(..).
+     */
+    public class Measurement {
+        private final Stage stage;
+        private final long startNanos;
+        private final long startBytes;
+
+        private Measurement(Stage stage) {
+            this.stage = stage;
+            this.startBytes = allocatedBytesOfThread();
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * Ends the stage and adds it to the metrics.
+         * @param numSpots number of spots the stage produced or processed
+         */
+        public void stop(long numSpots) {
+            long duration = System.nanoTime() - startNanos;
+            long allocated = (startBytes >= 0) ? allocatedBytesOfThread() - startBytes : -1;
+            add(stage, duration, numSpots, allocated);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import java.util.function.DoubleConsumer;
+
+
+/**
+ * Progress of one processing call (e.g. a preview), reported as completed fraction 0..1 to a listener such as
+ * IJ.showProgress. Nested steps get a share of the range of their parent (see part(..)): e.g. each channel of a
+ * detection, each tile of a channel, each LoG pass of a tile. Steps report completed work into their own range
+ * (see worked(..)), also concurrently from several threads. The listener is called when the total advanced by at
+ * least one percent.
+ */
+class Progress {
+
+    /** ignores all updates */
+    static final Progress NONE = new Progress(null, 0);
+
+    private final Root root;
+    // share of the total range covered by this progress
+    private final double weight;
+
+
+    private Progress(Root root, double weight) {
+        this.root = root;
+        this.weight = weight;
+    }
+
+
+    /**
+     * @param listener receives the completed fraction. null: progress is not reported
+     */
+    static Progress of(DoubleConsumer listener) {
+        return (listener == null) ? NONE : new Progress(new Root(listener), 1.0);
+    }
+
+
+    /**
+     * @param share fraction of this progress' range covered by the part
+     * @return progress of a step of this one
+     */
+    Progress part(double share) {
+        return (root == null) ? NONE : new Progress(root, weight * share);
+    }
+
+
+    /**
+     * Reports completed work of this step.
+     * @param fraction fraction of this progress' range which was completed since the last call
+     */
+    void worked(double fraction) {
+        if (root != null) {
+            root.add(weight * fraction);
+        }
+    }
+
+
+    private static class Root {
+        private final DoubleConsumer listener;
+        private double completed = 0;
+        private double reported = 0;
+
+        Root(DoubleConsumer listener) {
+            this.listener = listener;
+        }
+
+        void add(double fraction) {
+            double report;
+            synchronized (this) {
+                completed = Math.min(1.0, completed + fraction);
+                if (completed - reported < 0.01 && !(completed == 1.0 && reported < 1.0)) {
+                    return;
+                }
+                reported = completed;
+                report = completed;
+            }
+            listener.accept(report);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import fiji.plugin.trackmate.Spot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * The spots of one detection run, additionally indexed by quality. Since the quality threshold of the LoG detector
+ * is only a cut on Spot.QUALITY, a detection at a low (floor) threshold contains the result for every higher
+ * threshold: aboveThreshold(..) answers it with a binary search plus a slice instead of a new detection.
+ */
+class QualitySortedSpots {
+
+    // threshold (scaled with radius) used for the detection. all spots of a higher threshold are contained
+    final double floorThreshold;
+
+    // spots in detection order
+    private final Spot[] spots;
+
+    // qualities in ascending order, and the detection order index of each
+    private final double[] sortedQualities;
+    private final int[] sortedToDetectionIdx;
+
+
+    /**
+     * @param spots detected spots, in detection order
+     * @param floorThreshold threshold (scaled with radius) which was used for the detection
+     */
+    QualitySortedSpots(List<Spot> spots, double floorThreshold) {
+        this.floorThreshold = floorThreshold;
+        this.spots = spots.toArray(new Spot[0]);
+
+        int numspots = this.spots.length;
+
+        // sort detection indices by quality (equal qualities stay in detection order)
+        final double[] qualities = new double[numspots];
+        for (int i = 0; i < numspots; i++) {
+            Double quality = this.spots[i].getFeature(Spot.QUALITY);
+            qualities[i] = (quality == null) ? Double.NEGATIVE_INFINITY : quality;
+        }
+        sortedToDetectionIdx = sortIndicesByKey(qualities);
+
+        sortedQualities = new double[numspots];
+        for (int k = 0; k < numspots; k++) {
+            sortedQualities[k] = qualities[sortedToDetectionIdx[k]];
+        }
+    }
+
+
+    /**
+     * Stable sort of the indices 0..n-1 by ascending key (Double.compare order) on primitive arrays: bottom-up merge
+     * sort, no boxed indices.
+     * @return indices in sorted order
+     */
+    static int[] sortIndicesByKey(double[] keys) {
+        int n = keys.length;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        int[] buffer = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    // <=: the left run wins ties, which keeps the sort stable
+                    buffer[k++] = (Double.compare(keys[order[i]], keys[order[j]]) <= 0) ? order[i++] : order[j++];
+                }
+                while (i < mid) {
+                    buffer[k++] = order[i++];
+                }
+                while (j < hi) {
+                    buffer[k++] = order[j++];
+                }
+            }
+            int[] swap = order;
+            order = buffer;
+            buffer = swap;
+        }
+        return order;
+    }
+
+
+    int size() {
+        return spots.length;
+    }
+
+
+    /**
+     * @return whether the result for threshold can be computed from this detection
+     */
+    boolean contains(double threshold) {
+        return threshold >= floorThreshold;
+    }
+
+
+    /**
+     * Spots with quality above threshold, like a detection run with this threshold would return them.
+     * @param threshold quality threshold (scaled with radius), >= floorThreshold
+     * @return new list of spots, in detection order
+     */
+    List<Spot> aboveThreshold(double threshold) {
+        // the detection itself already applied its threshold. Don't cut again (subpixel localization may have
+        // moved the quality of some spots slightly below it)
+        if (threshold <= floorThreshold) {
+            return new ArrayList<>(Arrays.asList(spots));
+        }
+
+        // first index with quality > threshold (the detector keeps spots strictly above the threshold)
+        int lo = 0;
+        int hi = sortedQualities.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sortedQualities[mid] > threshold) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+
+        // restore detection order
+        int[] selected = Arrays.copyOfRange(sortedToDetectionIdx, lo, sortedToDetectionIdx.length);
+        Arrays.sort(selected);
+
+        List<Spot> result = new ArrayList<>(selected.length);
+        for (int idx : selected) {
+            result.add(spots[idx]);
+        }
+        return result;
+    }
+}
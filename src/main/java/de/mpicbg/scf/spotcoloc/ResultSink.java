@@ -0,0 +1,41 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+/**
+ * Destination for result rows (spots, summary counts), with the same row-wise calls as an ImageJ ResultsTable:
+ * incrementCounter() starts a new row, addLabel(..) / addValue(..) fill it.
+ * Implementations: ResultsTableSink (ImageJ results table window), CsvResultSink and ColumnarResultSink
+ * (streamed to disk, for large batches).
+ * Sinks are not thread-safe. Rows of concurrent producers must be synchronized on the sink.
+ */
+public interface ResultSink extends Closeable {
+
+    /** Starts a new row. */
+    void incrementCounter();
+
+    /** Sets the label (image title) of the current row. */
+    void addLabel(String label);
+
+    /** Sets the value of column in the current row. */
+    void addValue(String column, double value);
+
+    /**
+     * Whether the columns are fixed by the first row (streamed sinks), so that every row must use the same columns.
+     * Optional columns (e.g. the frame of time-lapse images) are then always written.
+     */
+    default boolean hasFixedColumns() {
+        return false;
+    }
+
+    /** Writes the remaining rows (resp. shows the table) and releases the sink. */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,56 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import ij.measure.ResultsTable;
+
+
+/**
+ * ResultSink which fills an ImageJ ResultsTable. The table is shown when the sink is closed.
+ */
+public class ResultsTableSink implements ResultSink {
+
+    private final ResultsTable rt;
+    private final String title;
+
+
+    /**
+     * @param rt table to append to
+     * @param title window title. null: the table is not shown on close
+     */
+    public ResultsTableSink(ResultsTable rt, String title) {
+        this.rt = rt;
+        this.title = title;
+    }
+
+
+    public ResultsTable getResultsTable() {
+        return rt;
+    }
+
+
+    @Override
+    public void incrementCounter() {
+        rt.incrementCounter();
+    }
+
+    @Override
+    public void addLabel(String label) {
+        rt.addLabel(label);
+    }
+
+    @Override
+    public void addValue(String column, double value) {
+        rt.addValue(column, value);
+    }
+
+    @Override
+    public void close() {
+        if (title != null) {
+            rt.show(title);
+        }
+    }
+}
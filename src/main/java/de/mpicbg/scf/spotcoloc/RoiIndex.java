@@ -0,0 +1,119 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import ij.gui.Roi;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+
+/**
+ * Point-in-roi lookup for many rois (e.g. one per cell from the roi manager), used by
+ * SpotProcessor.runFullColocalizationAnalysisPerRoi(..) to assign spots to rois.
+ * The union bounding box of the rois is divided into square cells; every cell lists the rois whose bounding box
+ * overlaps it. A query tests only the rois of its cell, first by bounding box, then with Roi.contains(..).
+ * Rois may overlap: a point can lie in several rois.
+ * Not thread-safe (Roi.contains(..) may cache the roi mask).
+ */
+class RoiIndex {
+
+    private final Roi[] rois;
+    private final Rectangle[] bounds;
+    private final Rectangle union;
+
+    private final int cellSize;
+    private final int numCellsX;
+    private final int numCellsY;
+
+    // rois of cell c: cellRois[cellStart[c]] .. cellRois[cellStart[c+1]-1] (CSR layout)
+    private final int[] cellStart;
+    private final int[] cellRois;
+
+
+    /**
+     * @param rois area rois, in pixel coordinates of the image
+     */
+    RoiIndex(Roi[] rois) {
+        this.rois = rois;
+        this.bounds = new Rectangle[rois.length];
+        Rectangle unionBounds = null;
+        for (int r = 0; r < rois.length; r++) {
+            bounds[r] = rois[r].getBounds();
+            unionBounds = (unionBounds == null) ? new Rectangle(bounds[r]) : unionBounds.union(bounds[r]);
+        }
+        this.union = (unionBounds != null) ? unionBounds : new Rectangle();
+
+        // about one roi per cell on average
+        cellSize = (int) Math.max(16, Math.sqrt((double) union.width * union.height / Math.max(1, rois.length)));
+        numCellsX = Math.max(1, (union.width + cellSize - 1) / cellSize);
+        numCellsY = Math.max(1, (union.height + cellSize - 1) / cellSize);
+        int numCells = numCellsX * numCellsY;
+
+        // count, then fill
+        cellStart = new int[numCells + 1];
+        for (int r = 0; r < rois.length; r++) {
+            forEachCell(bounds[r], c -> cellStart[c + 1]++);
+        }
+        for (int c = 0; c < numCells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellRois = new int[cellStart[numCells]];
+        int[] fill = Arrays.copyOf(cellStart, numCells);
+        for (int r = 0; r < rois.length; r++) {
+            final int roiId = r;
+            forEachCell(bounds[r], c -> cellRois[fill[c]++] = roiId);
+        }
+    }
+
+
+    /**
+     * @return union of the bounding boxes of all rois (px)
+     */
+    Rectangle getUnionBounds() {
+        return new Rectangle(union);
+    }
+
+
+    int size() {
+        return rois.length;
+    }
+
+
+    /**
+     * Calls consumer with the id of every roi (index in the constructor array) that contains pixel (x,y),
+     * in ascending order.
+     */
+    void forEachContaining(int x, int y, IntConsumer consumer) {
+        if (!union.contains(x, y)) {
+            return;
+        }
+        int c = ((y - union.y) / cellSize) * numCellsX + (x - union.x) / cellSize;
+        for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+            int r = cellRois[k];
+            if (bounds[r].contains(x, y) && rois[r].contains(x, y)) {
+                consumer.accept(r);
+            }
+        }
+    }
+
+
+    private void forEachCell(Rectangle rect, IntConsumer consumer) {
+        if (rect.width <= 0 || rect.height <= 0) {
+            return;
+        }
+        int cx0 = (rect.x - union.x) / cellSize;
+        int cy0 = (rect.y - union.y) / cellSize;
+        int cx1 = Math.min(numCellsX - 1, (rect.x + rect.width - 1 - union.x) / cellSize);
+        int cy1 = Math.min(numCellsY - 1, (rect.y + rect.height - 1 - union.y) / cellSize);
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                consumer.accept(cy * numCellsX + cx);
+            }
+        }
+    }
+}
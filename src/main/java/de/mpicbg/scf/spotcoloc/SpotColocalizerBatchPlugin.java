@@ -7,6 +7,7 @@ package de.mpicbg.scf.spotcoloc;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -51,6 +52,9 @@ public class SpotColocalizerBatchPlugin implements Command {
     @Parameter(label = "Coloc distance factor (default: 1)", description = "Spots are considered colocalized if their centers are closer than distance_factor*0.5*(radiusA+radiusB). factor=1: centers of spot pair are closer than their average radius.")
     private double distanceFactorColoc = 1.0;
 
+    @Parameter(label = "Coloc matching", choices = {"greedy", "optimal"}, description = "greedy: spots A in list order take the closest free spot B (fast). optimal: maximal number of pairs with minimal total distance.")
+    private String colocMatching = "greedy";
+
     // general
     @Parameter(label = "clear results tables")
     private boolean clearTable = false;
@@ -58,6 +62,9 @@ public class SpotColocalizerBatchPlugin implements Command {
     @Parameter(label="add spots to Roi Manager")
     private boolean addToRoiManager=false;
 
+    @Parameter(label = "analyze each Roi of the Roi Manager", description = "One summary row per Roi Manager roi (e.g. per cell). Spots are detected only once for all rois. Spots are not added to the Roi Manager.")
+    private boolean perRoi = false;
+
 
     // -- private fields --
     final private boolean doSubpixel = true;
@@ -87,15 +94,24 @@ public class SpotColocalizerBatchPlugin implements Command {
 
         // initialization
         spotProcessor = new SpotProcessor(imp);
+        spotProcessor.setMatchingMode(SpotProcessor.MatchingMode.valueOf(colocMatching.toUpperCase()));
         imp.setOverlay(null);
 
         // do spot detection + colocalization. displays results table
-        if (checkParameters()) {
+        if (!checkParameters()) {
+            IJ.log("Issue with provided parameters. Not running plugin.");
+        } else if (perRoi) {
+            RoiManager rm = RoiManager.getInstance();
+            if (rm == null || rm.getCount() == 0) {
+                IJ.error("Spot Colocalizer", "Roi Manager is empty.");
+                return;
+            }
+            spotProcessor.runFullColocalizationAnalysisPerRoi(rm.getRoisAsArray(), channelA, radiusA_um, thresholdA,
+                    channelB, radiusB_um, thresholdB, distanceFactorColoc, doSubpixel, doMedian, clearTable);
+        } else {
             spotProcessor.runFullColocalizationAnalysis(channelA, radiusA_um, thresholdA,
                     channelB, radiusB_um, thresholdB, distanceFactorColoc,
                     doSubpixel, doMedian, clearTable, addToRoiManager);
-        } else {
-            IJ.log("Issue with provided parameters. Not running plugin.");
         }
     }
 
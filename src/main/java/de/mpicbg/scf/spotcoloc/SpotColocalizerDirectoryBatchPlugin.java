@@ -0,0 +1,280 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Headless batch version of SpotColocalizerBatchPlugin: runs the colocalization analysis on all images of a directory
+ * and streams the results straight to disk (one spots table per image + one summary table for all images), as CSV
+ * or in the binary columnar format of ColumnarResultSink.
+ * No image windows, overlays, results table windows or roi manager are used, so it also runs without a display.
+ * Images are processed in parallel on a worker pool. Images are opened only when a worker picks them up and
+ * the number of queued images is bounded, so memory use depends on the number of workers, not on the number of files.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Spot Colocalization > Macro Recordable > SpotColocalizer (Directory)")
+public class SpotColocalizerDirectoryBatchPlugin implements Command {
+
+    // -- Dialog Parameters --
+    // input + output
+    @Parameter(label = "input directory", style = "directory")
+    private File inputDirectory;
+
+    @Parameter(label = "file pattern", description = "Glob pattern for the image file names, e.g. *.tif")
+    private String filePattern = "*.tif";
+
+    @Parameter(label = "output directory", style = "directory")
+    private File outputDirectory;
+
+    // channel A
+    @Parameter(label = "channel A: channel number")
+    private int channelA = 2;
+
+    @Parameter(label = "channel A: radius (um)")
+    private double radiusA_um = 1.0;
+
+    @Parameter(label = "channel A: quality threshold")
+    private double thresholdA = 100.0;
+
+    //channel B
+    @Parameter(label = "channel B: channel number")
+    private int channelB = 3;
+
+    @Parameter(label = "channel B: radius (um)")
+    private double radiusB_um = 1.0;
+
+    @Parameter(label = "channel B: quality threshold")
+    private double thresholdB = 100.0;
+
+    // both channels
+    @Parameter(label = "median filtering", description = "Filtering a large image slows down processing.")
+    private boolean doMedian = false;
+
+    @Parameter(label = "detector", choices = {"trackmate", "native"}, description = "trackmate: TrackMate LoG detector. native: same LoG filter without TrackMate overhead (faster, spots may differ slightly at the image border).")
+    private String detectorBackend = "trackmate";
+
+    @Parameter(label = "Coloc distance factor (default: 1)", description = "Spots are considered colocalized if their centers are closer than distance_factor*0.5*(radiusA+radiusB). factor=1: centers of spot pair are closer than their average radius.")
+    private double distanceFactorColoc = 1.0;
+
+    @Parameter(label = "Coloc matching", choices = {"greedy", "optimal"}, description = "greedy: spots A in list order take the closest free spot B (fast). optimal: maximal number of pairs with minimal total distance.")
+    private String colocMatching = "greedy";
+
+    // general
+    @Parameter(label = "write spot tables", description = "Off: only the summary table is written. Faster, since spot features (intensity, estimated radius) are not computed.")
+    private boolean writeSpotTables = true;
+
+    @Parameter(label = "output format", choices = {formatCsv, formatColumnar})
+    private String outputFormat = formatCsv;
+
+    @Parameter(label = "parallel images (0: automatic)", description = "Number of images processed at the same time. Each image needs memory, reduce for large images.")
+    private int numWorkers = 0;
+
+
+    // -- private fields --
+    final private boolean doSubpixel = true;
+
+    final static String formatCsv = "CSV";
+    final static String formatColumnar = "binary (columnar)";
+
+    final static String summaryFileName = "Summary_Colocalization";
+    final static String spotsFileSuffix = "_Spots_Colocalization";
+
+    // summary of all images. rows are added by the workers
+    private ResultSink summarySink;
+
+    // per-stage timing of all images
+    private final ProcessingMetrics metrics = new ProcessingMetrics();
+
+
+
+    @Override
+    public void run() {
+        if (!checkParameters()) {
+            IJ.log("Issue with provided parameters. Not running plugin.");
+            return;
+        }
+
+        List<File> files = listInputFiles();
+        if (files.isEmpty()) {
+            IJ.log("No files matching " + filePattern + " in " + inputDirectory);
+            return;
+        }
+
+        int numCores = Runtime.getRuntime().availableProcessors();
+        int workers = (numWorkers > 0) ? numWorkers : Math.max(1, numCores / 2);
+        workers = Math.min(workers, files.size());
+        int numThreadsPerImage = Math.max(1, numCores / workers);
+        IJ.log("Spot Colocalizer: processing " + files.size() + " images, " + workers + " in parallel.");
+
+        File summaryFile = new File(outputDirectory, summaryFileName + fileExtension());
+        try {
+            summarySink = createSink(summaryFile);
+        } catch (IOException e) {
+            IJ.log("Could not write " + summaryFile + ": " + e.getMessage());
+            return;
+        }
+
+        // bounded queue: if all workers are busy and the queue is full, the submitting thread processes the image
+        // itself, which throttles the submission
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workers), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        final AtomicInteger numDone = new AtomicInteger(0);
+        final AtomicInteger numFailed = new AtomicInteger(0);
+        final int numFiles = files.size();
+        for (final File file : files) {
+            pool.execute(() -> {
+                if (!processFile(file, numThreadsPerImage)) {
+                    numFailed.incrementAndGet();
+                }
+                IJ.showProgress(numDone.incrementAndGet(), numFiles);
+            });
+        }
+
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            IJ.log("Spot Colocalizer: batch processing was interrupted.");
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (summarySink) {
+            try {
+                summarySink.close();
+            } catch (IOException e) {
+                IJ.log("Could not write " + summaryFile + ": " + e.getMessage());
+            }
+        }
+        IJ.log("Spot Colocalizer: done. Processed " + (numDone.get() - numFailed.get()) + " of " + numFiles +
+                " images. Results in " + outputDirectory);
+        IJ.log("Processing time per stage (all images, summed over parallel workers):");
+        metrics.log();
+    }
+
+
+    /**
+     * Opens one image, runs the colocalization analysis on all its time points and streams the spots to its own file.
+     * Adds the counts to the summary sink.
+     * @return whether the image was processed
+     */
+    private boolean processFile(File file, int numThreads) {
+        ImagePlus imp = IJ.openImage(file.getPath());
+        if (imp == null) {
+            IJ.log("Could not open " + file.getName() + ". Skipping.");
+            return false;
+        }
+
+        File spotsFile = new File(outputDirectory, baseName(file) + spotsFileSuffix + fileExtension());
+        try {
+            if (channelA > imp.getNChannels() || channelB > imp.getNChannels()) {
+                IJ.log(file.getName() + " has only " + imp.getNChannels() + " channels. Skipping.");
+                return false;
+            }
+
+            SpotProcessor spotProcessor = new SpotProcessor(imp);
+            spotProcessor.setNumThreads(numThreads);
+            spotProcessor.setDetectionCacheSize(0); // every image is seen only once
+            spotProcessor.setFilteredImageCacheSize(0);
+            spotProcessor.setMatchingMode(SpotProcessor.MatchingMode.valueOf(colocMatching.toUpperCase()));
+            spotProcessor.setDetectorBackend(SpotProcessor.DetectorBackend.valueOf(detectorBackend.toUpperCase()));
+            spotProcessor.setMetrics(metrics);
+
+            if (!writeSpotTables) {
+                // without spots sink no spot features are computed
+                spotProcessor.writeColocalization(channelA, radiusA_um, thresholdA, channelB, radiusB_um,
+                        thresholdB, distanceFactorColoc, doSubpixel, doMedian, null, summarySink);
+                return true;
+            }
+            try (ResultSink spotsSink = createSink(spotsFile)) {
+                spotProcessor.writeColocalization(channelA, radiusA_um, thresholdA, channelB, radiusB_um,
+                        thresholdB, distanceFactorColoc, doSubpixel, doMedian, spotsSink, summarySink);
+            }
+            return true;
+        } catch (IOException | UncheckedIOException e) {
+            IJ.log("Could not write " + spotsFile + ": " + e.getMessage());
+            return false;
+        } catch (RuntimeException e) {
+            IJ.log("Processing " + file.getName() + " failed: " + e);
+            return false;
+        } finally {
+            imp.flush();
+        }
+    }
+
+
+    /**
+     * @return files in inputDirectory whose name matches filePattern, sorted by name
+     */
+    private List<File> listInputFiles() {
+        List<File> files = new ArrayList<>();
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + filePattern);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(inputDirectory.toPath())) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path) && matcher.matches(path.getFileName())) {
+                    files.add(path.toFile());
+                }
+            }
+        } catch (IOException e) {
+            IJ.log("Could not list " + inputDirectory + ": " + e.getMessage());
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+
+    private ResultSink createSink(File file) throws IOException {
+        if (formatColumnar.equals(outputFormat)) {
+            return new ColumnarResultSink(file);
+        }
+        return new CsvResultSink(file, 4);
+    }
+
+
+    private String fileExtension() {
+        return formatColumnar.equals(outputFormat) ? ".spotcol" : ".csv";
+    }
+
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0) ? name.substring(0, dot) : name;
+    }
+
+
+    /**
+     * Checks that inputs are not NaN, that neither channel nor radius is zero and that the directories exist.
+     * Channel numbers are checked per image.
+     * @return whether checks were passed
+     */
+    private boolean checkParameters() {
+        boolean noNaNs = !(Double.isNaN(radiusA_um) || Double.isNaN(thresholdA) ||
+                Double.isNaN(radiusB_um) || Double.isNaN(thresholdB) || Double.isNaN(distanceFactorColoc));
+        boolean noZeros = !(channelA<=0 || radiusA_um==0 || channelB<=0 || radiusB_um==0 );
+        boolean dirsOk = inputDirectory != null && inputDirectory.isDirectory() && outputDirectory != null &&
+                (outputDirectory.isDirectory() || outputDirectory.mkdirs());
+        if (!dirsOk) {
+            IJ.log("Invalid input or output directory: " + inputDirectory + ", " + outputDirectory);
+        }
+        return (noNaNs && noZeros && dirsOk);
+    }
+}
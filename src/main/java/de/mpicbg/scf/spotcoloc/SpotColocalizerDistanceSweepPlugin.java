@@ -0,0 +1,139 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+
+
+/**
+ * Colocalization curve over a range of coloc distance factors (macro recordable). Spots are detected once,
+ * the table lists the coloc counts + fractions per distance factor.
+ */
+@Plugin(type = Command.class, initializer = "initialize_inputChecks", menuPath = "Plugins>Spot Colocalization > Macro Recordable > SpotColocalizer (Distance Sweep)")
+public class SpotColocalizerDistanceSweepPlugin implements Command {
+
+    @Parameter
+    ImagePlus imp;
+
+    // -- Dialog Parameters --
+    // channel A
+    @Parameter(label = "channel A: channel number")
+    private int channelA = 2;
+
+    @Parameter(label = "channel A: radius (um)")
+    private double radiusA_um = 1.0;
+
+    @Parameter(label = "channel A: quality threshold")
+    private double thresholdA = 100.0;
+
+    //channel B
+    @Parameter(label = "channel B: channel number")
+    private int channelB = 3;
+
+    @Parameter(label = "channel B: radius (um)")
+    private double radiusB_um = 1.0;
+
+    @Parameter(label = "channel B: quality threshold")
+    private double thresholdB = 100.0;
+
+    // both channels
+    @Parameter(label = "median filtering", description = "Filtering a large image slows down processing.")
+    private boolean doMedian = false;
+
+    @Parameter(label = "Coloc distance factor: min", description = "Spots are considered colocalized if their centers are closer than distance_factor*0.5*(radiusA+radiusB).")
+    private double factorMin = 0.25;
+
+    @Parameter(label = "Coloc distance factor: max")
+    private double factorMax = 3.0;
+
+    @Parameter(label = "Coloc distance factor: step")
+    private double factorStep = 0.25;
+
+    @Parameter(label = "Coloc matching", choices = {"greedy", "optimal"}, description = "greedy: spots A in list order take the closest free spot B (fast). optimal: maximal number of pairs with minimal total distance (solved per distance factor).")
+    private String colocMatching = "greedy";
+
+    // general
+    @Parameter(label = "clear results table")
+    private boolean clearTable = false;
+
+
+    // -- private fields --
+    final private boolean doSubpixel = true;
+
+    // upper limit on the number of distance factors
+    private static final int maxNumFactors = 10000;
+
+
+
+    private void initialize_inputChecks() {
+        if (imp!=null) { // imp==null triggers plugin exit
+            if (imp.getNChannels() == 1) {
+                IJ.error("Spot Colocalizer", "Image must have at least 2 channels.");
+            }
+        }
+    }
+
+
+    @Override
+    public void run() {
+        // cannot avoid dialog in this case, but then don't execute the processing
+        if (imp.getNChannels()==1){
+            IJ.log("Image has only one channel. Returning.");
+            return;
+        }
+
+        if (!checkParameters()) {
+            IJ.log("Issue with provided parameters. Not running plugin.");
+            return;
+        }
+
+        SpotProcessor spotProcessor = new SpotProcessor(imp);
+        spotProcessor.setMatchingMode(SpotProcessor.MatchingMode.valueOf(colocMatching.toUpperCase()));
+        spotProcessor.runFullDistanceFactorSweep(channelA, radiusA_um, thresholdA, channelB, radiusB_um, thresholdB,
+                distanceFactors(), doSubpixel, doMedian, clearTable);
+    }
+
+
+    /**
+     * @return factorMin, factorMin+factorStep, .. up to factorMax (included, up to rounding)
+     */
+    private double[] distanceFactors() {
+        int numFactors = (int) Math.floor((factorMax - factorMin) / factorStep + 1e-9) + 1;
+        double[] factors = new double[numFactors];
+        for (int k = 0; k < numFactors; k++) {
+            factors[k] = factorMin + k * factorStep;
+        }
+        return factors;
+    }
+
+
+    /**
+     * Checks that inputs are not NaN, that neither channel nor radius is zero and that the factor range is valid.
+     * Also checks that channels exists.
+     * @return whether checks were passed
+     */
+    private final boolean checkParameters() {
+        boolean noNaNs = !(Double.isNaN(radiusA_um) || Double.isNaN(thresholdA) || Double.isNaN(radiusB_um) ||
+                Double.isNaN(thresholdB) || Double.isNaN(factorMin) || Double.isNaN(factorMax) || Double.isNaN(factorStep));
+        boolean noZeros = !(channelA==0 || radiusA_um==0 || channelB==0 || radiusB_um==0 );
+        boolean channelOk = channelA>=1 && channelA<=imp.getNChannels() && channelB>=1 && channelB<=imp.getNChannels();
+        if (!channelOk) {
+            IJ.error("Error", "One or more invalid channel numbers: "+channelA+", "+channelB);
+        }
+        boolean factorsOk = noNaNs && factorMin >= 0 && factorMax >= factorMin && factorStep > 0 &&
+                (factorMax - factorMin) / factorStep < maxNumFactors;
+        if (noNaNs && !factorsOk) {
+            IJ.error("Error", "Invalid distance factor range: min="+factorMin+", max="+factorMax+", step="+factorStep);
+        }
+        return (noNaNs && noZeros && channelOk && factorsOk);
+    }
+
+
+}
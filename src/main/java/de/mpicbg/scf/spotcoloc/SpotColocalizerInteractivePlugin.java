@@ -61,12 +61,15 @@ public class SpotColocalizerInteractivePlugin extends InteractiveCommand   {
     @Parameter(label = "---  Both channels", visibility = ItemVisibility.MESSAGE, persist = false, required=false)
     private String m3=" ---";
 
-    @Parameter(label = "median filtering", description="Filtering a large image slows down processing.")
+    @Parameter(label = "median filtering", description="Filtering a large image slows down the first detection of a channel. Later previews and the full analysis reuse the filtered channel.")
     private boolean doMedian=false;
 
     @Parameter(label="Coloc distance factor (default: 1)", description = "Spots are considered colocalized if their centers are closer than distance_factor*0.5*(radiusA+radiusB). factor=1: centers of spot pair are closer than their average radius.")
     private double distanceFactorColoc=1.0;
 
+    @Parameter(label="Coloc matching", choices = {"greedy", "optimal"}, description = "greedy: spots A in list order take the closest free spot B (fast). optimal: maximal number of pairs with minimal total distance.")
+    private String colocMatching="greedy";
+
     // general
     @Parameter(label = "---  General", visibility = ItemVisibility.MESSAGE, persist = false, required=false)
     private String m4=" ---";
@@ -89,6 +92,9 @@ public class SpotColocalizerInteractivePlugin extends InteractiveCommand   {
     @Parameter(label = "Generate Preview", callback="generatePreview_callback" )
     private Button previewButton;
 
+    @Parameter(label = "Cancel Preview", callback="cancelPreview_callback" )
+    private Button cancelPreviewButton;
+
     @Parameter(label = "Full Colocalization Analysis", callback="fullAnalysis_callback" )
     private Button analysisButton;
 
@@ -98,6 +104,9 @@ public class SpotColocalizerInteractivePlugin extends InteractiveCommand   {
     // spot analyzer
     private SpotProcessor spotProcessor;
 
+    // runs the previews in the background
+    private final PreviewRunner previewRunner = new PreviewRunner();
+
 
     /**
      * Launches help webpage. Triggered by "online help" button
@@ -120,6 +129,8 @@ public class SpotColocalizerInteractivePlugin extends InteractiveCommand   {
             }
 
             spotProcessor = new SpotProcessor(imp);
+            // threshold tuning: later previews/analyses with another threshold reuse the detection
+            spotProcessor.setThresholdIndependentDetection(true);
         }
     }
 
@@ -132,24 +143,26 @@ public class SpotColocalizerInteractivePlugin extends InteractiveCommand   {
 
         printParameters();
 
-        // show spot detection previews
+        // show spot detection previews. runs in the background, a new preview cancels the running one
         if (checkParameters()) {
-            spotProcessor.generateDetectionPreviewMultiChannel(previewA, previewB, channelA, radiusA_um,
-                    thresholdA, channelB, radiusB_um, thresholdB, doSubpixel, doMedian);
+            // parameters as of now: the dialog may change while the preview runs
+            final boolean prevA = previewA, prevB = previewB;
+            final int chA = channelA, chB = channelB;
+            final double radA = radiusA_um, thrA = thresholdA, radB = radiusB_um, thrB = thresholdB;
+            final boolean median = doMedian;
+            previewRunner.submit(imp, progress -> spotProcessor.createDetectionPreviewMultiChannel(prevA, prevB, chA,
+                    radA, thrA, chB, radB, thrB, doSubpixel, median, progress));
         } else {
             IJ.log("Issue with parameters.");
         }
+    }
 
-        /* could run in separate thread, then e.g. start the next preview once this one is joined:
-        new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    System.out.println("params ok. generating preview");
-                    spotProcessor.generateDetectionPreviewMultiChannel(previewA, previewB, channelA, radiusA_um,
-                            thresholdA, channelB, radiusB_um, thresholdB, doSubpixel, doMedian);
-                }
-            }).start();
-            */
+
+    /**
+     * Cancels a running preview. Triggered by "cancel preview" button.
+     */
+    private void cancelPreview_callback() {
+        previewRunner.cancel();
     }
 
 
@@ -158,12 +171,15 @@ public class SpotColocalizerInteractivePlugin extends InteractiveCommand   {
      * Triggered by "full analysis" button.
      */
     private void fullAnalysis_callback() {
+        // the preview shares the spotProcessor: it must have stopped before the analysis starts
+        previewRunner.cancelAndWait();
         imp.setOverlay(null);
 
         printParametersToLog();
 
         // do spot detection + colocalization. displays results table
         if (checkParameters()) {
+            spotProcessor.setMatchingMode(SpotProcessor.MatchingMode.valueOf(colocMatching.toUpperCase()));
             spotProcessor.runFullColocalizationAnalysis(channelA, radiusA_um, thresholdA,
                     channelB, radiusB_um, thresholdB, distanceFactorColoc,
                     doSubpixel, doMedian, clearTable, addToRoiManager);
@@ -219,7 +235,7 @@ public class SpotColocalizerInteractivePlugin extends InteractiveCommand   {
         System.out.println("\nParameters:");
         System.out.println("Channel A: channelA=" + channelA + ", radiusA_um=" + radiusA_um + ", thresholdA=" + thresholdA);
         System.out.println("Channel B: channelB=" + channelB + ", radiusB_um=" + radiusB_um + ", thresholdB=" + thresholdB);
-        System.out.println("Both channels: medianFilter=" + doMedian + ", distanceFactorColoc=" + distanceFactorColoc);
+        System.out.println("Both channels: medianFilter=" + doMedian + ", distanceFactorColoc=" + distanceFactorColoc + ", colocMatching=" + colocMatching);
         System.out.println("General: clearTable=" + clearTable  +", addToRoiManager=" + addToRoiManager+", previewA=" + previewA + ", previewB=" + previewB + "\n");
     }
 
@@ -230,7 +246,7 @@ public class SpotColocalizerInteractivePlugin extends InteractiveCommand   {
         IJ.log("\nParameters:");
         IJ.log("Channel A: channelA="+channelA+", radiusA_um="+radiusA_um+", thresholdA="+thresholdA);
         IJ.log("Channel B: channelB="+channelB+", radiusB_um="+radiusB_um+", thresholdB="+thresholdB);
-        IJ.log("Both channels: medianFilter="+doMedian+", distanceFactorColoc="+distanceFactorColoc);
+        IJ.log("Both channels: medianFilter="+doMedian+", distanceFactorColoc="+distanceFactorColoc+", colocMatching="+colocMatching);
         IJ.log("General: clearTable="+clearTable+", addToRoiManager=" + addToRoiManager+", previewA="+previewA+", previewB="+previewB+"\n");
     }
 
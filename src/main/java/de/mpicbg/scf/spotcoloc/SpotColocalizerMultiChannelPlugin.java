@@ -0,0 +1,168 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.util.Arrays;
+
+
+
+/**
+ * Batch processible + macro recordable colocalization analysis of N channels: all channel pairs and the coloc sets
+ * of 3 or more channels, from one spot detection per channel.
+ */
+@Plugin(type = Command.class, initializer = "initialize_inputChecks", menuPath = "Plugins>Spot Colocalization > Macro Recordable > SpotColocalizer (N channels)")
+public class SpotColocalizerMultiChannelPlugin implements Command {
+
+    @Parameter
+    ImagePlus imp;
+
+    // -- Dialog Parameters --
+    @Parameter(label = "channel numbers", description = "Comma separated, e.g. 1,2,3. Overlay colors in this order: magenta, green, cyan, yellow, orange, blue, red, pink.")
+    private String channelsString = "1,2,3";
+
+    @Parameter(label = "radii (um)", description = "Comma separated, one per channel. A single value is used for all channels.")
+    private String radiiString = "1.0";
+
+    @Parameter(label = "quality thresholds", description = "Comma separated, one per channel. A single value is used for all channels.")
+    private String thresholdsString = "100.0";
+
+    @Parameter(label = "median filtering", description = "Filtering a large image slows down processing.")
+    private boolean doMedian = false;
+
+    @Parameter(label = "Coloc distance factor (default: 1)", description = "Spots of channels i and j are considered colocalized if their centers are closer than distance_factor*0.5*(radius_i+radius_j).")
+    private double distanceFactorColoc = 1.0;
+
+    @Parameter(label = "Coloc matching", choices = {"greedy", "optimal"}, description = "greedy: spots A in list order take the closest free spot B (fast). optimal: maximal number of pairs with minimal total distance.")
+    private String colocMatching = "greedy";
+
+    // general
+    @Parameter(label = "clear results tables")
+    private boolean clearTable = false;
+
+
+    // -- private fields --
+    final private boolean doSubpixel = true;
+
+    // parsed parameters
+    private int[] channels;
+    private double[] radii_um;
+    private double[] thresholds;
+
+
+
+    private void initialize_inputChecks() {
+        if (imp!=null) { // imp==null triggers plugin exit
+            if (imp.getNChannels() == 1) {
+                IJ.error("Spot Colocalizer", "Image must have at least 2 channels.");
+            }
+        }
+    }
+
+
+    @Override
+    public void run() {
+        // cannot avoid dialog in this case, but then don't execute the processing
+        if (imp.getNChannels()==1){
+            IJ.log("Image has only one channel. Returning.");
+            return;
+        }
+
+        // do spot detection + colocalization. displays results table
+        if (parseParameters() && checkParameters()) {
+            SpotProcessor spotProcessor = new SpotProcessor(imp);
+            spotProcessor.setMatchingMode(SpotProcessor.MatchingMode.valueOf(colocMatching.toUpperCase()));
+            imp.setOverlay(null);
+
+            spotProcessor.runFullMultiChannelColocalization(channels, radii_um, thresholds, distanceFactorColoc,
+                    doSubpixel, doMedian, clearTable);
+        } else {
+            IJ.log("Issue with provided parameters. Not running plugin.");
+        }
+    }
+
+
+    /**
+     * Parses the comma separated parameter lists. Radii and thresholds with a single value apply to all channels.
+     * @return whether all values are numbers and the list lengths match
+     */
+    private boolean parseParameters() {
+        try {
+            double[] channelValues = parseList(channelsString);
+            channels = new int[channelValues.length];
+            for (int i = 0; i < channels.length; i++) {
+                channels[i] = (int) channelValues[i];
+            }
+            radii_um = expand(parseList(radiiString), channels.length);
+            thresholds = expand(parseList(thresholdsString), channels.length);
+        } catch (NumberFormatException e) {
+            IJ.error("Error", "Invalid number: " + e.getMessage());
+            return false;
+        }
+
+        if (radii_um == null || thresholds == null) {
+            IJ.error("Error", "Give one radius and one threshold per channel, or a single value for all channels.");
+            return false;
+        }
+        return true;
+    }
+
+
+    private static double[] parseList(String values) {
+        String[] parts = values.trim().split("\\s*,\\s*");
+        double[] result = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Double.parseDouble(parts[i]);
+        }
+        return result;
+    }
+
+
+    /**
+     * @return values for n channels: values itself, or n copies of a single value. null if the length doesn't fit.
+     */
+    private static double[] expand(double[] values, int n) {
+        if (values.length == n) {
+            return values;
+        }
+        if (values.length != 1) {
+            return null;
+        }
+        double[] result = new double[n];
+        Arrays.fill(result, values[0]);
+        return result;
+    }
+
+
+    /**
+     * Checks that inputs are not NaN and that neither channel nor radius is zero.
+     * Also checks that channels exists and that there are at least 2 different channels.
+     * @return whether checks were passed
+     */
+    private boolean checkParameters() {
+        boolean noNaNs = !Double.isNaN(distanceFactorColoc);
+        boolean noZeros = true;
+        boolean channelOk = channels.length >= 2;
+        for (int i = 0; i < channels.length; i++) {
+            noNaNs = noNaNs && !(Double.isNaN(radii_um[i]) || Double.isNaN(thresholds[i]));
+            noZeros = noZeros && !(channels[i]==0 || radii_um[i]==0);
+            channelOk = channelOk && channels[i]>=1 && channels[i]<=imp.getNChannels();
+            for (int j = 0; j < i; j++) {
+                channelOk = channelOk && channels[i] != channels[j];
+            }
+        }
+        if (!channelOk) {
+            IJ.error("Error", "Invalid channel numbers (at least 2 different, existing channels needed): "+channelsString);
+        }
+        return (noNaNs && noZeros && channelOk);
+    }
+
+
+}
@@ -42,7 +42,7 @@ public class SpotDetectorInteractivePlugin extends InteractiveCommand   {
     @Parameter(label="quality threshold")
     private double threshold =100.0;
 
-    @Parameter(label = "median filtering", description="Filtering a large image slows down processing.")
+    @Parameter(label = "median filtering", description="Filtering a large image slows down the first detection of a channel. Later previews and the full analysis reuse the filtered channel.")
     private boolean doMedian=false;
 
     // general
@@ -60,6 +60,9 @@ public class SpotDetectorInteractivePlugin extends InteractiveCommand   {
     @Parameter(label = "Generate Preview", callback="generatePreview_callback" )
     private Button previewButton;
 
+    @Parameter(label = "Cancel Preview", callback="cancelPreview_callback" )
+    private Button cancelPreviewButton;
+
     @Parameter(label = "Full Spot Detection", callback="fullAnalysis_callback" )
     private Button analysisButton;
 
@@ -69,6 +72,9 @@ public class SpotDetectorInteractivePlugin extends InteractiveCommand   {
     // spot analyzer
     private SpotProcessor spotProcessor;
 
+    // runs the previews in the background
+    private final PreviewRunner previewRunner = new PreviewRunner();
+
 
     /**
      * Initializes plugin. Does sanity checks within the SpotProcessor initializer
@@ -76,6 +82,8 @@ public class SpotDetectorInteractivePlugin extends InteractiveCommand   {
     private void initialize_spotdetect(){
         if (imp!=null) { // imp==null triggers plugin exit
             spotProcessor = new SpotProcessor(imp);
+            // threshold tuning: later previews/analyses with another threshold reuse the detection
+            spotProcessor.setThresholdIndependentDetection(true);
         }
     }
 
@@ -97,21 +105,36 @@ public class SpotDetectorInteractivePlugin extends InteractiveCommand   {
 
         printParameters();
 
-        // show spot detection previews
+        // show spot detection previews. runs in the background, a new preview cancels the running one
         if (checkParameters()) {
-            spotProcessor.generateDetectionPreviewSingleChannel(channel, radius_um, threshold, doSubpixel, doMedian);
+            // parameters as of now: the dialog may change while the preview runs
+            final int ch = channel;
+            final double rad = radius_um, thr = threshold;
+            final boolean median = doMedian;
+            previewRunner.submit(imp, progress -> spotProcessor.createDetectionPreviewSingleChannel(ch, rad, thr,
+                    doSubpixel, median, progress));
         } else {
             IJ.log("Issue with parameters.");
         }
     }
 
 
+    /**
+     * Cancels a running preview. Triggered by "cancel preview" button.
+     */
+    private void cancelPreview_callback() {
+        previewRunner.cancel();
+    }
+
+
     /**
      * Full spot detection analysis: detects spots and creates a results table. Quite similar to preview, but additional
      * roi overlay + results table.
      * Triggered by "full analysis" button.
      */
     private void fullAnalysis_callback() {
+        // the preview shares the spotProcessor: it must have stopped before the analysis starts
+        previewRunner.cancelAndWait();
         imp.setOverlay(null);
 
         printParametersToLog();
@@ -0,0 +1,223 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+
+/**
+ * A uniform grid (spatial hash) over spot center positions, for fast fixed-radius neighbor queries.
+ * Spots are binned into cubic cells of edge length cellSize. A query with a search distance <= cellSize only
+ * needs to look at the 3x3x3 cells around the query position instead of at all spots.
+ * Works also for 2D (all z=0). Positions are in um (calibrated), like in SpotTable.
+ */
+public class SpotGrid {
+
+    // spot coordinates (um). index = spot id
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] zs;
+
+    private final double cellSize;
+
+    // cell key -> ids of the spots in this cell (in ascending order of insertion)
+    private final Map<Long, IntList> cells = new HashMap<>();
+
+
+    /**
+     * Creates an empty grid. Spots are added with add(..) or addAll().
+     * @param xs x coordinates of all spots (um)
+     * @param ys y coordinates (um)
+     * @param zs z coordinates (um), all zero for 2D
+     * @param cellSize edge length of a grid cell (um). Must be >= the largest search distance that will be queried.
+     *                 Non-positive or non-finite values fall back to a single cell (brute force).
+     */
+    public SpotGrid(final double[] xs, final double[] ys, final double[] zs, double cellSize) {
+        this.xs = xs;
+        this.ys = ys;
+        this.zs = zs;
+        this.cellSize = cellSize;
+    }
+
+
+    /**
+     * Convenience constructor for Nx3 position arrays. Creates an empty grid.
+     * @param positions Nx3 array of x,y,z (um)
+     * @param cellSize see SpotGrid(double[], double[], double[], double)
+     */
+    public SpotGrid(final double[][] positions, double cellSize) {
+        this(column(positions, 0), column(positions, 1), column(positions, 2), cellSize);
+    }
+
+
+    /**
+     * Convenience constructor for the positions of a spot table. Creates an empty grid.
+     * @param spots spot ids are the rows of the table
+     * @param cellSize see SpotGrid(double[], double[], double[], double)
+     */
+    public SpotGrid(final SpotTable spots, double cellSize) {
+        this(spots.xs(), spots.ys(), spots.zs(), cellSize);
+    }
+
+
+    /**
+     * Adds spot with the given id to the grid. Ids should be added in ascending order (addAll() does this), so that
+     * each cell lists its spots in ascending id order.
+     */
+    public void add(int id) {
+        long key = cellKey(cellIndex(xs[id]), cellIndex(ys[id]), cellIndex(zs[id]));
+        IntList cell = cells.get(key);
+        if (cell == null) {
+            cell = new IntList();
+            cells.put(key, cell);
+        }
+        cell.add(id);
+    }
+
+
+    /**
+     * Adds all spots (ids 0..N-1) to the grid.
+     * @return this grid
+     */
+    public SpotGrid addAll() {
+        for (int id = 0; id < xs.length; id++) {
+            add(id);
+        }
+        return this;
+    }
+
+
+    /**
+     * Finds the closest spot to (x,y,z) which is not excluded and lies within sqrt(maxdist2).
+     * Ties (exactly equal distance) are resolved in favor of the lower spot id, which reproduces the result of
+     * a linear scan over all spots with a strict "closer than the current best" comparison.
+     * @param maxdist2 squared search distance (um^2). sqrt(maxdist2) must be <= cellSize.
+     * @param excluded spots which may not be returned (e.g. already paired). may be null.
+     * @return id of the closest spot, or -1 if none was found
+     */
+    public int findNearest(double x, double y, double z, double maxdist2, boolean[] excluded) {
+        long cx = cellIndex(x);
+        long cy = cellIndex(y);
+        long cz = cellIndex(z);
+
+        double mindist2 = Double.POSITIVE_INFINITY;
+        int idBest = -1;
+
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    IntList cell = cells.get(cellKey(cx + dx, cy + dy, cz + dz));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (int k = 0; k < cell.size; k++) {
+                        int id = cell.values[k];
+                        if (excluded != null && excluded[id]) {
+                            continue;
+                        }
+
+                        double dist2 = dist2(x, y, z, id);
+                        if (dist2 <= maxdist2 && (dist2 < mindist2 || (dist2 == mindist2 && id < idBest))) {
+                            mindist2 = dist2;
+                            idBest = id;
+                        }
+                    }
+                }
+            }
+        }
+        return idBest;
+    }
+
+
+    /**
+     * Calls action for every spot which is not excluded and lies within sqrt(maxdist2) of (x,y,z).
+     * The order of the spot ids is unspecified.
+     * @param maxdist2 squared search distance (um^2). sqrt(maxdist2) must be <= cellSize.
+     * @param excluded spots which are skipped. may be null.
+     */
+    public void forEachWithin(double x, double y, double z, double maxdist2, boolean[] excluded, IntConsumer action) {
+        long cx = cellIndex(x);
+        long cy = cellIndex(y);
+        long cz = cellIndex(z);
+
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    IntList cell = cells.get(cellKey(cx + dx, cy + dy, cz + dz));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (int k = 0; k < cell.size; k++) {
+                        int id = cell.values[k];
+                        if ((excluded == null || !excluded[id]) && dist2(x, y, z, id) <= maxdist2) {
+                            action.accept(id);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Squared distance between (x,y,z) and spot id.
+     */
+    public double dist2(double x, double y, double z, int id) {
+        double ddx = x - xs[id];
+        double ddy = y - ys[id];
+        double ddz = z - zs[id];
+        return ddx * ddx + ddy * ddy + ddz * ddz;
+    }
+
+
+    /**
+     * Index of the cell along one axis. Everything falls into cell 0 if no valid cell size was given.
+     */
+    private long cellIndex(double coord) {
+        if (!(cellSize > 0) || Double.isInfinite(cellSize)) {
+            return 0;
+        }
+        return (long) Math.floor(coord / cellSize);
+    }
+
+
+    /**
+     * Packs 3 cell indices into one key (21 bits each). Indices wrap around for extremely large coordinates, which
+     * only adds a few extra candidates to a query but never loses one.
+     */
+    private static long cellKey(long cx, long cy, long cz) {
+        return ((cx & 0x1FFFFFL) << 42) | ((cy & 0x1FFFFFL) << 21) | (cz & 0x1FFFFFL);
+    }
+
+
+    private static double[] column(double[][] positions, int d) {
+        double[] col = new double[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            col[i] = positions[i][d];
+        }
+        return col;
+    }
+
+
+    /**
+     * Minimal growable int array, avoids boxing in the cells.
+     */
+    private static class IntList {
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(int v) {
+            if (size == values.length) {
+                int[] grown = new int[2 * size];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = v;
+        }
+    }
+}
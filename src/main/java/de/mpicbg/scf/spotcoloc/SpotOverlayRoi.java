@@ -0,0 +1,184 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+
+import java.awt.*;
+import java.util.Arrays;
+
+
+/**
+ * Overlay element which draws a whole spot table: the circles of the spheres are computed at drawing time, only for
+ * the displayed slice and time point (and in every channel). Memory is that of the spot table (plus one int per spot),
+ * independent of the number of slices and channels, and creating the overlay takes constant time.
+ * On the first drawing the spots are bucketed by time point and center slice, so that a repaint only visits the
+ * spots whose sphere can cross the displayed slice.
+ * Draws the same circles as SpotVisualization.createOverlayOfSpots(..), which creates one OvalRoi per spot, slice
+ * and channel instead. The single spots can't be selected or edited, and when the overlay is saved with the image,
+ * this element is stored as rectangle.
+ */
+public class SpotOverlayRoi extends Roi {
+
+    private final SpotTable spots;
+    private final double rad_um;
+    private final Calibration calib;
+
+    // spots by (frame, center slice), CSR layout: spots of bucket k are bucketSpots[bucketStart[k]..bucketStart[k+1]-1].
+    // built on first drawing, see buildBuckets()
+    private int[] bucketStart = null;
+    private int[] bucketSpots;
+    private int minFrame, minSlice, numSlices;
+
+    // pretty plotting, as in SpotVisualization (px)
+    private static final double xoffset = 0.5;
+    private static final double yoffset = 0.5;
+
+
+    /**
+     * @param imp image on which the spots are drawn (for size + calibration)
+     * @param spots spot centers (um) and frames
+     * @param rad_um spot radius in um
+     * @param color stroke color
+     */
+    public SpotOverlayRoi(ImagePlus imp, SpotTable spots, double rad_um, Color color) {
+        super(0, 0, imp.getWidth(), imp.getHeight());
+        this.spots = spots;
+        this.rad_um = rad_um;
+        this.calib = imp.getCalibration().copy();
+        setStrokeColor(color);
+        setStrokeWidth(1);
+        setName("spots");
+    }
+
+
+    public SpotTable getSpots() {
+        return spots;
+    }
+
+
+    @Override
+    public void drawOverlay(Graphics g) {
+        drawSpots(g);
+    }
+
+
+    @Override
+    public void draw(Graphics g) {
+        drawSpots(g);
+    }
+
+
+    private int centerSlice(int i) {
+        return (int) Math.round(spots.z(i) / calib.pixelDepth + 1); // slice=z+1
+    }
+
+
+    /**
+     * Sorts the spot ids into buckets of equal frame and center slice (counting sort).
+     */
+    private synchronized void buildBuckets() {
+        if (bucketStart != null) {
+            return;
+        }
+        int maxFrame = Integer.MIN_VALUE, maxSlice = Integer.MIN_VALUE;
+        minFrame = Integer.MAX_VALUE;
+        minSlice = Integer.MAX_VALUE;
+        for (int i = 0; i < spots.size(); i++) {
+            minFrame = Math.min(minFrame, spots.frame(i));
+            maxFrame = Math.max(maxFrame, spots.frame(i));
+            minSlice = Math.min(minSlice, centerSlice(i));
+            maxSlice = Math.max(maxSlice, centerSlice(i));
+        }
+        numSlices = maxSlice - minSlice + 1;
+        int numBuckets = (maxFrame - minFrame + 1) * numSlices;
+
+        int[] start = new int[numBuckets + 1];
+        for (int i = 0; i < spots.size(); i++) {
+            start[bucket(spots.frame(i), centerSlice(i)) + 1]++;
+        }
+        for (int k = 0; k < numBuckets; k++) {
+            start[k + 1] += start[k];
+        }
+        bucketSpots = new int[spots.size()];
+        int[] fill = Arrays.copyOf(start, numBuckets);
+        for (int i = 0; i < spots.size(); i++) {
+            bucketSpots[fill[bucket(spots.frame(i), centerSlice(i))]++] = i;
+        }
+        bucketStart = start;
+    }
+
+
+    private int bucket(int frame, int slice) {
+        return (frame - minFrame) * numSlices + (slice - minSlice);
+    }
+
+
+    /**
+     * Draws the circles of all spots which cross the current slice of the current time point. Only the buckets of
+     * this time point with a center slice within one spot radius are visited.
+     */
+    private void drawSpots(Graphics g) {
+        if (imp == null || spots.size() == 0) {
+            return;
+        }
+        buildBuckets();
+        int currentSlice = imp.getZ();
+        int currentFrame = imp.getT();
+        if (currentFrame < minFrame || currentFrame - minFrame >= (bucketStart.length - 1) / numSlices) {
+            return;
+        }
+        // spheres with a center more than maxDeltaz slices away don't cross the current slice
+        int maxDeltaz = (int) Math.ceil(rad_um / calib.pixelDepth);
+        int sliceFrom = Math.max(minSlice, currentSlice - maxDeltaz);
+        int sliceTo = Math.min(minSlice + numSlices - 1, currentSlice + maxDeltaz);
+        if (sliceFrom > sliceTo) {
+            return;
+        }
+
+        double magnification = (ic != null) ? ic.getMagnification() : 1;
+        double rad0xy = rad_um / calib.pixelWidth;
+
+        Graphics2D g2d = (Graphics2D) g;
+        g2d.setColor(getStrokeColor());
+        g2d.setStroke(new BasicStroke(1));
+
+        // buckets of consecutive slices of one frame are contiguous
+        for (int k = bucketStart[bucket(currentFrame, sliceFrom)]; k < bucketStart[bucket(currentFrame, sliceTo) + 1]; k++) {
+            int i = bucketSpots[k];
+            int slice_ctr = centerSlice(i);
+            int deltaz = Math.abs(currentSlice - slice_ctr);
+
+            // radius of the sphere cut in this slice, like in SpotVisualization
+            double radxy;
+            if (deltaz == 0) {
+                radxy = rad0xy;
+            } else {
+                double deltaz_um = deltaz * calib.pixelDepth;
+                if (deltaz_um >= rad_um) {
+                    continue;
+                }
+                radxy = Math.sqrt(rad_um * rad_um - deltaz_um * deltaz_um) / calib.pixelWidth;
+            }
+
+            double xleft = spots.x(i) / calib.pixelWidth + xoffset - radxy;
+            double ytop = spots.y(i) / calib.pixelHeight + yoffset - radxy;
+            int size = (int) Math.round(2 * radxy * magnification);
+            g2d.drawOval(screenX(xleft), screenY(ytop), size, size);
+        }
+    }
+
+
+    private int screenX(double x) {
+        return (ic != null) ? ic.screenXD(x) : (int) Math.round(x);
+    }
+
+    private int screenY(double y) {
+        return (ic != null) ? ic.screenYD(y) : (int) Math.round(y);
+    }
+}
@@ -6,6 +6,7 @@ package de.mpicbg.scf.spotcoloc;
  */
 
 
+import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
@@ -16,6 +17,7 @@ import fiji.plugin.trackmate.features.spot.SpotIntensityAnalyzerFactory;
 import fiji.plugin.trackmate.features.spot.SpotRadiusEstimatorFactory;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.Overlay;
 import ij.gui.PointRoi;
@@ -23,6 +25,7 @@ import ij.gui.Roi;
 import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ij.plugin.frame.RoiManager;
+import ij.process.FloatProcessor;
 import ij.text.TextWindow;
 import net.imglib2.type.numeric.RealType;
 
@@ -30,6 +33,12 @@ import net.imglib2.type.numeric.RealType;
 import java.awt.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.DoubleConsumer;
 
 import static java.lang.Math.round;
 
@@ -41,12 +50,104 @@ import static java.lang.Math.round;
  */
 public class SpotProcessor {
 
-    // 2D or 3D, single time point. for colocalization: at least 2 channels
+    // 2D or 3D, single or multiple time points. for colocalization: at least 2 channels
     private final ImagePlus imp;
 
     final String titleSummaryTable ="Summary Counts Spot Colocalization"; // for coloc
     final String titleDetailedTable="Detailed Results Spot Colocalization"; // for coloc
+    final String titleRoiSummaryTable ="Summary Counts Spot Colocalization per Roi"; // for coloc per roi
     final String titleSpotsTable="Results Spot Detection"; // for spot detection
+    final String titleMultiSummaryTable ="Summary Counts Multi-Channel Colocalization"; // for N-channel coloc
+    final String titleMultiDetailedTable="Detailed Results Multi-Channel Colocalization"; // for N-channel coloc
+    final String titleSweepTable ="Coloc Distance Factor Sweep"; // for the coloc curve over distance factors
+
+    // overlay colors of the channels in the N-channel analysis
+    private static final Color[] channelColors = {Color.magenta, Color.green, Color.cyan, Color.yellow, Color.orange,
+            Color.blue, Color.red, Color.pink};
+
+    // spots closer than this (squared, um^2) are considered duplicates
+    private static final double maxDuplicateDist2 = 0.00000000000001;
+
+    // thread budget for spot detection, split between channels which are detected concurrently
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    // runs the concurrent channel detections. created on first use if not set
+    private ExecutorService executor = null;
+
+    // detect once at a lower threshold and answer other thresholds from the cached detection
+    private boolean thresholdIndependent = false;
+
+    // in threshold-independent mode, detection runs at this fraction of the requested (scaled) threshold
+    private static final double thresholdFloorFraction = 0.25;
+
+    // share of the median filter in the progress of a detection with median filter
+    private static final double medianProgressShare = 0.2;
+
+    // number of time points processed in parallel (0: half the thread budget)
+    private int maxParallelFrames = 0;
+
+    // tiled detection: tile edge length (px, 0: no tiling) and memory budget for the tiles processed in parallel
+    private int tileSize_px = 0;
+    private long tileMemoryBudget = Runtime.getRuntime().maxMemory() / 2;
+
+    // rough memory needed by the LoG detection per voxel of a tile (float copies + FFT buffers), bytes
+    private static final long bytesPerVoxelDetection = 40;
+
+    // how spots of channel A and B are paired
+    private MatchingMode matchingMode = MatchingMode.GREEDY;
+
+    // above this number of OvalRois per overlay call, spots are drawn lazily (SpotOverlayRoi)
+    private long maxOverlayRois = 100000;
+
+    // per-stage timing and counters. may be shared with other processors
+    private ProcessingMetrics metrics = new ProcessingMetrics();
+
+    // features of detected spots, and whether the detection functions leave them to computeSpotFeatures(..)
+    private SpotFeatures spotFeatures = SpotFeatures.ALL;
+    private boolean lazySpotFeatures = false;
+
+    // LoG detector implementation
+    private DetectorBackend detectorBackend = DetectorBackend.TRACKMATE;
+
+
+    /**
+     * Pairing strategy of findSpotCorrespondences(..).
+     * GREEDY: spots A are visited in list order and take the closest free spot B (fast, depends on the order).
+     * OPTIMAL: maximal number of pairs with minimal total distance, see OptimalMatcher.
+     */
+    public enum MatchingMode { GREEDY, OPTIMAL }
+
+    /**
+     * Spot features computed after detection (trackmate spot analyzers), see setSpotFeatures(..).
+     * INTENSITY: mean intensity within the spot radius. RADIUS: estimated radius. Position and quality are always set.
+     */
+    public enum SpotFeatures {
+        NONE(false, false), INTENSITY(true, false), RADIUS(false, true), ALL(true, true);
+
+        final boolean intensity;
+        final boolean radius;
+
+        SpotFeatures(boolean intensity, boolean radius) {
+            this.intensity = intensity;
+            this.radius = radius;
+        }
+    }
+
+    /**
+     * Implementation of the LoG spot detection, see setDetectorBackend(..).
+     * TRACKMATE: trackmate LogDetector (settings, model and spot collection per call).
+     * NATIVE: NativeLogDetector, same kernel on the pixel arrays without trackmate overhead.
+     */
+    public enum DetectorBackend { TRACKMATE, NATIVE }
+
+    // last preview per channel slot (A, B), see createPreview(..)
+    private final PreviewPart[] previewParts = {new PreviewPart(), new PreviewPart()};
+
+    // detection results of previous calls (e.g. preview followed by full analysis)
+    private final DetectionCache detectionCache = new DetectionCache(Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 8));
+
+    // median filtered detection regions of previous calls
+    private final FilteredImageCache filteredImageCache = new FilteredImageCache(Math.min(1L << 30, Runtime.getRuntime().maxMemory() / 8));
 
 
     public SpotProcessor(final ImagePlus inputImp) {
@@ -56,9 +157,212 @@ public class SpotProcessor {
     }
 
 
+    /**
+     * Sets the total number of threads used for spot detection (default: number of cores). If several channels
+     * are detected concurrently, each channel gets an equal share.
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+
+    /**
+     * Sets the executor on which the channels are detected concurrently. It should not limit the number of threads
+     * below the number of channels, otherwise channels are processed one after the other.
+     * Default: a cached daemon thread pool owned by this processor.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+
+    /**
+     * Sets the memory bound of the detection result cache (default: 256 MB or 1/8 of the max heap, whichever is
+     * smaller). Repeated detectSpots(..) calls with the same parameters on the unchanged image reuse the cached
+     * result. 0 disables the cache.
+     * @param maxBytes estimated memory of all cached spots (bytes)
+     */
+    public void setDetectionCacheSize(long maxBytes) {
+        detectionCache.setMaxBytes(maxBytes);
+    }
+
+
+    /**
+     * Sets the memory bound of the cache of median filtered channels (default: 1 GB or 1/8 of the max heap, whichever
+     * is smaller). With median filtering, the detection region of a channel is filtered once and reused by later
+     * detections of the unchanged image, e.g. with other radii or thresholds. 0 disables the cache.
+     * @param maxBytes memory of all cached filtered regions (4 bytes per voxel)
+     */
+    public void setFilteredImageCacheSize(long maxBytes) {
+        filteredImageCache.setMaxBytes(maxBytes);
+    }
+
+
+    /**
+     * Sets how spots of the two channels are paired in findSpotCorrespondences(..) (default: GREEDY).
+     */
+    public void setMatchingMode(MatchingMode matchingMode) {
+        this.matchingMode = matchingMode;
+    }
+
+    public MatchingMode getMatchingMode() {
+        return matchingMode;
+    }
+
+
+    /**
+     * Overlays with more than maxOverlayRois circles (see SpotVisualization.estimateNumOverlayRois(..)) are drawn
+     * with a SpotOverlayRoi, which renders only the displayed slice, instead of with one OvalRoi per circle.
+     * Default: 100000. 0: always lazy. Long.MAX_VALUE: never.
+     */
+    public void setMaxOverlayRois(long maxOverlayRois) {
+        this.maxOverlayRois = Math.max(0, maxOverlayRois);
+    }
+
+
+    /**
+     * Sets which spot features are computed for detected spots (default: ALL). They are computed only for the spots
+     * above the quality threshold, after detection. Previews never compute features, and neither does
+     * writeColocalization(..) without a spots sink.
+     */
+    public void setSpotFeatures(SpotFeatures spotFeatures) {
+        this.spotFeatures = spotFeatures;
+    }
+
+    public SpotFeatures getSpotFeatures() {
+        return spotFeatures;
+    }
+
+    /**
+     * Lazy mode (default: off): detectSpots(..), detectSpotsInFrame(..), detectSpotsMultiChannel(..) and
+     * computeColocalization(..) return spots without features. Compute them with computeSpotFeatures(..) for the
+     * spots which are exported, e.g. only the colocalized ones. The full analysis functions, which fill the results
+     * tables with all spots, still compute the features.
+     */
+    public void setLazySpotFeatures(boolean lazySpotFeatures) {
+        this.lazySpotFeatures = lazySpotFeatures;
+    }
+
+    private SpotFeatures featuresAtDetection() {
+        return lazySpotFeatures ? SpotFeatures.NONE : spotFeatures;
+    }
+
+
+    /**
+     * @return per-stage timing and counters of all calls so far (detection, matching, tables, overlay, ..)
+     */
+    public ProcessingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Replaces the metrics, e.g. by an instance shared by the processors of all images of a batch to aggregate them.
+     */
+    public void setMetrics(ProcessingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * Sets how many time points of a time-lapse image are processed in parallel by the full analysis functions.
+     * Each of them holds the detection buffers of one frame, so this bounds memory. Default (0): half the thread
+     * budget (see setNumThreads(..)).
+     */
+    public void setMaxParallelFrames(int maxParallelFrames) {
+        this.maxParallelFrames = Math.max(0, maxParallelFrames);
+    }
+
+
+    /**
+     * Enables tiled detection for large images (default: off). The roi bounds (or whole image) are split into cubic
+     * tiles of tileSize_px edge length (plus a halo of the LoG kernel size), which are detected separately, several in
+     * parallel, and stitched. Memory use then depends on the tile size instead of on the image size.
+     * @param tileSize_px tile edge length in px (x, y and z). 0 disables tiling.
+     * @param memoryBudget memory (bytes) which the tiles processed in parallel may use. At least one tile is always
+     *                     processed.
+     */
+    public void setTiledDetection(int tileSize_px, long memoryBudget) {
+        this.tileSize_px = Math.max(0, tileSize_px);
+        this.tileMemoryBudget = memoryBudget;
+    }
+
+
+    /**
+     * Enables the threshold-independent detection mode (default: off). The quality threshold is only a cut on
+     * Spot.QUALITY, so in this mode the LoG detection runs once at a lower floor threshold (a fraction of the
+     * requested one) and is cached sorted by quality. Later calls with the same channel, radius etc. but any
+     * threshold above the floor are answered from the cache by a binary search, without a new detection.
+     * Useful for interactive threshold tuning. Requires the detection cache (see setDetectionCacheSize(..)): if it is
+     * disabled or the image is a virtual stack, detection runs at the requested threshold.
+     * Results are the same as for a direct detection, except for spots whose subpixel-refined quality lies
+     * within rounding of the threshold.
+     */
+    public void setThresholdIndependentDetection(boolean thresholdIndependent) {
+        this.thresholdIndependent = thresholdIndependent;
+    }
+
+
+    /**
+     * Sets the LoG detector implementation (default: TRACKMATE). NATIVE has a much lower per-call overhead and
+     * scales better with the number of threads; it finds the same spots except possibly within a kernel width of the
+     * image (or roi) border, where the image is mirrored instead of faded out. Drops cached detections.
+     */
+    public void setDetectorBackend(DetectorBackend detectorBackend) {
+        if (detectorBackend != this.detectorBackend) {
+            this.detectorBackend = detectorBackend;
+            clearDetectionCache();
+        }
+    }
+
+    public DetectorBackend getDetectorBackend() {
+        return detectorBackend;
+    }
+
+
+    /**
+     * Whether detections and filtered channels are cached. Caching needs the pixel fingerprint of the channel (one
+     * pass over its pixels), which is skipped if both caches are disabled. Virtual stacks are not cached: their
+     * fingerprint does not read the pixels (see DetectionCache.imageFingerprint(..)), so edits would not be noticed.
+     */
+    private boolean useCaches() {
+        return (detectionCache.isEnabled() || filteredImageCache.isEnabled()) && !imp.getStack().isVirtual();
+    }
+
+
+    /**
+     * Drops all cached detection results, median filtered channels and preview overlays.
+     */
+    public void clearDetectionCache() {
+        detectionCache.clear();
+        filteredImageCache.clear();
+        synchronized (previewParts) {
+            for (PreviewPart part : previewParts) {
+                part.key = null;
+                part.overlay = null;
+            }
+        }
+    }
+
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "SpotProcessor-detection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+
     private void checkInput() {
-        // single time point
-        if (imp.getNFrames()>1) {IJ.error("Spot Colocalizer", "Image must be a single time point. Plugin will not work correctly.");}
+        // time-lapse: analysis runs frame by frame
+        if (imp.getNFrames()>1) {IJ.log("Spot Colocalizer: image has " + imp.getNFrames() + " time points. Full analysis processes every time point, previews the current one.");}
     }
 
 
@@ -78,12 +382,30 @@ public class SpotProcessor {
      */
     public void generateDetectionPreviewSingleChannel(int channel, double radius_um, double threshold,
                                                       boolean doSubPixel, boolean doMedian) {
-        Overlay ov = new Overlay();
+        imp.setOverlay(createDetectionPreviewSingleChannel(channel, radius_um, threshold, doSubPixel, doMedian));
+    }
 
-        List<Spot> spotsA = detectSpots(channel, radius_um, threshold, doSubPixel, doMedian);
-        ov = SpotVisualization.createOverlayOfSpots(imp, spotsA, ov, Color.magenta);
 
-        imp.setOverlay(ov);
+    /**
+     * Like generateDetectionPreviewSingleChannel(..), but returns the overlay instead of showing it, e.g. to run the
+     * preview in the background (see PreviewRunner). If the calling thread is interrupted, the detection stops
+     * early with an IllegalStateException.
+     */
+    public Overlay createDetectionPreviewSingleChannel(int channel, double radius_um, double threshold,
+                                                       boolean doSubPixel, boolean doMedian) {
+        return createDetectionPreviewSingleChannel(channel, radius_um, threshold, doSubPixel, doMedian, null);
+    }
+
+
+    /**
+     * Like createDetectionPreviewSingleChannel(int, double, double, boolean, boolean), reporting progress.
+     * @param progress receives the completed fraction of the detection (0..1), e.g. IJ::showProgress. May be called
+     *                 from worker threads. null: no progress is reported
+     */
+    public Overlay createDetectionPreviewSingleChannel(int channel, double radius_um, double threshold,
+                                                       boolean doSubPixel, boolean doMedian, DoubleConsumer progress) {
+        return createPreview(new boolean[]{true, false}, new int[]{channel, 0}, new double[]{radius_um, 0},
+                new double[]{threshold, 0}, doSubPixel, doMedian, Progress.of(progress));
     }
 
 
@@ -105,19 +427,124 @@ public class SpotProcessor {
                                                      int channelA, double radiusA_um, double thresholdA,
                                                      int channelB, double radiusB_um, double thresholdB,
                                                      boolean doSubPixel, boolean doMedian) {
-        Overlay ov = new Overlay();
+        imp.setOverlay(createDetectionPreviewMultiChannel(previewChA, previewChB, channelA, radiusA_um, thresholdA,
+                channelB, radiusB_um, thresholdB, doSubPixel, doMedian));
+    }
+
+
+    /**
+     * Like generateDetectionPreviewMultiChannel(..), but returns the overlay instead of showing it, e.g. to run the
+     * preview in the background (see PreviewRunner). If the calling thread is interrupted, the detection stops
+     * early with an IllegalStateException.
+     */
+    public Overlay createDetectionPreviewMultiChannel(boolean previewChA, boolean previewChB,
+                                                     int channelA, double radiusA_um, double thresholdA,
+                                                     int channelB, double radiusB_um, double thresholdB,
+                                                     boolean doSubPixel, boolean doMedian) {
+        return createDetectionPreviewMultiChannel(previewChA, previewChB, channelA, radiusA_um, thresholdA,
+                channelB, radiusB_um, thresholdB, doSubPixel, doMedian, null);
+    }
+
+
+    /**
+     * Like createDetectionPreviewMultiChannel(boolean, boolean, .., boolean, boolean), reporting progress.
+     * @param progress receives the completed fraction of the detection (0..1), e.g. IJ::showProgress. May be called
+     *                 from worker threads. null: no progress is reported
+     */
+    public Overlay createDetectionPreviewMultiChannel(boolean previewChA, boolean previewChB,
+                                                     int channelA, double radiusA_um, double thresholdA,
+                                                     int channelB, double radiusB_um, double thresholdB,
+                                                     boolean doSubPixel, boolean doMedian, DoubleConsumer progress) {
+        return createPreview(new boolean[]{previewChA, previewChB}, new int[]{channelA, channelB},
+                new double[]{radiusA_um, radiusB_um}, new double[]{thresholdA, thresholdB}, doSubPixel, doMedian,
+                Progress.of(progress));
+    }
 
-        if (previewChA) {
-            List<Spot> spotsA = detectSpots(channelA, radiusA_um, thresholdA, doSubPixel, doMedian);
-            ov = SpotVisualization.createOverlayOfSpots(imp, spotsA, ov, Color.magenta);
+
+    /**
+     * Preview overlay of channel slots A (magenta) and B (green). Only slots whose parameters, pixels, roi or time
+     * point changed since the last preview are detected again; the overlay parts of the other slots are reused.
+     * Without caching (see useCaches()) every enabled slot is detected again.
+     * @param enabled per slot whether it is shown
+     * @param progress progress of the detection of the stale slots
+     */
+    private Overlay createPreview(boolean[] enabled, int[] channels, double[] radii_um, double[] thresholds,
+                                  boolean doSubPixel, boolean doMedian, Progress progress) {
+        final int frame = imp.getT();
+        final Color[] colors = {Color.magenta, Color.green};
+
+        // which slots are stale. the fingerprint (a pass over the channel) is computed once per channel and only
+        // if it is used: for the comparison here and for the detection cache
+        final boolean useCaches = useCaches();
+        DetectionCache.Key[] keys = new DetectionCache.Key[2];
+        Long[] fingerprints = new Long[2];
+        List<Integer> stale = new ArrayList<>();
+        for (int slot = 0; slot < 2; slot++) {
+            if (!enabled[slot]) {
+                continue;
+            }
+            if (!useCaches) {
+                stale.add(slot);
+                continue;
+            }
+            fingerprints[slot] = (slot == 1 && fingerprints[0] != null && channels[0] == channels[1]) ? fingerprints[0] :
+                    DetectionCache.imageFingerprint(imp, channels[slot], frame);
+            keys[slot] = new DetectionCache.Key(imp, fingerprints[slot], channels[slot], frame, radii_um[slot],
+                    thresholds[slot], doSubPixel, doMedian);
+            synchronized (previewParts) {
+                if (keys[slot].equals(previewParts[slot].key)) {
+                    IJ.log("Preview of channel " + channels[slot] + " unchanged.");
+                } else {
+                    stale.add(slot);
+                }
+            }
         }
 
-        if (previewChB) {
-            List<Spot> spotsB = detectSpots(channelB, radiusB_um, thresholdB, doSubPixel, doMedian);
-            ov = SpotVisualization.createOverlayOfSpots(imp, spotsB, ov, Color.green);
+        // detect stale slots (both concurrently)
+        Overlay[] parts = new Overlay[2];
+        if (!stale.isEmpty()) {
+            int[] staleChannels = new int[stale.size()];
+            double[] staleRadii = new double[stale.size()];
+            double[] staleThresholds = new double[stale.size()];
+            Long[] staleFingerprints = new Long[stale.size()];
+            for (int k = 0; k < stale.size(); k++) {
+                staleChannels[k] = channels[stale.get(k)];
+                staleRadii[k] = radii_um[stale.get(k)];
+                staleThresholds[k] = thresholds[stale.get(k)];
+                staleFingerprints[k] = fingerprints[stale.get(k)];
+            }
+            List<List<Spot>> spots = detectSpotsMultiChannel(frame, staleChannels, staleRadii, staleThresholds,
+                    doSubPixel, doMedian, numThreads, SpotFeatures.NONE, staleFingerprints, progress);
+
+            // an interrupted preview throws above, so the parts are complete
+            for (int k = 0; k < stale.size(); k++) {
+                int slot = stale.get(k);
+                parts[slot] = new Overlay();
+                addSpotsToOverlay(parts[slot], SpotTable.fromSpots(spots.get(k)), colors[slot]);
+                synchronized (previewParts) {
+                    previewParts[slot].key = keys[slot];
+                    previewParts[slot].overlay = parts[slot];
+                }
+            }
         }
 
-        imp.setOverlay(ov);
+        // combine with the unchanged parts
+        Overlay ov = new Overlay();
+        for (int slot = 0; slot < 2; slot++) {
+            if (!enabled[slot]) {
+                continue;
+            }
+            Overlay part = parts[slot];
+            if (part == null) {
+                synchronized (previewParts) {
+                    part = previewParts[slot].overlay;
+                }
+            }
+            for (int r = 0; r < part.size(); r++) {
+                ov.add(part.get(r));
+            }
+        }
+        return ov;
     }
 
 
@@ -141,19 +568,259 @@ public class SpotProcessor {
                                               double distanceFactorColoc, boolean doSubPixel, boolean doMedian,
                                               boolean clearTable, boolean addToRoiManager) {
 
-        // find spots
-        List<Spot> spotsA = detectSpots(channelA, radiusA_um,thresholdA, doSubPixel, doMedian);
-        List<Spot> spotsB = detectSpots(channelB,radiusB_um, thresholdB, doSubPixel, doMedian);
+        final double maxdist_um = 0.5 * (radiusA_um + radiusB_um) * distanceFactorColoc;
+
+        // results are collected frame by frame
+        final Overlay ov = new Overlay();
+        final ResultsTableSink rtdetailed = new ResultsTableSink(getResultsTable(titleDetailedTable, clearTable), titleDetailedTable);
+        final ResultsTableSink rtsummary = new ResultsTableSink(getResultsTable(titleSummaryTable, clearTable), titleSummaryTable);
+        final List<ColocResult> resultsForRoiManager = new ArrayList<>();
+
+        processFrames((frame, numThreadsFrame) -> {
+                    // find spots (both channels concurrently)
+                    List<List<Spot>> spotsAB = detectSpotsMultiChannel(frame, new int[]{channelA, channelB},
+                            new double[]{radiusA_um, radiusB_um}, new double[]{thresholdA, thresholdB}, doSubPixel,
+                            doMedian, numThreadsFrame, spotFeatures);
+
+                    // detect which spots are colocalized
+                    return findSpotCorrespondences(spotsAB.get(0), spotsAB.get(1), maxdist_um);
+                },
+                (frame, CR) -> {
+                    // create visualization overlay
+                    addSpotsToOverlay(ov, CR.tableA_noncoloc, Color.magenta);
+                    addSpotsToOverlay(ov, CR.tableAvg_coloc, Color.white);
+                    addSpotsToOverlay(ov, CR.tableB_noncoloc, Color.green);
+
+                    // spots & summary to results tables
+                    fillSpotsColocTable(rtdetailed, channelA, channelB, CR);
+                    fillSummaryColocTable(rtsummary, channelA, channelB, frame, CR);
+
+                    if (addToRoiManager) {
+                        resultsForRoiManager.add(CR);
+                    }
+                });
 
+        // add roi to overlay
+        Roi roi = imp.getRoi();
+        if (roi!=null) {
+            roi.setStrokeColor(Color.yellow);
+            ov.add(roi);
+        }
 
-        // detect which spots are colocalized
-        double maxdist_um = 0.5 * (radiusA_um + radiusB_um) * distanceFactorColoc;
-        ColocResult CR = findSpotCorrespondences(spotsA, spotsB, maxdist_um);
+        imp.setOverlay(ov);
 
-        // create visualization overlay
-        Overlay ov = SpotVisualization.createOverlayOfSpots(imp, CR.spotsA_noncoloc, Color.magenta);
-        ov= SpotVisualization.createOverlayOfSpots(imp, CR.spotsAvg_coloc, ov,Color.white);
-        ov= SpotVisualization.createOverlayOfSpots(imp, CR.spotsB_noncoloc, ov,Color.green);
+        //display spots & summary in results tables
+        rtdetailed.close();
+        rtsummary.close();
+
+        // add to roi manager
+        if (addToRoiManager) {
+            List<SpotTable> spotsA_coloc = new ArrayList<>();
+            List<SpotTable> spotsA_noncoloc = new ArrayList<>();
+            List<SpotTable> spotsB_coloc = new ArrayList<>();
+            List<SpotTable> spotsB_noncoloc = new ArrayList<>();
+            for (ColocResult CR : resultsForRoiManager) {
+                spotsA_coloc.add(CR.tableA_coloc);
+                spotsA_noncoloc.add(CR.tableA_noncoloc);
+                spotsB_coloc.add(CR.tableB_coloc);
+                spotsB_noncoloc.add(CR.tableB_noncoloc);
+            }
+            addSpotsToRoiManager(SpotTable.concat(spotsA_coloc),"spots_coloc_ch"+channelA, channelA);
+            addSpotsToRoiManager(SpotTable.concat(spotsA_noncoloc),"spots_notcoloc_ch"+channelA, channelA);
+            addSpotsToRoiManager(SpotTable.concat(spotsB_coloc),"spots_coloc_ch"+channelB, channelB);
+            addSpotsToRoiManager(SpotTable.concat(spotsB_noncoloc),"spots_notcoloc_ch"+channelB, channelB);
+        }
+    }
+
+
+
+
+    /** Colocalization pipeline for many rois (e.g. cells from the roi manager) with a single detection per channel
+     * and time point: spots are detected once within the union bounding box of the rois, assigned to every roi that
+     * contains them (RoiIndex, rois may overlap) and colocalized per roi, several rois in parallel.
+     * Gives the same counts as runFullColocalizationAnalysis(..) once per roi, except for spots within about two
+     * radii of a roi border, where the LoG response is no longer cut off at the roi bounds.
+     * Displays the spots of all rois and the rois as overlay and a summary table with one row per roi (and time
+     * point). The roi of the image is restored afterwards.
+     * @param rois area rois (pixel coordinates)
+     * For the other parameters see runFullColocalizationAnalysis(..).
+     */
+    public void runFullColocalizationAnalysisPerRoi(Roi[] rois, int channelA, double radiusA_um, double thresholdA,
+                                                    int channelB, double radiusB_um, double thresholdB,
+                                                    double distanceFactorColoc, boolean doSubPixel, boolean doMedian,
+                                                    boolean clearTable) {
+        final double maxdist_um = 0.5 * (radiusA_um + radiusB_um) * distanceFactorColoc;
+        final RoiIndex roiIndex = new RoiIndex(rois);
+
+        final Overlay ov = new Overlay();
+        final ResultsTableSink rtsummary = new ResultsTableSink(getResultsTable(titleRoiSummaryTable, clearTable), titleRoiSummaryTable);
+
+        // detection within the union of the rois
+        Roi savedRoi = imp.getRoi();
+        imp.setRoi(roiIndex.getUnionBounds());
+        try {
+            processFrames((frame, numThreadsFrame) -> {
+                        List<List<Spot>> spotsAB = detectSpotsMultiChannel(frame, new int[]{channelA, channelB},
+                                new double[]{radiusA_um, radiusB_um}, new double[]{thresholdA, thresholdB}, doSubPixel,
+                                doMedian, numThreadsFrame, spotFeatures);
+                        SpotTable spotsA = SpotTable.fromSpots(spotsAB.get(0));
+                        SpotTable spotsB = SpotTable.fromSpots(spotsAB.get(1));
+
+                        return findSpotCorrespondencesPerRoi(roiIndex, spotsA, spotsB, maxdist_um, numThreadsFrame);
+                    },
+                    (frame, results) -> {
+                        for (int r = 0; r < results.length; r++) {
+                            ColocResult CR = results[r];
+                            addSpotsToOverlay(ov, CR.tableA_noncoloc, Color.magenta);
+                            addSpotsToOverlay(ov, CR.tableAvg_coloc, Color.white);
+                            addSpotsToOverlay(ov, CR.tableB_noncoloc, Color.green);
+
+                            String name = rois[r].getName();
+                            fillSummaryColocTable(rtsummary, imp.getTitle() + ":" + ((name != null) ? name : "roi " + (r + 1)),
+                                    channelA, channelB, frame, CR);
+                            rtsummary.addValue("roi", r + 1);
+                        }
+                    });
+        } finally {
+            if (savedRoi != null) {
+                imp.setRoi(savedRoi);
+            } else {
+                imp.deleteRoi();
+            }
+        }
+
+        for (Roi roi : rois) {
+            Roi outline = (Roi) roi.clone();
+            outline.setStrokeColor(Color.yellow);
+            ov.add(outline);
+        }
+        imp.setOverlay(ov);
+
+        rtsummary.close();
+    }
+
+
+    /**
+     * Assigns the spots to the rois which contain their (rounded) pixel position and colocalizes the spots of every
+     * roi, rois distributed over the threads.
+     * @return colocalization result per roi (order of the roi index)
+     * @throws IllegalStateException if the colocalization of a roi threw an exception or was interrupted
+     */
+    private ColocResult[] findSpotCorrespondencesPerRoi(RoiIndex roiIndex, SpotTable spotsA, SpotTable spotsB,
+                                                        double maxdist_um, int numThreadsRois) {
+        final int numRois = roiIndex.size();
+        final int[][] idsA = assignToRois(roiIndex, spotsA);
+        final int[][] idsB = assignToRois(roiIndex, spotsB);
+
+        final ColocResult[] results = new ColocResult[numRois];
+        final int numTasks = Math.max(1, Math.min(numThreadsRois, numRois));
+        if (numTasks == 1) {
+            for (int r = 0; r < numRois; r++) {
+                results[r] = findSpotCorrespondences(spotsA.view(idsA[r]), spotsB.view(idsB[r]), maxdist_um);
+            }
+            return results;
+        }
+
+        // rois are distributed round-robin. matching within a roi is single-threaded
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < numTasks; t++) {
+            final int task = t;
+            futures.add(getExecutor().submit(() -> {
+                for (int r = task; r < numRois; r += numTasks) {
+                    SpotTable roiB = spotsB.view(idsB[r]);
+                    SpotGrid gridB = new SpotGrid(roiB, Math.abs(maxdist_um)).addAll();
+                    results[r] = findSpotCorrespondences(spotsA.view(idsA[r]), roiB, gridB, maxdist_um, 1);
+                }
+            }));
+        }
+        // join. a failed or interrupted task fails the whole colocalization (its rois would look like "no pairs")
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<?> f : futures) { f.cancel(true); }
+                throw new IllegalStateException("Spot colocalization per roi was interrupted.", e);
+            } catch (ExecutionException e) {
+                for (Future<?> f : futures) { f.cancel(true); }
+                throw new IllegalStateException("Spot colocalization per roi failed: " + e.getCause(), e.getCause());
+            }
+        }
+        return results;
+    }
+
+
+    /**
+     * @return per roi of roiIndex the row ids of the spots inside (ascending)
+     */
+    private int[][] assignToRois(RoiIndex roiIndex, SpotTable spots) {
+        Calibration calib = imp.getCalibration();
+        int[] pixelX = new int[spots.size()];
+        int[] pixelY = new int[spots.size()];
+        for (int i = 0; i < spots.size(); i++) {
+            pixelX[i] = (int) Math.round(spots.x(i) / calib.pixelWidth);
+            pixelY[i] = (int) Math.round(spots.y(i) / calib.pixelHeight);
+        }
+
+        // count, then fill
+        final int[] counts = new int[roiIndex.size()];
+        for (int i = 0; i < spots.size(); i++) {
+            roiIndex.forEachContaining(pixelX[i], pixelY[i], r -> counts[r]++);
+        }
+        final int[][] ids = new int[roiIndex.size()][];
+        for (int r = 0; r < ids.length; r++) {
+            ids[r] = new int[counts[r]];
+        }
+        final int[] fill = new int[roiIndex.size()];
+        for (int i = 0; i < spots.size(); i++) {
+            final int spotId = i;
+            roiIndex.forEachContaining(pixelX[i], pixelY[i], r -> ids[r][fill[r]++] = spotId);
+        }
+        return ids;
+    }
+
+
+
+
+    /** Full colocalization pipeline for N channels. Intented to be used by high level plugins.
+     * Detects spots in every channel once (channels concurrently), and computes the colocalization of every channel
+     * pair plus the higher-order coloc sets (see findMultiChannelCorrespondences(..)). Displays the spots as overlay
+     * (one color per channel), a summary table with the full coloc matrix and a table of all spots.
+     * @param channels channel numbers (1,2,3,..), at least 2
+     * @param radii_um spot radius per channel (um)
+     * @param thresholds quality threshold per channel
+     * @param distanceFactorColoc spots of channels i and j are colocalized if closer than
+     *                            distanceFactorColoc*0.5*(radius_i+radius_j)
+     * @param doSubPixel LogDetector input
+     * @param doMedian LogDetector input
+     * @param clearTable clear results tables before adding results
+     */
+    public void runFullMultiChannelColocalization(int[] channels, double[] radii_um, double[] thresholds,
+                                                  double distanceFactorColoc, boolean doSubPixel, boolean doMedian,
+                                                  boolean clearTable) {
+        final Overlay ov = new Overlay();
+        final ResultsTableSink rtdetailed = new ResultsTableSink(getResultsTable(titleMultiDetailedTable, clearTable), titleMultiDetailedTable);
+        final ResultsTableSink rtsummary = new ResultsTableSink(getResultsTable(titleMultiSummaryTable, clearTable), titleMultiSummaryTable);
+
+        processFrames((frame, numThreadsFrame) -> {
+                    // find spots (all channels concurrently)
+                    List<List<Spot>> spotsPerChannel = detectSpotsMultiChannel(frame, channels, radii_um, thresholds,
+                            doSubPixel, doMedian, numThreadsFrame, spotFeatures);
+                    SpotTable[] tables = new SpotTable[channels.length];
+                    for (int i = 0; i < channels.length; i++) {
+                        tables[i] = SpotTable.fromSpots(spotsPerChannel.get(i));
+                    }
+
+                    // all pairwise + higher-order colocalization
+                    return findMultiChannelCorrespondences(channels, tables, radii_um, distanceFactorColoc);
+                },
+                (frame, MR) -> {
+                    for (int i = 0; i < MR.getNumChannels(); i++) {
+                        addSpotsToOverlay(ov, MR.getSpots(i), channelColors[i % channelColors.length]);
+                    }
+                    fillSpotsMultiColocTable(rtdetailed, MR);
+                    fillSummaryMultiColocTable(rtsummary, frame, MR);
+                });
 
         // add roi to overlay
         Roi roi = imp.getRoi();
@@ -164,20 +831,130 @@ public class SpotProcessor {
 
         imp.setOverlay(ov);
 
-        //display spots & summary in results tables
-        ResultsTable rtdetailed= fillSpotsColocTable(channelA,channelB,CR,clearTable);
-        rtdetailed.show(titleDetailedTable);
+        rtdetailed.close();
+        rtsummary.close();
+    }
 
-        ResultsTable rtsummary = fillSummaryColocTable(channelA, channelB, CR, clearTable);
-        rtsummary.show(titleSummaryTable);
 
-        // add to roi manager
-        if (addToRoiManager) {
-            addSpotsToRoiManager(CR.spotsA_coloc,"spots_coloc_ch"+channelA, channelA);
-            addSpotsToRoiManager(CR.spotsA_noncoloc,"spots_notcoloc_ch"+channelA, channelA);
-            addSpotsToRoiManager(CR.spotsB_coloc,"spots_coloc_ch"+channelB, channelB);
-            addSpotsToRoiManager(CR.spotsB_noncoloc,"spots_notcoloc_ch"+channelB, channelB);
+
+
+    /** Headless colocalization pipeline, e.g. for batch processing of many images. Does spot detection in 2 channels
+     * and finds spot correspondences, for every time point. Does not create overlays, results table windows or
+     * roi manager entries. Results can be written with fillSpotsColocTable(..) / fillSummaryColocTable(..), or
+     * use writeColocalization(..) to stream them.
+     * For the parameters see runFullColocalizationAnalysis(..).
+     * @return one colocalization result per time point (frame 1, 2, ..)
+     * @throws IllegalStateException if a time point fails (no partial result is returned)
+     */
+    public List<ColocResult> computeColocalization(int channelA, double radiusA_um, double thresholdA,
+                                                   int channelB, double radiusB_um, double thresholdB,
+                                                   double distanceFactorColoc, boolean doSubPixel, boolean doMedian) {
+        final double maxdist_um = 0.5 * (radiusA_um + radiusB_um) * distanceFactorColoc;
+        final List<ColocResult> results = new ArrayList<>();
+
+        processFrames((frame, numThreadsFrame) -> {
+                    List<List<Spot>> spotsAB = detectSpotsMultiChannel(frame, new int[]{channelA, channelB},
+                            new double[]{radiusA_um, radiusB_um}, new double[]{thresholdA, thresholdB}, doSubPixel,
+                            doMedian, numThreadsFrame, featuresAtDetection());
+                    return findSpotCorrespondences(spotsAB.get(0), spotsAB.get(1), maxdist_um);
+                },
+                (frame, CR) -> results.add(CR));
+
+        return results;
+    }
+
+
+    /** Headless colocalization pipeline like computeColocalization(..), but the results of each time point are
+     * written to the sinks as soon as it is done and then dropped. Use with CsvResultSink / ColumnarResultSink for
+     * large batches. The sinks are not closed. Rows are added while synchronized on the sink, so a sink may be
+     * shared by several processors running concurrently.
+     * For the parameters see runFullColocalizationAnalysis(..).
+     * @param spotsSink receives one row per spot (see fillSpotsColocTable(..)). may be null.
+     * @param summarySink receives one row per time point (see fillSummaryColocTable(..)). may be null.
+     * @throws IllegalStateException if a time point fails. The time points before it have been written.
+     */
+    public void writeColocalization(int channelA, double radiusA_um, double thresholdA,
+                                    int channelB, double radiusB_um, double thresholdB,
+                                    double distanceFactorColoc, boolean doSubPixel, boolean doMedian,
+                                    ResultSink spotsSink, ResultSink summarySink) {
+        final double maxdist_um = 0.5 * (radiusA_um + radiusB_um) * distanceFactorColoc;
+
+        processFrames((frame, numThreadsFrame) -> {
+                    List<List<Spot>> spotsAB = detectSpotsMultiChannel(frame, new int[]{channelA, channelB},
+                            new double[]{radiusA_um, radiusB_um}, new double[]{thresholdA, thresholdB}, doSubPixel,
+                            doMedian, numThreadsFrame, (spotsSink != null) ? spotFeatures : SpotFeatures.NONE);
+                    return findSpotCorrespondences(spotsAB.get(0), spotsAB.get(1), maxdist_um);
+                },
+                (frame, CR) -> {
+                    if (spotsSink != null) {
+                        synchronized (spotsSink) {
+                            fillSpotsColocTable(spotsSink, channelA, channelB, CR);
+                        }
+                    }
+                    if (summarySink != null) {
+                        synchronized (summarySink) {
+                            fillSummaryColocTable(summarySink, channelA, channelB, frame, CR);
+                        }
+                    }
+                });
+    }
+
+
+
+
+    /** Colocalization curve: counts of colocalized spots for many coloc distance factors from a single detection
+     * per time point, e.g. to choose the distance factor. Candidate pairs are collected once up to the largest
+     * distance and the matching is replayed per factor (see DistanceFactorSweep). Uses the current matching mode.
+     * Displays a table with one row per distance factor (and time point).
+     * @param distanceFactors coloc distance factors, see runFullColocalizationAnalysis(..)
+     * For the other parameters see runFullColocalizationAnalysis(..).
+     */
+    public void runFullDistanceFactorSweep(int channelA, double radiusA_um, double thresholdA,
+                                           int channelB, double radiusB_um, double thresholdB,
+                                           double[] distanceFactors, boolean doSubPixel, boolean doMedian,
+                                           boolean clearTable) {
+        final ResultsTableSink rtsweep = new ResultsTableSink(getResultsTable(titleSweepTable, clearTable), titleSweepTable);
+
+        processFrames((frame, numThreadsFrame) -> {
+                    // coordinates only: no spot features needed
+                    List<List<Spot>> spotsAB = detectSpotsMultiChannel(frame, new int[]{channelA, channelB},
+                            new double[]{radiusA_um, radiusB_um}, new double[]{thresholdA, thresholdB}, doSubPixel,
+                            doMedian, numThreadsFrame, SpotFeatures.NONE);
+                    return sweepDistanceFactors(SpotTable.fromSpots(spotsAB.get(0)), SpotTable.fromSpots(spotsAB.get(1)),
+                            radiusA_um, radiusB_um, distanceFactors, numThreadsFrame);
+                },
+                (frame, sweep) -> fillSweepTable(rtsweep, channelA, channelB, frame, sweep));
+
+        rtsweep.close();
+    }
+
+
+    /**
+     * Colocalization counts of spotsA and spotsB for every distance factor, with the current matching mode.
+     * The count of a factor equals the count of findSpotCorrespondences(..) at that coloc distance.
+     * @param radiusA_um, radiusB_um spot radii (um). coloc distance: factor*0.5*(radiusA_um+radiusB_um)
+     * @param distanceFactors coloc distance factors
+     */
+    public DistanceFactorSweep sweepDistanceFactors(SpotTable spotsA, SpotTable spotsB, double radiusA_um,
+                                                    double radiusB_um, double[] distanceFactors) {
+        return sweepDistanceFactors(spotsA, spotsB, radiusA_um, radiusB_um, distanceFactors, numThreads);
+    }
+
+
+    private DistanceFactorSweep sweepDistanceFactors(SpotTable spotsA, SpotTable spotsB, double radiusA_um,
+                                                     double radiusB_um, double[] distanceFactors, int numThreadsMatching) {
+        double[] factors = distanceFactors.clone();
+        double[] maxdists_um = new double[factors.length];
+        for (int k = 0; k < factors.length; k++) {
+            maxdists_um[k] = 0.5 * (radiusA_um + radiusB_um) * factors[k];
         }
+
+        ProcessingMetrics.Measurement matching = metrics.start(ProcessingMetrics.Stage.MATCHING);
+        int[] counts = DistanceFactorSweep.countColoc(spotsA, spotsB, maxdists_um,
+                matchingMode == MatchingMode.OPTIMAL, getExecutor(), numThreadsMatching);
+        matching.stop(spotsA.size() + spotsB.size());
+
+        return new DistanceFactorSweep(factors, maxdists_um, counts, spotsA.size(), spotsB.size());
     }
 
 
@@ -196,11 +973,24 @@ public class SpotProcessor {
      */
     public void runFullSpotDetection(int channel, double radius_um, double threshold,
                                      boolean doSubPixel, boolean doMedian, boolean clearTable, boolean addToRoiManager) {
-        // find spots
-        List<Spot> spots = detectSpots(channel, radius_um,threshold, doSubPixel, doMedian);
+        // results are collected frame by frame
+        final Overlay ov = new Overlay();
+        final ResultsTableSink rtspots = new ResultsTableSink(getResultsTable(titleSpotsTable, clearTable), titleSpotsTable);
+        final List<SpotTable> spotsForRoiManager = new ArrayList<>();
+
+        processFrames((frame, numThreadsFrame) -> SpotTable.fromSpots(detectSpots(frame, channel, radius_um,
+                        threshold, doSubPixel, doMedian, 0, numThreadsFrame, spotFeatures)),
+                (frame, spots) -> {
+                    // create visualization overlay
+                    addSpotsToOverlay(ov, spots, Color.magenta);
 
-        // create visualization overlay
-        Overlay ov = SpotVisualization.createOverlayOfSpots(imp, spots, Color.magenta);
+                    // spots to results table
+                    appendSpotsToTable(rtspots, spots, channel, false, false);
+
+                    if (addToRoiManager) {
+                        spotsForRoiManager.add(spots);
+                    }
+                });
 
         // add roi to overlay
         Roi roi = imp.getRoi();
@@ -212,12 +1002,11 @@ public class SpotProcessor {
         imp.setOverlay(ov);
 
         //display spots in results table
-        ResultsTable rtspots= fillSpotsDetectionTable(channel,spots,clearTable);
-        rtspots.show(titleSpotsTable);
+        rtspots.close();
 
         // add to roi manager
         if (addToRoiManager) {
-            addSpotsToRoiManager(spots,"spots", channel);
+            addSpotsToRoiManager(SpotTable.concat(spotsForRoiManager),"spots", channel);
         }
     }
 
@@ -230,6 +1019,7 @@ public class SpotProcessor {
     /**
      * Detects spots in a single channel of an image. For spot detection the trackmate LoG detector is used.
      * If the input image has a roi, then spot detection is restricted to this region.
+     * For time-lapse images the current time point is used (see detectSpotsInFrame(..)).
      * @param channel which channel to use. count starts at 1
      * @param radius_um Spot radius in um (for LoGDetector).
      * @param threshold Quality threshold for Log detector. `threshold` is first scaled with the heuristic
@@ -239,9 +1029,139 @@ public class SpotProcessor {
      * @param doSubpixel for LoG Detector
      * @param doMedian for LogDetector
      * @return a list with (trackmate) spot objects
+     * @throws IllegalStateException if the detection (or a part of it) failed or was interrupted
      */
     public <T extends RealType<T>> List<Spot> detectSpots(int channel, double radius_um, double threshold,
                                                           boolean doSubpixel, boolean doMedian) {
+        return detectSpots(channel, radius_um, threshold, doSubpixel, doMedian, 0);
+    }
+
+
+    /**
+     * Like detectSpots(int, double, double, boolean, boolean), but optionally merges spots which are closer than
+     * mergeDist_um: of such near-duplicates only the spot with the higher quality is kept.
+     * @param mergeDist_um merge distance (um). If <=0, only spots at identical positions are removed (default).
+     * @return a list with (trackmate) spot objects
+     */
+    public <T extends RealType<T>> List<Spot> detectSpots(int channel, double radius_um, double threshold,
+                                                          boolean doSubpixel, boolean doMedian, double mergeDist_um) {
+        return detectSpots(imp.getT(), channel, radius_um, threshold, doSubpixel, doMedian, mergeDist_um, numThreads,
+                featuresAtDetection());
+    }
+
+
+    /**
+     * Like detectSpots(int, double, double, boolean, boolean), for a given time point of a time-lapse image.
+     * @param frame time point, count starts at 1
+     * @return a list with (trackmate) spot objects. Their FRAME feature is frame-1.
+     */
+    public List<Spot> detectSpotsInFrame(int frame, int channel, double radius_um, double threshold,
+                                         boolean doSubpixel, boolean doMedian) {
+        return detectSpots(frame, channel, radius_um, threshold, doSubpixel, doMedian, 0, numThreads,
+                featuresAtDetection());
+    }
+
+
+    /**
+     * Detects spots in several channels concurrently. Each channel is submitted to the executor (see
+     * setExecutor(..)) with an equal share of the thread budget (see setNumThreads(..)), and all are joined before
+     * returning. See detectSpots(int, double, double, boolean, boolean) for the parameters.
+     * For time-lapse images the current time point is used.
+     * @param channels channel numbers (count starts at 1)
+     * @param radii_um spot radius per channel (um)
+     * @param thresholds quality threshold per channel
+     * @return one list of spots per channel, in the order of channels
+     * @throws IllegalStateException if the detection of a channel threw an exception or was interrupted
+     */
+    public List<List<Spot>> detectSpotsMultiChannel(final int[] channels, final double[] radii_um, final double[] thresholds,
+                                                    final boolean doSubpixel, final boolean doMedian) {
+        return detectSpotsMultiChannel(imp.getT(), channels, radii_um, thresholds, doSubpixel, doMedian, numThreads,
+                featuresAtDetection());
+    }
+
+
+    /**
+     * Like detectSpotsMultiChannel(int[], double[], double[], boolean, boolean), for a given time point, thread
+     * budget and spot features.
+     */
+    private List<List<Spot>> detectSpotsMultiChannel(final int frame, final int[] channels, final double[] radii_um,
+                                                     final double[] thresholds, final boolean doSubpixel,
+                                                     final boolean doMedian, int numThreadsBudget,
+                                                     final SpotFeatures features) {
+        return detectSpotsMultiChannel(frame, channels, radii_um, thresholds, doSubpixel, doMedian, numThreadsBudget,
+                features, new Long[channels.length], Progress.NONE);
+    }
+
+
+    /**
+     * @param imageFingerprints per channel the DetectionCache.imageFingerprint(..) if already known, else null
+     * @param progress progress of the detection, an equal share per channel
+     */
+    private List<List<Spot>> detectSpotsMultiChannel(final int frame, final int[] channels, final double[] radii_um,
+                                                     final double[] thresholds, final boolean doSubpixel,
+                                                     final boolean doMedian, int numThreadsBudget,
+                                                     final SpotFeatures features, final Long[] imageFingerprints,
+                                                     final Progress progress) {
+        int numChannels = channels.length;
+        List<List<Spot>> spotsPerChannel = new ArrayList<>();
+
+        // no budget to split: detect one after the other
+        if (numThreadsBudget < 2 || numChannels < 2) {
+            for (int i = 0; i < numChannels; i++) {
+                spotsPerChannel.add(detectSpots(frame, channels[i], radii_um[i], thresholds[i], doSubpixel, doMedian, 0, numThreadsBudget, features, imageFingerprints[i], progress.part(1.0 / numChannels)));
+            }
+            return spotsPerChannel;
+        }
+
+        // submit all channels, distribute the thread budget
+        List<Future<List<Spot>>> futures = new ArrayList<>();
+        for (int i = 0; i < numChannels; i++) {
+            final int idx = i;
+            final int threadsChannel = Math.max(1, numThreadsBudget / numChannels + (i < numThreadsBudget % numChannels ? 1 : 0));
+            futures.add(getExecutor().submit(() -> detectSpots(frame, channels[idx], radii_um[idx], thresholds[idx],
+                    doSubpixel, doMedian, 0, threadsChannel, features, imageFingerprints[idx], progress.part(1.0 / numChannels))));
+        }
+
+        // join. a failed or interrupted channel fails the whole detection (an empty list would look like 0 spots)
+        for (int i = 0; i < numChannels; i++) {
+            try {
+                spotsPerChannel.add(futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<List<Spot>> future : futures) { future.cancel(true); }
+                throw new IllegalStateException("Spot detection was interrupted.", e);
+            } catch (ExecutionException e) {
+                for (Future<List<Spot>> future : futures) { future.cancel(true); }
+                throw new IllegalStateException("Spot detection in channel " + channels[i] + " failed: " + e.getCause(), e.getCause());
+            }
+        }
+        return spotsPerChannel;
+    }
+
+
+    /**
+     * Like detectSpots(int, double, double, boolean, boolean, double), with an explicit time point, number of
+     * threads for trackmate and spot features to compute.
+     */
+    private List<Spot> detectSpots(int frame, int channel, double radius_um, double threshold, boolean doSubpixel,
+                                   boolean doMedian, double mergeDist_um, int numThreadsDetection,
+                                   SpotFeatures features) {
+        return detectSpots(frame, channel, radius_um, threshold, doSubpixel, doMedian, mergeDist_um,
+                numThreadsDetection, features, null, Progress.NONE);
+    }
+
+
+    /**
+     * @param imageFingerprint DetectionCache.imageFingerprint(..) of the channel and time point if already known.
+     *                         null: computed here, if caches are used
+     * @param progress progress of the detection (completed at once if it is cached)
+     */
+    private List<Spot> detectSpots(int frame, int channel, double radius_um, double threshold, boolean doSubpixel,
+                                   boolean doMedian, double mergeDist_um, int numThreadsDetection,
+                                   SpotFeatures features, Long imageFingerprint, Progress progress) {
+        Object event = ProcessingEvents.listener.beginDetection();
+        double inputThreshold = threshold;
+
         // return this if detection fails
         final List<Spot> emptyspots=new ArrayList<>();
 
@@ -253,83 +1173,700 @@ public class SpotProcessor {
             threshold=threshold/(radius_um*radius_um);
         }
 
-        // == Detect the spots ==
-        // adapted from: https://imagej.net/Scripting_TrackMate
-        //     and https://github.com/tferr/Scripts/blob/master/BAR/src/main/resources/scripts/BAR/Analysis/LoG-DoG_Spot_Counter.py
-        // previous code version used to call LogDetector directly but it's then hard to get additional spot features like intensity
+        // == Reuse previous detection with identical parameters on the unchanged image ==
+        // in threshold-independent mode any previous detection at a lower threshold can be reused
+        boolean useCaches = useCaches();
+        long fingerprint = !useCaches ? 0 : (imageFingerprint != null) ? imageFingerprint : DetectionCache.imageFingerprint(imp, channel, frame);
+        DetectionCache.Key cacheKey = new DetectionCache.Key(imp, fingerprint,
+                channel, frame, radius_um, thresholdIndependent ? Double.NaN : threshold, doSubpixel, doMedian);
+        QualitySortedSpots detection = useCaches ? detectionCache.get(cacheKey) : null;
+
+        boolean cached = detection != null && detection.contains(threshold);
+        if (cached) {
+            IJ.log("Reusing cached spot detection of channel " + channel + ".");
+            progress.worked(1.0);
+        } else {
+            // detect at a lower threshold in threshold-independent mode, so that later higher thresholds are covered.
+            // only if the detection is cached: otherwise the larger candidate set would never be reused
+            boolean lowerThreshold = thresholdIndependent && useCaches && detectionCache.isEnabled();
+            double detectionThreshold = lowerThreshold ? Math.min(threshold, threshold * thresholdFloorFraction) : threshold;
+
+            // == Detect the spots ==
+            List<Spot> detectedSpots;
+            try {
+                if (useTiledDetection()) {
+                    detectedSpots = runTiledDetection(frame, channel, radius_um, detectionThreshold, doSubpixel, doMedian, numThreadsDetection, cacheKey.imageFingerprint, progress);
+                } else {
+                    detectedSpots = runDetection(frame, channel, radius_um, detectionThreshold, doSubpixel, doMedian, numThreadsDetection, null, cacheKey.imageFingerprint, progress);
+                }
+            } catch (RuntimeException e) {
+                ProcessingEvents.listener.endDetection(event, imp.getTitle(), channel, frame, radius_um,
+                        inputThreshold, false, 0);
+                throw e;
+            }
+            // interrupted (e.g. a superseded preview): the detection may be incomplete, don't cache or return it
+            if (Thread.currentThread().isInterrupted()) {
+                ProcessingEvents.listener.endDetection(event, imp.getTitle(), channel, frame, radius_um,
+                        inputThreshold, false, 0);
+                throw new IllegalStateException("Spot detection was interrupted.");
+            }
+            if (detectedSpots == null) {
+                ProcessingEvents.listener.endDetection(event, imp.getTitle(), channel, frame, radius_um,
+                        inputThreshold, false, 0);
+                return emptyspots;
+            }
+
+            // avoid duplicates (spots at same position - why is this sometimes possible at all?)
+            // TODO: posted duplicate-spots issue on image.sc, follow updates: https://forum.image.sc/t/getting-duplicate-spots-with-trackmate-logdetector-scripting/39575
+            ProcessingMetrics.Measurement dedup = metrics.start(ProcessingMetrics.Stage.DEDUP);
+            detectedSpots = removeDuplicateSpots(detectedSpots, 0);
+            dedup.stop(detectedSpots.size());
+
+            detection = new QualitySortedSpots(detectedSpots, detectionThreshold);
+            if (useCaches) {
+                detectionCache.put(cacheKey, detection);
+            }
+        }
+
+        // apply the quality threshold
+        List<Spot> spots = detection.aboveThreshold(threshold);
+
+        // optionally merge near-duplicates
+        if (mergeDist_um > 0) {
+            ProcessingMetrics.Measurement dedup = metrics.start(ProcessingMetrics.Stage.DEDUP);
+            spots = removeDuplicateSpots(spots, mergeDist_um);
+            dedup.stop(spots.size());
+        }
+
+        // features only for the remaining spots. cached spots keep their features
+        ensureSpotFeatures(spots, frame, channel, radius_um, features, numThreadsDetection);
+
+        // cached spots are shared by later calls: hand out copies, so that changes by the caller (e.g. a script
+        // editing positions or features of its result spots) don't alter later detections and previews
+        if (useCaches) {
+            spots = copySpots(spots);
+        }
+
+        IJ.log("Detected spots in channel " + channel + (imp.getNFrames() > 1 ? ", frame " + frame : "") +
+                " (within Roi): " + spots.size() + ".");
+
+        ProcessingEvents.listener.endDetection(event, imp.getTitle(), channel, frame, radius_um, inputThreshold,
+                cached, spots.size());
+        return spots;
+    }
+
+
+
+
+    /**
+     * Processing of a single time point, see processFrames(..)
+     */
+    private interface FrameTask<R> {
+        /**
+         * @param frame time point, count starts at 1
+         * @param numThreadsFrame thread budget for this time point
+         */
+        R process(int frame, int numThreadsFrame);
+    }
+
+
+    /**
+     * Streams all time points of imp through task, several frames in parallel, and hands the results to consumer
+     * in frame order (on the calling thread). At most maxParallelFrames results are pending at any time, so memory
+     * stays bounded independent of the number of frames. Single time point images are processed directly.
+     * @param task detection etc. for one frame. runs on a worker thread
+     * @param consumer collects results (overlay, tables). called with frame 1, 2, ...
+     * @throws IllegalStateException if a time point fails or processing is interrupted. The remaining time points
+     *                               are cancelled.
+     */
+    private <R> void processFrames(final FrameTask<R> task, BiConsumer<Integer, R> consumer) {
+        int nFrames = imp.getNFrames();
+        if (nFrames == 1) {
+            consumer.accept(1, task.process(1, numThreads));
+            return;
+        }
+
+        int numParallel = Math.max(1, Math.min(nFrames, (maxParallelFrames > 0) ? maxParallelFrames : numThreads / 2));
+        final int numThreadsFrame = Math.max(1, numThreads / numParallel);
+
+        ExecutorService frameExecutor = Executors.newFixedThreadPool(numParallel);
+        ArrayDeque<Future<R>> pending = new ArrayDeque<>();
+        int nextFrame = 1;
+        int frame = 1;
+        try {
+            for (; frame <= nFrames; frame++) {
+                // keep numParallel frames in flight
+                while (nextFrame <= nFrames && pending.size() < numParallel) {
+                    final int frameTask = nextFrame++;
+                    pending.add(frameExecutor.submit(() -> task.process(frameTask, numThreadsFrame)));
+                }
+
+                consumer.accept(frame, pending.poll().get());
+                IJ.showProgress(frame, nFrames);
+            }
+        } catch (InterruptedException e) {
+            // the results would miss time points: fail instead of returning normally
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Processing of time points was interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Processing of time point " + frame + " failed: " + e.getCause(), e.getCause());
+        } finally {
+            frameExecutor.shutdownNow();
+        }
+    }
+
+
+
+
+    /**
+     * Runs the LoG detection of the selected backend (see setDetectorBackend(..)) on one time point of imp.
+     * Median filtering is done here, on the detection region, and cached (see setFilteredImageCacheSize(..)).
+     * See runTrackMateDetection(..) for the other parameters.
+     * @param imageFingerprint DetectionCache.imageFingerprint(..) of the channel and time point
+     * @param progress progress of the median filter (a fixed share) and the detection. trackmate reports only at
+     *                 the end
+     * @return the raw detected spots (may contain duplicates), or null if trackmate rejected the input
+     * @throws IllegalStateException if the NATIVE detection failed or was interrupted
+     */
+    private List<Spot> runDetection(int frame, int channel, double radius_um, double threshold, boolean doSubpixel,
+                                    boolean doMedian, int numThreadsDetection, int[] region, long imageFingerprint,
+                                    Progress progress) {
+        if (region == null) {
+            region = detectionRegion();
+        }
+        float[] filtered = doMedian ? medianFilteredRegion(frame, channel, region, imageFingerprint, numThreadsDetection,
+                progress.part(medianProgressShare)) : null;
+        Progress detectionProgress = progress.part(doMedian ? 1 - medianProgressShare : 1);
+
+        if (detectorBackend == DetectorBackend.TRACKMATE) {
+            List<Spot> spots;
+            if (filtered == null) {
+                spots = runTrackMateDetection(imp, frame, channel, radius_um, threshold, doSubpixel, false, numThreadsDetection, region);
+            } else {
+                spots = runTrackMateDetectionFiltered(filtered, frame, radius_um, threshold, doSubpixel, numThreadsDetection, region);
+            }
+            detectionProgress.worked(1.0);
+            return spots;
+        }
+
+        ProcessingMetrics.Measurement stage = metrics.start(ProcessingMetrics.Stage.DETECTION);
+        NativeLogDetector detector = new NativeLogDetector((numThreadsDetection > 1) ? getExecutor() : null, numThreadsDetection)
+                .setProgress(detectionProgress);
+        // a failed or interrupted block throws IllegalStateException (an empty result would look like 0 spots)
+        float[] data = (filtered != null) ? filtered : NativeLogDetector.readRegion(imp, channel, frame, region);
+        List<Spot> spots = detector.detect(imp, frame, region, data, radius_um, threshold, doSubpixel);
+        stage.stop(spots.size());
+        return spots;
+    }
+
+
+    /**
+     * @return the 3x3 median filtered region of one channel and time point (see NativeLogDetector.medianFilter3x3(..)),
+     * from the cache if available. Must not be modified.
+     */
+    private float[] medianFilteredRegion(int frame, int channel, int[] region, long imageFingerprint, int numThreadsFilter,
+                                         Progress progress) {
+        boolean useCaches = useCaches();
+        FilteredImageCache.Key key = new FilteredImageCache.Key(imp.getID(), imageFingerprint, channel, frame, region);
+        float[] filtered = useCaches ? filteredImageCache.get(key) : null;
+        if (filtered != null) {
+            progress.worked(1.0);
+            return filtered;
+        }
+
+        ProcessingMetrics.Measurement stage = metrics.start(ProcessingMetrics.Stage.MEDIAN);
+        filtered = NativeLogDetector.readRegion(imp, channel, frame, region);
+        new NativeLogDetector((numThreadsFilter > 1) ? getExecutor() : null, numThreadsFilter).setProgress(progress)
+                .medianFilter3x3(filtered, new int[]{region[1] - region[0] + 1, region[3] - region[2] + 1, region[5] - region[4] + 1});
+        stage.stop(0);
+
+        if (useCaches) {
+            filteredImageCache.put(key, filtered);
+        }
+        return filtered;
+    }
+
+
+    /**
+     * Runs the trackmate LoG detector (without its median filter) on an already median filtered region of imp:
+     * the region is wrapped as single-channel image with the roi shifted accordingly, and the spots are shifted back.
+     * @param filtered pixels of region, see medianFilteredRegion(..)
+     * @return the raw detected spots (may contain duplicates), or null if detection failed
+     */
+    private List<Spot> runTrackMateDetectionFiltered(float[] filtered, int frame, double radius_um, double threshold,
+                                                     boolean doSubpixel, int numThreadsDetection, int[] region) {
+        int nx = region[1] - region[0] + 1;
+        int ny = region[3] - region[2] + 1;
+        int nz = region[5] - region[4] + 1;
+
+        ImageStack stack = new ImageStack(nx, ny);
+        for (int z = 0; z < nz; z++) {
+            stack.addSlice("", new FloatProcessor(nx, ny, Arrays.copyOfRange(filtered, z * nx * ny, (z + 1) * nx * ny)));
+        }
+        ImagePlus filteredImp = new ImagePlus(imp.getTitle(), stack);
+        filteredImp.setDimensions(1, nz, 1);
+        Calibration calib = imp.getCalibration();
+        filteredImp.setCalibration(calib.copy());
+        if (imp.getRoi() != null) {
+            Roi roi = (Roi) imp.getRoi().clone();
+            roi.setLocation(roi.getBounds().x - region[0], roi.getBounds().y - region[2]);
+            filteredImp.setRoi(roi);
+        }
+
+        List<Spot> spots = runTrackMateDetection(filteredImp, 1, 1, radius_um, threshold, doSubpixel, false,
+                numThreadsDetection, new int[]{0, nx - 1, 0, ny - 1, 0, nz - 1});
+        if (spots == null) {
+            return null;
+        }
+        for (Spot spot : spots) {
+            spot.putFeature(Spot.POSITION_X, spot.getFeature(Spot.POSITION_X) + region[0] * calib.pixelWidth);
+            spot.putFeature(Spot.POSITION_Y, spot.getFeature(Spot.POSITION_Y) + region[2] * calib.pixelHeight);
+            spot.putFeature(Spot.POSITION_Z, spot.getFeature(Spot.POSITION_Z) + region[4] * calib.pixelDepth);
+            spot.putFeature(Spot.FRAME, (double) (frame - 1));
+        }
+        return spots;
+    }
+
+
+    /**
+     * Runs the trackmate LoG detector on one time point of source (restricted to its roi).
+     * @param source imp, or a median filtered part of it (see runTrackMateDetectionFiltered(..))
+     * @param threshold quality threshold, already scaled with the radius (see detectSpots(..))
+     * @param numThreadsDetection number of threads for trackmate
+     * @param region pixel region {xstart, xend, ystart, yend, zstart, zend} (inclusive) to which detection is
+     *               restricted, e.g. a tile. null: the roi bounds (or whole image)
+     * @return the raw detected spots (may contain duplicates), or null if detection failed
+     */
+    private List<Spot> runTrackMateDetection(ImagePlus source, int frame, int channel, double radius_um, double threshold, boolean doSubpixel,
+                                             boolean doMedian, int numThreadsDetection, int[] region) {
+        // == Detect the spots ==
+        // adapted from: https://imagej.net/Scripting_TrackMate
+        //     and https://github.com/tferr/Scripts/blob/master/BAR/src/main/resources/scripts/BAR/Analysis/LoG-DoG_Spot_Counter.py
+        // spot features (intensity etc.) are computed afterwards, see ensureSpotFeatures(..)
+        Settings settings = createTrackMateSettings(source, frame, channel, radius_um, threshold, doSubpixel, doMedian, region);
+
+        // initialize trackmate
+        TrackMate trackmate = new TrackMate(settings);
+        trackmate.setNumThreads(numThreadsDetection);
+
+        //execute
+        try {
+            // first part of trackmate.process()
+            //https://github.com/fiji/TrackMate/blob/7eda4995900469bbec0516f1d32cdbd9f3d84fd4/src/main/java/fiji/plugin/trackmate/TrackMate.java#L610
+            ProcessingMetrics.Measurement stage = metrics.start(ProcessingMetrics.Stage.DETECTION);
+            if ( !trackmate.execDetection() ) { return null; } // could report the error messages to log ...
+            stage.stop(trackmate.getModel().getSpots().getNSpots(false));
+
+            stage = metrics.start(ProcessingMetrics.Stage.INITIAL_FILTERING);
+            if ( !trackmate.execInitialSpotFiltering() ) { return null; }
+            stage.stop(trackmate.getModel().getSpots().getNSpots(false));
+
+        } catch (ArrayIndexOutOfBoundsException e) {
+            IJ.log("The spot detector could not process the data: Roi outside of image");
+            return null;
+        }
+
+
+        //extract results
+        SpotCollection spotCollection = trackmate.getModel().getSpots();
+
+        // collect spots
+        List<Spot> spots=new ArrayList<>();
+        for (final Spot spot : spotCollection.iterable(false)) {
+            spot.putFeature(Spot.FRAME, (double) (frame - 1));
+            spots.add(spot);
+        }
+
+        return spots;
+    }
+
+
+    /**
+     * Trackmate settings for the LoG detector on one time point of source (restricted to its roi or region).
+     * See runTrackMateDetection(..) for the parameters.
+     */
+    private Settings createTrackMateSettings(ImagePlus source, int frame, int channel, double radius_um, double threshold,
+                                             boolean doSubpixel, boolean doMedian, int[] region) {
+        Settings settings = new Settings();
+        settings.setFrom(source);
+
+        if (region != null) {
+            settings.xstart = region[0];
+            settings.xend = region[1];
+            settings.ystart = region[2];
+            settings.yend = region[3];
+            settings.zstart = region[4];
+            settings.zend = region[5];
+        }
+
+        // single time point (0-based in trackmate)
+        settings.tstart = frame - 1;
+        settings.tend = frame - 1;
+
+        // configure spot detector
+        settings.detectorFactory = new LogDetectorFactory<>();
+
+        Map<String, Object> map = new HashMap<>();
+        map.put(DetectorKeys.KEY_RADIUS, radius_um);
+        map.put(DetectorKeys.KEY_THRESHOLD, threshold);
+        map.put(DetectorKeys.KEY_DO_SUBPIXEL_LOCALIZATION, doSubpixel);
+        map.put(DetectorKeys.KEY_DO_MEDIAN_FILTERING, doMedian);
+        map.put(DetectorKeys.KEY_TARGET_CHANNEL, channel);
+
+        settings.detectorSettings = map;
+
+        return settings;
+    }
+
+
+    /**
+     * Computes the requested features (trackmate spot analyzers) for the spots which don't have them yet.
+     * Features are stored in the spot objects.
+     * @param spots spots of one channel and time point
+     * @param frame time point, count starts at 1
+     * @param radius_um detection radius (the analyzers use the radius of each spot)
+     */
+    private void ensureSpotFeatures(List<Spot> spots, int frame, int channel, double radius_um, SpotFeatures features,
+                                    int numThreadsFeatures) {
+        if (features == SpotFeatures.NONE) {
+            return;
+        }
+
+        SpotCollection missing = new SpotCollection();
+        int numMissing = 0;
+        for (Spot spot : spots) {
+            if ((features.intensity && spot.getFeature(SpotIntensityAnalyzerFactory.MEAN_INTENSITY) == null) ||
+                    (features.radius && spot.getFeature(SpotRadiusEstimatorFactory.ESTIMATED_DIAMETER) == null)) {
+                missing.add(spot, frame - 1);
+                numMissing++;
+            }
+        }
+        if (numMissing == 0) {
+            return;
+        }
+
+        ProcessingMetrics.Measurement stage = metrics.start(ProcessingMetrics.Stage.FEATURES);
+
+        // analyzers read the same settings as the detection (target channel etc.)
+        Settings settings = createTrackMateSettings(imp, frame, channel, radius_um, 0, true, false, null);
+        if (features.intensity) {
+            settings.addSpotAnalyzerFactory(new SpotIntensityAnalyzerFactory<>());
+        }
+        if (features.radius) {
+            settings.addSpotAnalyzerFactory(new SpotRadiusEstimatorFactory<>());
+        }
+
+        Model model = new Model();
+        model.setSpots(missing, false);
+        TrackMate trackmate = new TrackMate(model, settings);
+        trackmate.setNumThreads(numThreadsFeatures);
+        if (!trackmate.computeSpotFeatures(false)) {
+            IJ.log("Spot features of channel " + channel + " could not be computed: " + trackmate.getErrorMessage());
+        }
+
+        stage.stop(numMissing);
+    }
+
+
+    /**
+     * @return new list of new spot objects with the position, radius, quality and all features of spots
+     */
+    private static List<Spot> copySpots(List<Spot> spots) {
+        List<Spot> copies = new ArrayList<>(spots.size());
+        for (Spot spot : spots) {
+            Spot copy = new Spot(spot.getDoublePosition(0), spot.getDoublePosition(1), spot.getDoublePosition(2),
+                    spot.getFeature(Spot.RADIUS), spot.getFeature(Spot.QUALITY));
+            for (Map.Entry<String, Double> feature : spot.getFeatures().entrySet()) {
+                copy.putFeature(feature.getKey(), feature.getValue());
+            }
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+
+    /**
+     * Computes the spot features (see setSpotFeatures(..)) of the given spots, e.g. of spots from a lazy detection
+     * (see setLazySpotFeatures(..)) that are going to be exported.
+     * @param spots spots of one channel, any time points
+     * @param channel channel in which the spots were detected
+     * @return new table with the spots of spots (same order) and their features
+     */
+    public SpotTable computeSpotFeatures(SpotTable spots, int channel) {
+        List<Spot> spotList = spots.toSpots();
+
+        // per time point
+        Map<Integer, List<Spot>> spotsPerFrame = new TreeMap<>();
+        for (int i = 0; i < spots.size(); i++) {
+            spotsPerFrame.computeIfAbsent(spots.frame(i), frame -> new ArrayList<>()).add(spotList.get(i));
+        }
+        for (Map.Entry<Integer, List<Spot>> entry : spotsPerFrame.entrySet()) {
+            List<Spot> spotsFrame = entry.getValue();
+            ensureSpotFeatures(spotsFrame, entry.getKey(), channel, spotsFrame.get(0).getFeature(Spot.RADIUS),
+                    spotFeatures, numThreads);
+        }
+
+        return SpotTable.fromSpots(spotList);
+    }
+
+
+
+
+    /**
+     * Whether the detection region (roi bounds or whole image) is larger than a single tile.
+     */
+    private boolean useTiledDetection() {
+        if (tileSize_px <= 0) {
+            return false;
+        }
+        int[] region = detectionRegion();
+        return (region[1] - region[0] + 1 > tileSize_px) || (region[3] - region[2] + 1 > tileSize_px) ||
+                (region[5] - region[4] + 1 > tileSize_px);
+    }
+
+
+    /**
+     * @return pixel region {xstart, xend, ystart, yend, zstart, zend} (inclusive) of the roi bounds or the whole image
+     */
+    private int[] detectionRegion() {
+        Rectangle bounds = (imp.getRoi() != null) ? imp.getRoi().getBounds() : new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+        int x0 = Math.max(0, bounds.x);
+        int y0 = Math.max(0, bounds.y);
+        int x1 = Math.min(imp.getWidth(), bounds.x + bounds.width) - 1;
+        int y1 = Math.min(imp.getHeight(), bounds.y + bounds.height) - 1;
+        return new int[]{x0, x1, y0, y1, 0, imp.getNSlices() - 1};
+    }
+
+
+    /**
+     * Runs runDetection(..) on tiles of the detection region, several tiles in parallel. Each tile is
+     * extended by a halo of the LoG kernel half size plus the local maximum neighborhood (and the median filter) on
+     * each side, clamped to the region, so that the LoG response in the tile core is the same as for the untiled
+     * image. A spot belongs to the tile whose core contains its (rounded) pixel position. Remaining double
+     * detections of the same spot across a tile border (subpixel positions rounding to different tiles) are merged.
+     * The number of tiles processed in parallel is limited by the thread budget and by the memory budget.
+     * @return the raw detected spots of all tiles
+     * @throws IllegalStateException if a tile failed (also if trackmate rejected it) or detection was interrupted.
+     * A failed tile fails the whole detection: its spots would be missing.
+     */
+    private List<Spot> runTiledDetection(final int frame, final int channel, final double radius_um, final double threshold,
+                                         final boolean doSubpixel, final boolean doMedian, int numThreadsDetection,
+                                         final long imageFingerprint, Progress progress) {
+        Calibration calib = imp.getCalibration();
+        int[] region = detectionRegion();
+
+        // halo in px: LoG kernel half size, +1 px for the local maximum / subpixel neighborhood,
+        // +1 px in x,y for the 3x3 median filter
+        boolean is3D = imp.getNSlices() > 1;
+        double sigma_um = radius_um / Math.sqrt(is3D ? 3 : 2);
+        int medianHalo = doMedian ? 1 : 0;
+        int[] halo = new int[]{NativeLogDetector.kernelHalfSize(sigma_um / calib.pixelWidth) + 1 + medianHalo,
+                NativeLogDetector.kernelHalfSize(sigma_um / calib.pixelHeight) + 1 + medianHalo,
+                is3D ? NativeLogDetector.kernelHalfSize(sigma_um / calib.pixelDepth) + 1 : 0};
+
+        // tile cores
+        List<int[]> cores = new ArrayList<>();
+        for (int z0 = region[4]; z0 <= region[5]; z0 += tileSize_px) {
+            for (int y0 = region[2]; y0 <= region[3]; y0 += tileSize_px) {
+                for (int x0 = region[0]; x0 <= region[1]; x0 += tileSize_px) {
+                    cores.add(new int[]{x0, Math.min(x0 + tileSize_px - 1, region[1]), y0, Math.min(y0 + tileSize_px - 1, region[3]),
+                            z0, Math.min(z0 + tileSize_px - 1, region[5])});
+                }
+            }
+        }
+
+        // parallel tiles: limited by threads and memory. A LoG detection needs several float copies of its tile.
+        long voxelsTile = 1;
+        for (int d = 0; d < 3; d++) {
+            voxelsTile *= Math.min(tileSize_px + 2L * halo[d], region[2 * d + 1] - region[2 * d] + 1);
+        }
+        long bytesTile = voxelsTile * bytesPerVoxelDetection;
+        int numParallel = (int) Math.max(1, Math.min(Math.min(numThreadsDetection, cores.size()), tileMemoryBudget / bytesTile));
+        final int numThreadsTile = Math.max(1, numThreadsDetection / numParallel);
+
+        IJ.log("Tiled spot detection in channel " + channel + (imp.getNFrames() > 1 ? ", frame " + frame : "") + ": " + cores.size() + " tiles, " + numParallel + " in parallel.");
+
+        final Progress tileProgress = progress.part(1.0 / cores.size());
+        ExecutorService tileExecutor = Executors.newFixedThreadPool(numParallel);
+        List<Future<List<Spot>>> futures = new ArrayList<>();
+        List<int[]> tiles = new ArrayList<>();
+        try {
+            for (final int[] core : cores) {
+                final int[] tile = new int[6];
+                for (int d = 0; d < 3; d++) {
+                    tile[2 * d] = Math.max(region[2 * d], core[2 * d] - halo[d]);
+                    tile[2 * d + 1] = Math.min(region[2 * d + 1], core[2 * d + 1] + halo[d]);
+                }
+                tiles.add(tile);
+                futures.add(tileExecutor.submit(() -> {
+                    List<Spot> tileSpots = runDetection(frame, channel, radius_um, threshold, doSubpixel, doMedian, numThreadsTile, tile, imageFingerprint,
+                            tileProgress);
+                    if (tileSpots == null) {
+                        throw new IllegalStateException("trackmate detection failed");
+                    }
+                    // keep only spots of the tile core
+                    List<Spot> coreSpots = new ArrayList<>();
+                    for (Spot spot : tileSpots) {
+                        if (isInRegion(getPositionPx(spot, calib), core)) {
+                            coreSpots.add(spot);
+                        }
+                    }
+                    return coreSpots;
+                }));
+            }
+
+            // stitch
+            List<Spot> spots = new ArrayList<>();
+            List<Spot> borderSpots = new ArrayList<>(); // spots close to an inner tile border
+            for (int i = 0; i < cores.size(); i++) {
+                List<Spot> coreSpots;
+                try {
+                    coreSpots = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Spot detection in tile " + regionToString(tiles.get(i)) +
+                            " failed: " + e.getCause(), e.getCause());
+                }
+                for (Spot spot : coreSpots) {
+                    if (isNearInnerBorder(getPositionPx(spot, calib), cores.get(i), region)) {
+                        borderSpots.add(spot);
+                    } else {
+                        spots.add(spot);
+                    }
+                }
+            }
 
-        Settings settings = new Settings();
-        settings.setFrom(imp);
+            // reconcile border spots: distinct LoG maxima are at least a pixel apart, closer ones are the same spot
+            double minPixelSize = Math.min(calib.pixelWidth, calib.pixelHeight);
+            if (imp.getNSlices() > 1) {
+                minPixelSize = Math.min(minPixelSize, calib.pixelDepth);
+            }
+            spots.addAll(removeDuplicateSpots(borderSpots, 0.5 * minPixelSize));
 
-        // configure spot detector
-        settings.detectorFactory = new LogDetectorFactory<>();
+            return spots;
 
-        Map<String, Object> map = new HashMap<>();
-        map.put(DetectorKeys.KEY_RADIUS, radius_um);
-        map.put(DetectorKeys.KEY_THRESHOLD, threshold);
-        map.put(DetectorKeys.KEY_DO_SUBPIXEL_LOCALIZATION, doSubpixel);
-        map.put(DetectorKeys.KEY_DO_MEDIAN_FILTERING, doMedian);
-        map.put(DetectorKeys.KEY_TARGET_CHANNEL, channel);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Spot detection was interrupted.", e);
+        } finally {
+            tileExecutor.shutdownNow();
+        }
+    }
 
-        settings.detectorSettings = map;
 
-        // add analyzers
-        settings.addSpotAnalyzerFactory(new SpotIntensityAnalyzerFactory<>());
-        settings.addSpotAnalyzerFactory(new SpotRadiusEstimatorFactory<>());
+    /**
+     * @return pixel region {xstart, xend, ystart, yend, zstart, zend} as "x 0-99, y 0-99, z 0-9"
+     */
+    private static String regionToString(int[] region) {
+        return "x " + region[0] + "-" + region[1] + ", y " + region[2] + "-" + region[3] + ", z " + region[4] + "-" + region[5];
+    }
 
-        // initialize trackmate
-        TrackMate trackmate = new TrackMate(settings);
 
-        //execute
-        try {
-            // first part of trackmate.process()
-            //https://github.com/fiji/TrackMate/blob/7eda4995900469bbec0516f1d32cdbd9f3d84fd4/src/main/java/fiji/plugin/trackmate/TrackMate.java#L610
-            if ( !trackmate.execDetection() ) { return emptyspots; } // could report the error messages to log ...
-            if ( !trackmate.execInitialSpotFiltering() ) { return emptyspots; }
-            if ( !trackmate.computeSpotFeatures( true ) ) { return emptyspots; }
+    /**
+     * Whether the rounded pixel position lies within region {xstart, xend, ystart, yend, zstart, zend} (inclusive).
+     */
+    private static boolean isInRegion(double[] positionPx, int[] region) {
+        for (int d = 0; d < 3; d++) {
+            long p = round(positionPx[d]);
+            if (p < region[2 * d] || p > region[2 * d + 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        } catch (ArrayIndexOutOfBoundsException e) {
-            IJ.log("The spot detector could not process the data: Roi outside of image");
-            return emptyspots;
+
+    /**
+     * Whether the pixel position is within 1 px of a face of the tile core which is not on the outer region border.
+     */
+    private static boolean isNearInnerBorder(double[] positionPx, int[] core, int[] region) {
+        for (int d = 0; d < 3; d++) {
+            if (core[2 * d] > region[2 * d] && positionPx[d] < core[2 * d] + 1) {
+                return true;
+            }
+            if (core[2 * d + 1] < region[2 * d + 1] && positionPx[d] > core[2 * d + 1] - 1) {
+                return true;
+            }
         }
+        return false;
+    }
 
 
-        //extract results
-        SpotCollection spotCollection = trackmate.getModel().getSpots();
 
-        // avoid duplicates (spots at same position - why is this sometimes possible at all?)
-        //          (could also do more advanced filtering: if spots very close by (below specified dist, then keep the higher quality one)
-        // TODO: posted duplicate-spots issue on image.sc, follow updates: https://forum.image.sc/t/getting-duplicate-spots-with-trackmate-logdetector-scripting/39575
-        List<double[]> positions = new ArrayList<double[]>();
 
-        // collect spots
-        List<Spot> spots=new ArrayList<>();
+    /**
+     * Removes duplicated spots (spots at the same position). Optionally also merges spots which are closer than
+     * mergeDist_um, keeping the one with the higher quality.
+     * Already accepted spots are kept in a SpotGrid, so every spot is only compared to its close neighbors
+     * (runtime about linear in the number of spots).
+     * @param spots e.g. the raw detections of trackmate
+     * @param mergeDist_um merge distance (um). If <=0, only spots at identical positions are removed: of those
+     *                     the first one in the list is kept.
+     *                     If >0, spots are visited in order of decreasing quality and a spot is dropped if an
+     *                     already accepted spot lies within mergeDist_um.
+     * @return the remaining spots, in their original order
+     */
+    public static List<Spot> removeDuplicateSpots(List<Spot> spots, double mergeDist_um) {
+        int numspots = spots.size();
+        boolean doMerge = mergeDist_um > 0;
+
+        // spot coordinates in arrays
+        double[] xs = new double[numspots];
+        double[] ys = new double[numspots];
+        double[] zs = new double[numspots];
+        for (int i = 0; i < numspots; i++) {
+            Spot spot = spots.get(i);
+            xs[i] = spot.getDoublePosition(0);
+            ys[i] = spot.getDoublePosition(1);
+            zs[i] = spot.getDoublePosition(2);
+        }
 
-        for (final Spot spot : spotCollection.iterable(false)) {
-            double[] posSpot = getPositionCalib(spot);
-
-            // check for duplicated position
-            boolean duplicate = false;
-            for (double[] posTmp : positions) {
-                double dist2 = (posTmp[0] - posSpot[0]) * (posTmp[0] - posSpot[0]) + (posTmp[1] - posSpot[1]) * (posTmp[1] - posSpot[1]) +
-                        (posTmp[2] - posSpot[2]) * (posTmp[2] - posSpot[2]);
-                if (dist2 < 0.00000000000001) {
-                    duplicate = true;
-                }
+        // order in which spots are accepted: list order, or by decreasing quality for merging
+        Integer[] visitOrder = new Integer[numspots];
+        for (int i = 0; i < numspots; i++) {
+            visitOrder[i] = i;
+        }
+        if (doMerge) {
+            final double[] qualities = new double[numspots];
+            for (int i = 0; i < numspots; i++) {
+                Double quality = spots.get(i).getFeature(Spot.QUALITY);
+                qualities[i] = (quality == null) ? Double.NEGATIVE_INFINITY : quality;
             }
+            Arrays.sort(visitOrder, (i1, i2) -> Double.compare(qualities[i2], qualities[i1])); // stable sort
+        }
+
+        // squared distance below which a spot counts as duplicate
+        double maxdist2 = doMerge ? Math.max(mergeDist_um * mergeDist_um, maxDuplicateDist2) : Math.nextDown(maxDuplicateDist2);
+        SpotGrid acceptedGrid = new SpotGrid(xs, ys, zs, Math.sqrt(maxdist2));
+
+        boolean[] accepted = new boolean[numspots];
+        int numRemoved = 0;
+        for (int idx : visitOrder) {
+            int idxNeighbor = acceptedGrid.findNearest(xs[idx], ys[idx], zs[idx], maxdist2, null);
 
-            // add spot to list
-            if (!duplicate) {
-                positions.add(posSpot);
-                spots.add(spot);
+            if (idxNeighbor < 0) {
+                accepted[idx] = true;
+                acceptedGrid.add(idx);
             } else {
-                System.out.println("Skip duplicate: pos=" + Arrays.toString(getPositionCalib(spot)) + ", quality:" + spot.getFeature(Spot.QUALITY));
+                numRemoved++;
             }
         }
 
-        IJ.log("Detected spots in channel " + channel + " (within Roi): " + spots.size() + ".");
+        // one summary line per call (not per spot: with tiling there can be many duplicates)
+        if (numRemoved > 0) {
+            if (doMerge) {
+                IJ.log("Merged " + numRemoved + " spots closer than " + mergeDist_um + " um into higher quality neighbors.");
+            } else {
+                IJ.log("Skipped " + numRemoved + " duplicate spots.");
+            }
+        }
 
-        return spots;
+        List<Spot> filteredSpots = new ArrayList<>();
+        for (int i = 0; i < numspots; i++) {
+            if (accepted[i]) {
+                filteredSpots.add(spots.get(i));
+            }
+        }
+        return filteredSpots;
     }
 
 
@@ -345,151 +1882,283 @@ public class SpotProcessor {
      * 	This assignment strategy is not globally optimal but should be more than sufficient since spots are usually
      * 	much sparser distributed in a colocalization study.
      * 	A colocalized spot is placed at the average position and with the average radius of the corresponding spot-pair.
+     * 	Candidate partners are looked up in a SpotGrid (cell size maxdist_um), so the runtime grows about linearly
+     * 	with the number of spots instead of with NA*NB.
+     * 	With setMatchingMode(MatchingMode.OPTIMAL) the pairing is instead globally optimal (maximal number of pairs,
+     * 	minimal total distance), see OptimalMatcher.
      * @param spotsA from detectSpots(...)
      * @param spotsB from detectSpots(...), different channel
      * @param maxdist_um Maximum distance (in um) between spot centers to still be considered colocalized. Typically 1.0*spotradius
-     * @return ColocResult with list of non-colocalized and colocalized spots.
+     * @return ColocResult with list of non-colocalized and colocalized spots. The A/B lists hold the spot objects of
+     *              spotsA/spotsB.
      *              Order for colocalized spots is such that: same list idx -> colocalized spot pair:
      *              spotsAvg_coloc[idx] = mean(spotsA_coloc[idx]+spotsB_coloc[idx])
      */
     public ColocResult findSpotCorrespondences(List<Spot> spotsA, List<Spot> spotsB, double maxdist_um) {
+        // keep the spot objects: callers of the list version expect their own spots in the result lists
+        return findSpotCorrespondences(SpotTable.fromSpots(spotsA, true), SpotTable.fromSpots(spotsB, true), maxdist_um);
+    }
+
+
+    /**
+     * Like findSpotCorrespondences(List, List, double) but works on compact spot tables.
+     * @param spotsA spots of channel A
+     * @param spotsB spots of channel B
+     * @param maxdist_um Maximum distance (in um) between spot centers to still be considered colocalized.
+     * @return ColocResult. The A/B tables are views on spotsA/spotsB.
+     */
+    public ColocResult findSpotCorrespondences(SpotTable spotsA, SpotTable spotsB, double maxdist_um) {
+        // spatial index over spotsB: only spots in neighboring grid cells can be closer than maxdist_um
+        SpotGrid gridB = new SpotGrid(spotsB, Math.abs(maxdist_um)).addAll();
+        return findSpotCorrespondences(spotsA, spotsB, gridB, maxdist_um, numThreads);
+    }
+
+
+    /**
+     * Like findSpotCorrespondences(SpotTable, SpotTable, double) with a given spatial index over spotsB, so that the
+     * index of a channel can be shared by several pairings (see findMultiChannelCorrespondences(..)).
+     * @param gridB SpotGrid over all spots of spotsB, with a cell size >= maxdist_um. Only read.
+     * @param numThreadsMatching threads for the optimal matching mode
+     */
+    ColocResult findSpotCorrespondences(SpotTable spotsA, SpotTable spotsB, SpotGrid gridB, double maxdist_um,
+                                        int numThreadsMatching) {
+        Object event = ProcessingEvents.listener.beginCorrespondence();
+        ProcessingMetrics.Measurement matching = metrics.start(ProcessingMetrics.Stage.MATCHING);
+        ColocResult CR = matchSpots(spotsA, spotsB, gridB, maxdist_um, numThreadsMatching);
+        matching.stop(spotsA.size() + spotsB.size());
+        ProcessingEvents.listener.endCorrespondence(event, imp.getTitle(), spotsA.size(), spotsB.size(),
+                CR.tableAvg_coloc.size(), maxdist_um, matchingMode.name());
+        return CR;
+    }
+
+
+    /**
+     * Pair matching of findSpotCorrespondences(..) with the current matching mode.
+     */
+    private ColocResult matchSpots(SpotTable spotsA, SpotTable spotsB, SpotGrid gridB, double maxdist_um,
+                                   int numThreadsMatching) {
         // work with squared distances
         double maxdist2 = maxdist_um * maxdist_um;
 
         int numspotsA = spotsA.size();
         int numspotsB = spotsB.size();
 
-        // collect spot coordinates in arrays
-        double[][] positionsA = new double[numspotsA][3]; // Nx3
-        for (int i = 0; i < numspotsA; i++) {
-            positionsA[i] = getPositionCalib(spotsA.get(i));
-        }
-
-        double[][] positionsB = new double[numspotsB][3]; // Nx3
-        for (int i = 0; i < numspotsB; i++) {
-            positionsB[i] = getPositionCalib(spotsB.get(i));
+        if (matchingMode == MatchingMode.OPTIMAL) {
+            int[] partnersOfA = OptimalMatcher.match(spotsA, spotsB, gridB, maxdist_um, getExecutor(), numThreadsMatching);
+            int[] partnersOfB = new int[numspotsB];
+            Arrays.fill(partnersOfB, -1);
+            for (int idxA = 0; idxA < numspotsA; idxA++) {
+                if (partnersOfA[idxA] >= 0) {
+                    partnersOfB[partnersOfA[idxA]] = idxA;
+                }
+            }
+            return createColocResult(spotsA, spotsB, partnersOfA, partnersOfB);
         }
 
         // ===== do pair matching =====
-        ArrayList<Integer> idsBurnedSpotsB = new ArrayList<>(); // track the already used ids of spotsB
+        boolean[] burnedSpotsB = new boolean[numspotsB]; // track the already used ids of spotsB
 
         // initialize to track ids of colocalized spots
-        // spotB ids. spotsBPartnersOfSpotsA[4]=6 means: spotsA[4] corresponds to spotsB[6]
-        Integer[] spotsBPartnersOfSpotsA = new Integer[numspotsA];
-        for (int i = 0; i < spotsBPartnersOfSpotsA.length; i++) {
-            spotsBPartnersOfSpotsA[i] = null;
-        }
+        // spotB ids. spotsBPartnersOfSpotsA[4]=6 means: spotsA[4] corresponds to spotsB[6]. -1: no partner
+        int[] spotsBPartnersOfSpotsA = new int[numspotsA];
         // spotsA ids
-        Integer[] spotsAPartnersOfSpotsB = new Integer[numspotsB];
-        for (int i = 0; i < spotsAPartnersOfSpotsB.length; i++) {
-            spotsAPartnersOfSpotsB[i] = null;
-        }
+        int[] spotsAPartnersOfSpotsB = new int[numspotsB];
+        Arrays.fill(spotsBPartnersOfSpotsA, -1);
+        Arrays.fill(spotsAPartnersOfSpotsB, -1);
 
         // loop over spotsA and find the closest spot in spotsB
         for (int idxA = 0; idxA < numspotsA; idxA++) {
-            double[] currentposA = positionsA[idxA];
+            // greedy algorithm: avoid double assignment of same spotB. On equal distance the lower idxB wins.
+            int idColocB = gridB.findNearest(spotsA.x(idxA), spotsA.y(idxA), spotsA.z(idxA), maxdist2, burnedSpotsB);
 
-            // initialize for finding spot pair
-            double mindist2 = Double.POSITIVE_INFINITY; // squared distance
-            Integer idColocA = null; // spotsA id which is a match: null or idxA
-            Integer idColocB = null; // spotsB id which is a match
+            // collect ids if match was found
+            if (idColocB >= 0) {
+                spotsBPartnersOfSpotsA[idxA] = idColocB;
+                spotsAPartnersOfSpotsB[idColocB] = idxA;
+
+                burnedSpotsB[idColocB] = true;
+            }
+        }
+
+        return createColocResult(spotsA, spotsB, spotsBPartnersOfSpotsA, spotsAPartnersOfSpotsB);
+    }
 
-            for (int idxB = 0; idxB < numspotsB; idxB++) {
-                // greedy algorithm: avoid double assignment of same spotB
-                if (idsBurnedSpotsB.contains(idxB)) {
-                    continue;
-                }
 
-                double[] currentposB = positionsB[idxB];
+    /**
+     * Colocalization analysis of N channels: every channel pair is matched like in findSpotCorrespondences(..)
+     * (with the current matching mode), all pairs in parallel. Each channel is indexed only once: its SpotGrid uses
+     * the largest coloc distance of this channel and is shared by all pairs.
+     * Also counts the higher-order coloc sets (spots of 3, 4, .. channels which are all pairwise colocalized).
+     * @param channels channel numbers (for the result tables)
+     * @param spots spots per channel
+     * @param radii_um spot radius per channel (um)
+     * @param distanceFactorColoc spots of channels i and j are colocalized if closer than
+     *                            distanceFactorColoc*0.5*(radius_i+radius_j)
+     * @return pairwise results and coloc set counts
+     * @throws IllegalStateException if the colocalization of a channel pair threw an exception or was interrupted
+     */
+    public MultiColocResult findMultiChannelCorrespondences(int[] channels, SpotTable[] spots, double[] radii_um,
+                                                            double distanceFactorColoc) {
+        final int numChannels = channels.length;
+
+        // one spatial index per channel (B side of the pairs)
+        final SpotGrid[] grids = new SpotGrid[numChannels];
+        for (int j = 0; j < numChannels; j++) {
+            double cellSize = 0;
+            for (int i = 0; i < numChannels; i++) {
+                cellSize = Math.max(cellSize, Math.abs(0.5 * (radii_um[i] + radii_um[j]) * distanceFactorColoc));
+            }
+            grids[j] = new SpotGrid(spots[j], cellSize).addAll();
+        }
 
-                double currentdist2 = Math.pow(currentposA[0] - currentposB[0], 2) + Math.pow(currentposA[1] - currentposB[1], 2) +
-                        Math.pow(currentposA[2] - currentposB[2], 2);
+        // pairs i<j
+        List<int[]> pairIds = new ArrayList<>();
+        for (int i = 0; i < numChannels; i++) {
+            for (int j = i + 1; j < numChannels; j++) {
+                pairIds.add(new int[]{i, j});
+            }
+        }
+        final int numThreadsPair = Math.max(1, numThreads / Math.max(1, pairIds.size()));
 
-                // check if new best match was found
-                if (currentdist2 <= maxdist2 && currentdist2 < mindist2) {
-                    mindist2 = currentdist2;
-                    idColocA = idxA;
-                    idColocB = idxB;
+        SpotProcessor.ColocResult[][] pairs = new SpotProcessor.ColocResult[numChannels][numChannels];
+        if (numThreads < 2 || pairIds.size() < 2) {
+            for (int[] ij : pairIds) {
+                pairs[ij[0]][ij[1]] = findSpotCorrespondences(spots[ij[0]], spots[ij[1]], grids[ij[1]],
+                        0.5 * (radii_um[ij[0]] + radii_um[ij[1]]) * distanceFactorColoc, numThreadsPair);
+            }
+        } else {
+            List<Future<ColocResult>> futures = new ArrayList<>();
+            for (int[] ij : pairIds) {
+                futures.add(getExecutor().submit(() -> findSpotCorrespondences(spots[ij[0]], spots[ij[1]],
+                        grids[ij[1]], 0.5 * (radii_um[ij[0]] + radii_um[ij[1]]) * distanceFactorColoc, numThreadsPair)));
+            }
+            for (int k = 0; k < pairIds.size(); k++) {
+                int[] ij = pairIds.get(k);
+                // a failed or interrupted pair fails the whole colocalization (it would look like "no pairs")
+                try {
+                    pairs[ij[0]][ij[1]] = futures.get(k).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    for (Future<ColocResult> future : futures) { future.cancel(true); }
+                    throw new IllegalStateException("Spot colocalization was interrupted.", e);
+                } catch (ExecutionException e) {
+                    for (Future<ColocResult> future : futures) { future.cancel(true); }
+                    throw new IllegalStateException("Spot colocalization of channels " + channels[ij[0]] + ", " +
+                            channels[ij[1]] + " failed: " + e.getCause(), e.getCause());
                 }
             }
+        }
 
-            // collect ids if match was found
-            if (idColocB != null) {
-                spotsBPartnersOfSpotsA[idColocA] = idColocB;
-                spotsAPartnersOfSpotsB[idColocB] = idColocA;
+        // partner lookup in both directions
+        int[][][] partners = new int[numChannels][numChannels][];
+        for (int[] ij : pairIds) {
+            ColocResult CR = pairs[ij[0]][ij[1]];
+            partners[ij[0]][ij[1]] = CR.partnersOfA;
+            partners[ij[1]][ij[0]] = CR.partnersOfB;
+        }
+
+        return new MultiColocResult(channels, spots, pairs, partners);
+    }
+
+
+    /**
+     * Postprocessing of a pair matching: splits spots in coloc and non-coloc (as views) and creates the average spots.
+     * @param partnersOfA partner id in spotsB of every spot in spotsA, -1 if none
+     * @param partnersOfB partner id in spotsA of every spot in spotsB, -1 if none
+     */
+    private ColocResult createColocResult(SpotTable spotsA, SpotTable spotsB, int[] partnersOfA, int[] partnersOfB) {
+        int numspotsA = spotsA.size();
+        int numspotsB = spotsB.size();
 
-                idsBurnedSpotsB.add(idColocB);
+        // count pairs
+        int numColoc = 0;
+        for (int i = 0; i < numspotsA; i++) {
+            if (partnersOfA[i] >= 0) {
+                numColoc++;
             }
         }
 
-        // === postprocess: split spots in coloc and non-coloc ===
-        // non-colocalized spotsA
-        List<Spot> spotsA_noncoloc = new ArrayList<>();
+        // ids of non-colocalized + colocalized spots. colocalized ones in pair order (order of spotsA)
+        int[] idsA_noncoloc = new int[numspotsA - numColoc];
+        int[] idsA_coloc = new int[numColoc];
+        int[] idsB_coloc = new int[numColoc];
+        int na = 0;
+        int nc = 0;
         for (int i = 0; i < numspotsA; i++) {
-            if (spotsBPartnersOfSpotsA[i] == null) {
-                spotsA_noncoloc.add(spotsA.get(i));
+            if (partnersOfA[i] < 0) {
+                idsA_noncoloc[na++] = i;
+            } else {
+                idsA_coloc[nc] = i;
+                idsB_coloc[nc++] = partnersOfA[i];
             }
         }
 
-        // non-colocalized spotsB
-        List<Spot> spotsB_noncoloc = new ArrayList<>();
+        int numBnoncoloc = 0;
         for (int i = 0; i < numspotsB; i++) {
-            if (spotsAPartnersOfSpotsB[i] == null) {
-                spotsB_noncoloc.add(spotsB.get(i));
+            if (partnersOfB[i] < 0) {
+                numBnoncoloc++;
             }
         }
-
-        // colocalized spots
-        List<Spot> spotsA_coloc = new ArrayList<>();
-        List<Spot> spotsB_coloc = new ArrayList<>();
-        List<Spot> spotsAvg_coloc = new ArrayList<>(); // spots at the avg position and with avg radius of the colocalized pair
-        for (int i = 0; i < numspotsA; i++) {
-            if (spotsBPartnersOfSpotsA[i] != null) {
-                Spot spotA = spotsA.get(i);
-                Spot spotB = spotsB.get(spotsBPartnersOfSpotsA[i]);
-
-                spotsA_coloc.add(spotA);
-                spotsB_coloc.add(spotB);
-
-                // create a new spot at the average position and with average radius
-                double[] posA = getPositionCalib(spotA);
-                double[] posB = getPositionCalib(spotB);
-                Double radA = spotA.getFeature(Spot.RADIUS);
-                Double radB = spotB.getFeature(Spot.RADIUS);
-
-                Spot spotAvg = new Spot(0.5 * (posA[0] + posB[0]), 0.5 * (posA[1] + posB[1]), 0.5 * (posA[2] + posB[2]),
-                        0.5 * (radA + radB), -1);
-                spotsAvg_coloc.add(spotAvg);
+        int[] idsB_noncoloc = new int[numBnoncoloc];
+        int nb = 0;
+        for (int i = 0; i < numspotsB; i++) {
+            if (partnersOfB[i] < 0) {
+                idsB_noncoloc[nb++] = i;
             }
         }
 
-        IJ.log("Computed colocalization: "+spotsAvg_coloc.size()+" colocalized spots.");
+        // spots at the avg position and with avg radius of the colocalized pair
+        SpotTable spotsAvg_coloc = SpotTable.allocate(numColoc);
+        for (int k = 0; k < numColoc; k++) {
+            int a = idsA_coloc[k];
+            int b = idsB_coloc[k];
+            spotsAvg_coloc.set(k, 0.5 * (spotsA.x(a) + spotsB.x(b)), 0.5 * (spotsA.y(a) + spotsB.y(b)),
+                    0.5 * (spotsA.z(a) + spotsB.z(b)), 0.5 * (spotsA.radius(a) + spotsB.radius(b)), -1,
+                    Double.NaN, Double.NaN, spotsA.frame(a));
+        }
+
+        IJ.log("Computed colocalization: "+numColoc+" colocalized spots.");
 
         // should never happen
-        if (spotsA.size()!=(spotsA_coloc.size()+spotsA_noncoloc.size()) ||
-            spotsB.size()!=(spotsB_coloc.size()+spotsB_noncoloc.size())) {
+        if (numspotsB != numColoc + numBnoncoloc) {
             IJ.error("Spot Colocalization","Error in findSpotCorrespondences. Counts don't match.");
         }
 
-        return new ColocResult(spotsA_noncoloc, spotsB_noncoloc, spotsA_coloc, spotsB_coloc, spotsAvg_coloc);
+        return new ColocResult(spotsA.view(idsA_noncoloc), spotsB.view(idsB_noncoloc), spotsA.view(idsA_coloc),
+                spotsB.view(idsB_coloc), spotsAvg_coloc, partnersOfA, partnersOfB);
     }
 
 
 
 
     /**
-     * Adds all counts of a colocalization analysis (spot detections, colocalized count etc.) to a results table
-     * (custom table title). Grabs the open table if available, otherwise creates a new one. Previous results can
-     * optionally be cleared.
-     * @param channelA which channel id, for this and most other parameters, see runFullColocalizationAnalyis(...)
-     * @param channelB
-     * @param CR: colocalization result obtained from findSpotCorrespondences(...)
-     * @return summary results table
-     * */
-    private ResultsTable fillSummaryColocTable(int channelA, int channelB, ColocResult CR , boolean clearTable) {
+     * Adds the spots (radius of the first spot) to the overlay: as OvalRois, or as one SpotOverlayRoi if there would
+     * be more than maxOverlayRois of them.
+     */
+    private void addSpotsToOverlay(Overlay ov, SpotTable spots, Color color) {
+        if (spots.size() == 0) {
+            return;
+        }
+        ProcessingMetrics.Measurement overlay = metrics.start(ProcessingMetrics.Stage.OVERLAY);
+        double rad_um = spots.radius(0);
+        if (SpotVisualization.estimateNumOverlayRois(imp, spots.size(), rad_um) > maxOverlayRois) {
+            SpotVisualization.createLazyOverlayOfSpots(imp, spots, rad_um, ov, color);
+        } else {
+            SpotVisualization.createOverlayOfSpots(imp, spots, rad_um, ov, color);
+        }
+        overlay.stop(spots.size());
+    }
+
 
-        // add counts to results table
-        TextWindow window = (TextWindow) WindowManager.getWindow(titleSummaryTable);
+    /**
+     * Grabs the open results table with this title if available, otherwise creates a new one. Previous results can
+     * optionally be cleared.
+     * @param title custom table title
+     * @param clearTable if True, table is emptied
+     * @return results table
+     */
+    private ResultsTable getResultsTable(String title, boolean clearTable) {
+        TextWindow window = (TextWindow) WindowManager.getWindow(title);
         ResultsTable rt;
         if (window!=null) {
             rt = window.getTextPanel().getResultsTable();
@@ -504,196 +2173,331 @@ public class SpotProcessor {
         rt.setPrecision(4);
         rt.showRowNumbers(true);
 
+        return rt;
+    }
+
+
+    /**
+     * Adds all counts of a colocalization analysis (spot detections, colocalized count etc.) to a results table
+     * or other result sink. One row per call. For time-lapse images a frame column is added.
+     * @param rt summary results sink
+     * @param channelA which channel id, for this and most other parameters, see runFullColocalizationAnalyis(...)
+     * @param channelB
+     * @param frame time point of CR (count starts at 1)
+     * @param CR: colocalization result obtained from findSpotCorrespondences(...)
+     * */
+    public void fillSummaryColocTable(ResultSink rt, int channelA, int channelB, int frame, ColocResult CR) {
+        fillSummaryColocTable(rt, imp.getTitle(), channelA, channelB, frame, CR);
+    }
+
+
+    /**
+     * Like fillSummaryColocTable(ResultSink, int, int, int, ColocResult), with the given row label.
+     */
+    private void fillSummaryColocTable(ResultSink rt, String label, int channelA, int channelB, int frame, ColocResult CR) {
+
         String descrA = "(ch "+channelA+")";
         String descrB="(ch "+channelB+")";
 
-        int countA=CR.spotsA_noncoloc.size()+CR.spotsA_coloc.size();
-        int countB=CR.spotsB_noncoloc.size()+CR.spotsB_coloc.size();
+        int countA=CR.tableA_noncoloc.size()+CR.tableA_coloc.size();
+        int countB=CR.tableB_noncoloc.size()+CR.tableB_coloc.size();
 
         rt.incrementCounter();
-        rt.addLabel(imp.getTitle());
+        rt.addLabel(label);
+        if (addFrameColumn(rt)) {
+            rt.addValue("frame", frame);
+        }
         rt.addValue("Count total " + descrA, countA);
         rt.addValue("Count total " + descrB, countB);
-        rt.addValue("Count coloc ", CR.spotsAvg_coloc.size());
-        rt.addValue("Count not coloc "+descrA, CR.spotsA_noncoloc.size());
-        rt.addValue("Count not coloc "+descrB, CR.spotsB_noncoloc.size());
+        rt.addValue("Count coloc ", CR.tableAvg_coloc.size());
+        rt.addValue("Count not coloc "+descrA, CR.tableA_noncoloc.size());
+        rt.addValue("Count not coloc "+descrB, CR.tableB_noncoloc.size());
         if (countA>0) {
-            rt.addValue("Fraction coloc "+descrA, CR.spotsAvg_coloc.size()/ (float) countA);
+            rt.addValue("Fraction coloc "+descrA, CR.tableAvg_coloc.size()/ (float) countA);
         }
         else {
             rt.addValue("Fraction coloc " + descrA, Double.NaN);
         }
         if (countB>0) {
-            rt.addValue("Fraction coloc " + descrB, CR.spotsAvg_coloc.size() /(float) countB);
+            rt.addValue("Fraction coloc " + descrB, CR.tableAvg_coloc.size() /(float) countB);
         }
         else {
             rt.addValue("Fraction coloc " + descrB, Double.NaN);
         }
-
-        return rt;
     }
 
 
 
 
     /**
-     * Adds all spots to a results table (custom table title). Added spot properties are channel, position,
-     * radius and whether they are colocalized. Use after colocalization analysis.
-     *  Grabs the open table if available, otherwise creates a new one. Previous results can optionally be cleared.
-     * @param channelA which channel id, for this and most other parameters, see runFullColocalizationAnalyis(...)
+     * Adds the colocalization curve of a distance factor sweep to a results table or other result sink. One row per
+     * distance factor. For time-lapse images a frame column is added.
+     * @param rt sweep results sink
+     * @param channelA which channel id, see runFullDistanceFactorSweep(...)
      * @param channelB
-     * @param CR: colocalization result obtained from findSpotCorrespondences(...)
-     * @param clearTable if True, table is emptied before new valueS are added
-     * @return detailed results table
+     * @param frame time point of the sweep (count starts at 1)
+     * @param sweep result of sweepDistanceFactors(...)
      */
-    private ResultsTable fillSpotsColocTable(int channelA, int channelB, ColocResult CR, boolean clearTable) {
+    public void fillSweepTable(ResultSink rt, int channelA, int channelB, int frame, DistanceFactorSweep sweep) {
+        String descrA = "(ch "+channelA+")";
+        String descrB = "(ch "+channelB+")";
 
-        // add counts to results table
-        TextWindow window = (TextWindow) WindowManager.getWindow(titleDetailedTable);
-        ResultsTable rt;
-        if (window!=null) {
-            rt = window.getTextPanel().getResultsTable();
-        } else {
-            rt = new ResultsTable();
+        for (int k = 0; k < sweep.size(); k++) {
+            rt.incrementCounter();
+            rt.addLabel(imp.getTitle());
+            if (addFrameColumn(rt)) {
+                rt.addValue("frame", frame);
+            }
+            rt.addValue("Distance factor", sweep.getDistanceFactor(k));
+            rt.addValue("Max distance (um)", sweep.getMaxDistance(k));
+            rt.addValue("Count total " + descrA, sweep.getNumSpotsA());
+            rt.addValue("Count total " + descrB, sweep.getNumSpotsB());
+            rt.addValue("Count coloc ", sweep.getNumColoc(k));
+            rt.addValue("Fraction coloc " + descrA, sweep.getFractionA(k));
+            rt.addValue("Fraction coloc " + descrB, sweep.getFractionB(k));
         }
+    }
 
-        if (clearTable) {
-            rt.reset();
-        }
 
-        rt.setPrecision(4);
-        rt.showRowNumbers(true);
 
-        appendSpotsToTable(rt,CR.spotsA_coloc,channelA,true,true);
-        appendSpotsToTable(rt,CR.spotsA_noncoloc,channelA,true,false);
-        appendSpotsToTable(rt,CR.spotsB_coloc,channelB,true,true);
-        appendSpotsToTable(rt,CR.spotsB_noncoloc,channelB,true,false);
 
-        return rt;
+    /**
+     * Adds all spots to a results table or other result sink. Added spot properties are channel, position,
+     * radius and whether they are colocalized (1/0). Use after colocalization analysis.
+     * @param rt detailed results sink
+     * @param channelA which channel id, for this and most other parameters, see runFullColocalizationAnalyis(...)
+     * @param channelB
+     * @param CR: colocalization result obtained from findSpotCorrespondences(...)
+     */
+    public void fillSpotsColocTable(ResultSink rt, int channelA, int channelB, ColocResult CR) {
+        appendSpotsToTable(rt,CR.tableA_coloc,channelA,true,true);
+        appendSpotsToTable(rt,CR.tableA_noncoloc,channelA,true,false);
+        appendSpotsToTable(rt,CR.tableB_coloc,channelB,true,true);
+        appendSpotsToTable(rt,CR.tableB_noncoloc,channelB,true,false);
     }
 
 
     /**
-     * Adds all detected spots to a results table (custom table title). Added spot properties are channel, position,
-     * radius. Use after spot detection (in a single channel).
-     *  Grabs the open table if available, otherwise creates a new one. Previous results can optionally be cleared.
+     * Adds all detected spots to a results table or other result sink. Added spot properties are channel,
+     * position, radius. Use after spot detection (in a single channel).
+     * @param rt spots results sink
      * @param channel which channel id was used
      * @param spots: list of spots from detectSpots(...)
-     * @param clearTable if True, table is emptied before new valueS are added
-     * @return detailed results table
      */
-    private ResultsTable fillSpotsDetectionTable(int channel, List<Spot> spots, boolean clearTable) {
+    public void fillSpotsDetectionTable(ResultSink rt, int channel, List<Spot> spots) {
+        appendSpotsToTable(rt,SpotTable.fromSpots(spots),channel,false,false);
+    }
 
-        // add counts to results table
-        TextWindow window = (TextWindow) WindowManager.getWindow(titleSpotsTable);
-        ResultsTable rt;
-        if (window!=null) {
-            rt = window.getTextPanel().getResultsTable();
-        } else {
-            rt = new ResultsTable();
-        }
 
-        if (clearTable) {
-            rt.reset();
-        }
 
-        rt.setPrecision(4);
-        rt.showRowNumbers(true);
 
-        appendSpotsToTable(rt,spots,channel,false,false);
+    /**
+     * Helper for filling results tables
+     * addColocInfo: if True, isColocalized (1/0) is added as column, otherwise it's ignored
+     */
+    private void appendSpotsToTable (ResultSink rt, SpotTable spots, int channel, boolean addColocInfo, boolean isColocalized) {
+        Object event = ProcessingEvents.listener.beginExport();
+        ProcessingMetrics.Measurement tables = metrics.start(ProcessingMetrics.Stage.TABLES);
+        for (int i = 0; i < spots.size(); i++) {
+            addSpotRow(rt, spots, i, channel);
+            if (addColocInfo) {
+                rt.addValue("is_colocalized", isColocalized ? 1 : 0);
+            }
+        }
+        tables.stop(spots.size());
+        ProcessingEvents.listener.endExport(event, imp.getTitle(), rt.getClass().getSimpleName(), spots.size());
+    }
 
-        return rt;
+
+    /**
+     * Helper for filling results tables: the frame column is added for time-lapse images, and always for sinks
+     * with fixed columns, which may be shared by single time point and time-lapse images (see ResultSink).
+     */
+    private boolean addFrameColumn(ResultSink rt) {
+        return imp.getNFrames() > 1 || rt.hasFixedColumns();
     }
 
 
+    /**
+     * Helper for filling results tables: starts a new row with the properties of spot i.
+     */
+    private void addSpotRow(ResultSink rt, SpotTable spots, int i, int channel) {
+        Calibration calib = imp.getCalibration();
+        double x = spots.x(i);
+        double y = spots.y(i);
+        double z = spots.z(i);
+
+        rt.incrementCounter();
+        rt.addLabel(imp.getTitle());
+        rt.addValue("channel", channel);
+        if (addFrameColumn(rt)) {
+            rt.addValue("frame", spots.frame(i));
+        }
+        rt.addValue("x(um)", x);
+        rt.addValue("y(um)", y);
+        rt.addValue("z(um)", z);
+        rt.addValue("input_radius(um)", spots.radius(i));
+        rt.addValue("estimated_radius(um)", spots.estimatedRadius(i));
+        rt.addValue("mean_intensity (within input_radius)", spots.meanIntensity(i));
+        rt.addValue("x(pixel)", x / calib.pixelWidth);
+        rt.addValue("y(pixel)", y / calib.pixelHeight);
+        rt.addValue("z(pixel)", z / calib.pixelDepth);
+    }
 
 
     /**
-     * Helper for filling results tables
-     * addColocInfo: if True, isColocalized (true/false) is added as column, otherwise it's ignored
+     * Adds the counts of an N-channel colocalization analysis to a results table or other result sink, one row per
+     * call: total count per channel, coloc count per channel pair, fraction of the spots of a channel which are
+     * colocalized with another channel, and the number of coloc sets of 3 or more channels.
+     * @param rt summary results sink
+     * @param frame time point of MR (count starts at 1)
+     * @param MR result of findMultiChannelCorrespondences(..)
      */
-    private void appendSpotsToTable (ResultsTable rt, List<Spot> spots, int channel, boolean addColocInfo, boolean isColocalized) {
-        for (int i = 0; i < spots.size(); i++) {
-            Spot spot = spots.get(i);
+    public void fillSummaryMultiColocTable(ResultSink rt, int frame, MultiColocResult MR) {
+        int numChannels = MR.getNumChannels();
+
+        rt.incrementCounter();
+        rt.addLabel(imp.getTitle());
+        if (addFrameColumn(rt)) {
+            rt.addValue("frame", frame);
+        }
+        for (int i = 0; i < numChannels; i++) {
+            rt.addValue("Count total (ch " + MR.getChannel(i) + ")", MR.getSpots(i).size());
+        }
+        for (int i = 0; i < numChannels; i++) {
+            for (int j = i + 1; j < numChannels; j++) {
+                rt.addValue("Count coloc (ch " + MR.getChannel(i) + ", " + MR.getChannel(j) + ")", MR.countColoc(i, j));
+            }
+        }
+        for (int i = 0; i < numChannels; i++) {
+            int count = MR.getSpots(i).size();
+            for (int j = 0; j < numChannels; j++) {
+                if (i != j) {
+                    rt.addValue("Fraction coloc (ch " + MR.getChannel(i) + " with ch " + MR.getChannel(j) + ")",
+                            (count > 0) ? MR.countColoc(i, j) / (float) count : Double.NaN);
+                }
+            }
+        }
+        for (int mask = 0; mask < (1 << numChannels); mask++) {
+            if (Integer.bitCount(mask) >= 3) {
+                StringBuilder name = new StringBuilder("Count coloc (ch ");
+                for (int i = 0; i < numChannels; i++) {
+                    if ((mask & (1 << i)) != 0) {
+                        name.append(MR.getChannel(i)).append((mask >> (i + 1)) != 0 ? ", " : ")");
+                    }
+                }
+                rt.addValue(name.toString(), MR.countColocSet(mask));
+            }
+        }
+    }
 
-            double[] positionCalib = getPositionCalib(spot);
-            double[] positionPx = getPositionPx(spot, imp.getCalibration());
 
-            rt.incrementCounter();
-            rt.addLabel(imp.getTitle());
-            rt.addValue("channel", channel);
-            rt.addValue("x(um)", positionCalib[0]);
-            rt.addValue("y(um)", positionCalib[1]);
-            rt.addValue("z(um)", positionCalib[2]);
-            rt.addValue("input_radius(um)", spot.getFeature(Spot.RADIUS));
-            rt.addValue("estimated_radius(um)", (spot.getFeature(SpotRadiusEstimatorFactory.ESTIMATED_DIAMETER) / 2));
-            rt.addValue("mean_intensity (within input_radius)", spot.getFeature(SpotIntensityAnalyzerFactory.MEAN_INTENSITY));
-            rt.addValue("x(pixel)", positionPx[0]);
-            rt.addValue("y(pixel)", positionPx[1]);
-            rt.addValue("z(pixel)", positionPx[2]);
-            rt.addValue("x(pixel)", positionPx[0]);
-            rt.addValue("y(pixel)", positionPx[1]);
-            rt.addValue("z(pixel)", positionPx[2]);
-            if (addColocInfo) {
-                rt.addValue("is_colocalized", String.valueOf(isColocalized));
+    /**
+     * Adds all spots of an N-channel colocalization analysis to a results table or other result sink. Besides the
+     * spot properties, there is one column per channel telling whether the spot is colocalized with a spot of
+     * this channel (1/0, NaN for its own channel).
+     * @param rt detailed results sink
+     * @param MR result of findMultiChannelCorrespondences(..)
+     */
+    public void fillSpotsMultiColocTable(ResultSink rt, MultiColocResult MR) {
+        Object event = ProcessingEvents.listener.beginExport();
+        ProcessingMetrics.Measurement tables = metrics.start(ProcessingMetrics.Stage.TABLES);
+        int numSpots = 0;
+        int numChannels = MR.getNumChannels();
+        for (int i = 0; i < numChannels; i++) {
+            SpotTable spots = MR.getSpots(i);
+            for (int k = 0; k < spots.size(); k++) {
+                addSpotRow(rt, spots, k, MR.getChannel(i));
+                for (int j = 0; j < numChannels; j++) {
+                    rt.addValue("coloc_with_ch" + MR.getChannel(j), (i == j) ? Double.NaN :
+                            (MR.getPartner(i, j, k) >= 0 ? 1 : 0));
+                }
             }
+            numSpots += spots.size();
         }
+        tables.stop(numSpots);
+        ProcessingEvents.listener.endExport(event, imp.getTitle(), rt.getClass().getSimpleName(), numSpots);
+    }
+
+
+
+    /**
+     * Overlay part of one preview channel slot and the detection parameters (incl. pixel fingerprint, roi, time
+     * point) it was computed with. Guarded by previewParts.
+     */
+    private static class PreviewPart {
+        DetectionCache.Key key;
+        Overlay overlay;
     }
 
 
 
     /**
-     * Little helper class to collect the lists of colocalized and noncolocalized spots.
-     * spotsAvg_coloc: spots are located at the avg position and have the avg radius of the colocalized spot pair from
-     *      channel A and B. Basically: spotsAvg_coloc[idx] = mean(spotsA_coloc[idx]+spotsB_coloc[idx])
+     * Little helper class to collect the colocalized and noncolocalized spots.
+     * tableAvg_coloc: spots are located at the avg position and have the avg radius of the colocalized spot pair from
+     *      channel A and B. Basically: tableAvg_coloc[idx] = mean(tableA_coloc[idx]+tableB_coloc[idx])
+     * The spots are stored as compact SpotTables (the A/B tables are views on the spots of each channel).
+     * The spots* lists offer the same spots as trackmate spot objects, built on first access of a list (see
+     * SpotTable.asSpotList()). For findSpotCorrespondences(List, List, double) the A/B lists hold the original spot
+     * objects, otherwise (e.g. full analysis, time points) new spots created from the table columns.
      */
     public static class ColocResult {
+        final public SpotTable tableA_noncoloc;
+        final public SpotTable tableB_noncoloc;
+        final public SpotTable tableA_coloc;
+        final public SpotTable tableB_coloc;
+        final public SpotTable tableAvg_coloc;
+
         final public List<Spot> spotsA_noncoloc;
         final public List<Spot> spotsB_noncoloc;
         final public List<Spot> spotsA_coloc;
         final public List<Spot> spotsB_coloc;
         final public List<Spot> spotsAvg_coloc;
 
-        ColocResult(List<Spot> spotsA_noncoloc, List<Spot> spotsB_noncoloc, List<Spot> spotsA_coloc,
-                    List<Spot> spotsB_coloc, List<Spot> spotsAvg_coloc) {
-            this.spotsA_noncoloc = spotsA_noncoloc;
-            this.spotsB_noncoloc = spotsB_noncoloc;
-            this.spotsA_coloc = spotsA_coloc;
-            this.spotsB_coloc = spotsB_coloc;
-            this.spotsAvg_coloc = spotsAvg_coloc;
+        // partner index in B of every spot of A and vice versa, -1 if none. null if not known
+        final int[] partnersOfA;
+        final int[] partnersOfB;
+
+        ColocResult(SpotTable tableA_noncoloc, SpotTable tableB_noncoloc, SpotTable tableA_coloc,
+                    SpotTable tableB_coloc, SpotTable tableAvg_coloc) {
+            this(tableA_noncoloc, tableB_noncoloc, tableA_coloc, tableB_coloc, tableAvg_coloc, null, null);
+        }
+
+        ColocResult(SpotTable tableA_noncoloc, SpotTable tableB_noncoloc, SpotTable tableA_coloc,
+                    SpotTable tableB_coloc, SpotTable tableAvg_coloc, int[] partnersOfA, int[] partnersOfB) {
+            this.tableA_noncoloc = tableA_noncoloc;
+            this.tableB_noncoloc = tableB_noncoloc;
+            this.tableA_coloc = tableA_coloc;
+            this.tableB_coloc = tableB_coloc;
+            this.tableAvg_coloc = tableAvg_coloc;
+
+            this.spotsA_noncoloc = tableA_noncoloc.asSpotList();
+            this.spotsB_noncoloc = tableB_noncoloc.asSpotList();
+            this.spotsA_coloc = tableA_coloc.asSpotList();
+            this.spotsB_coloc = tableB_coloc.asSpotList();
+            this.spotsAvg_coloc = tableAvg_coloc.asSpotList();
+
+            this.partnersOfA = partnersOfA;
+            this.partnersOfB = partnersOfB;
         }
     }
 
 
     /**
-     * Adds the spots as multi point roi to the roi manager. All spots are added to channel 1. (but varying x,y,slice)
+     * Adds the spots as multi point roi to the roi manager. Each point is placed in its channel, slice and frame.
+     * The roi is built in one pass (SpotVisualization.createPointRoi(..)), the image display is not touched.
      * @param spots
      * @param spotsName name
      * @param channel channel to which the spot belongs
      */
-    private void addSpotsToRoiManager(List<Spot> spots, String spotsName, int channel) {
-        int oldC = imp.getC();
-        int oldZ=imp.getZ();
-        int oldT=imp.getT();
-
-        PointRoi points = new PointRoi();
-
-        for (int i = 0; i < spots.size(); i++) {
-            Spot spot = spots.get(i);
-
-            double[] positionPx = getPositionPx(spot, imp.getCalibration());
-            int slice = (int) round(positionPx[2] + 1);
-
-            imp.setPositionWithoutUpdate(channel, slice, 1);
-
-            points.addPoint(imp, positionPx[0], positionPx[1]);
-            points.setName(spotsName);
-        }
+    private void addSpotsToRoiManager(SpotTable spots, String spotsName, int channel) {
+        ProcessingMetrics.Measurement roiManager = metrics.start(ProcessingMetrics.Stage.ROI_MANAGER);
+        PointRoi points = SpotVisualization.createPointRoi(imp, spots, channel);
+        points.setName(spotsName);
 
         RoiManager rm = RoiManager.getRoiManager();
         rm.addRoi(points);
-
-        imp.setPosition(oldC,oldZ,oldT);
+        roiManager.stop(spots.size());
     }
 
 
@@ -713,17 +2517,15 @@ public class SpotProcessor {
 
 
     /**
-     * Returns x,y,z position of spot object, in um units
+     * Returns the time point of a spot (count starts at 1), from the trackmate FRAME feature. 1 if not set.
      * @param spot Trackmate spot
-     * @return [x,y,z] array in um
+     * @return frame
      */
-    private static double[] getPositionCalib(Spot spot) {
-        double[] position = new double[3];
-        position[0] = spot.getDoublePosition(0);
-        position[1] = spot.getDoublePosition(1);
-        position[2] = spot.getDoublePosition(2);
-        return position;
+    static int getFrame(Spot spot) {
+        Double frame = spot.getFeature(Spot.FRAME);
+        return (frame == null) ? 1 : (int) round(frame) + 1;
     }
 
 
+
 }
@@ -0,0 +1,336 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.spot.SpotIntensityAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotRadiusEstimatorFactory;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Compact spot storage: one primitive array per spot property (struct of arrays) instead of one trackmate Spot object
+ * with a feature map per spot. Used for colocalization matching, results export and visualization.
+ * Positions and radii are in um. Missing features are NaN, a missing frame is 1.
+ * A SpotTable can be a view on the rows of another table (see view(..)): it shares the columns, no data is copied.
+ * A table keeps no trackmate spots, unless created with fromSpots(spots, true): then asSpotList() returns the
+ * original spot objects (as needed by the List<Spot> methods of SpotProcessor), at the memory cost of these spots.
+ * Tables are not modified after creation.
+ */
+public class SpotTable {
+
+    // columns (storage). a view uses only the rows listed in rows
+    private final double[] x;
+    private final double[] y;
+    private final double[] z;
+    // exported values are kept in double precision, so that results tables don't change
+    private final double[] radius;
+    private final float[] quality;
+    private final double[] meanIntensity;
+    private final double[] estimatedRadius;
+    private final int[] frame; // count starts at 1
+    // trackmate spot of each storage row, see fromSpots(List, boolean). null: spots are not kept
+    private final Spot[] sources;
+
+    // storage row of each table row. null: all storage rows, in order
+    private final int[] rows;
+    private final int size;
+
+
+    private SpotTable(double[] x, double[] y, double[] z, double[] radius, float[] quality, double[] meanIntensity,
+                      double[] estimatedRadius, int[] frame, Spot[] sources, int[] rows) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.radius = radius;
+        this.quality = quality;
+        this.meanIntensity = meanIntensity;
+        this.estimatedRadius = estimatedRadius;
+        this.frame = frame;
+        this.sources = sources;
+        this.rows = rows;
+        this.size = (rows == null) ? x.length : rows.length;
+    }
+
+
+    /**
+     * Creates an empty table with n rows, to be filled via set(..) by the creator.
+     */
+    static SpotTable allocate(int n) {
+        return allocate(n, null);
+    }
+
+
+    private static SpotTable allocate(int n, Spot[] sources) {
+        return new SpotTable(new double[n], new double[n], new double[n], new double[n], new float[n], new double[n],
+                new double[n], new int[n], sources, null);
+    }
+
+
+    /**
+     * Copies position, radius, quality, mean intensity, estimated radius and frame of the trackmate spots.
+     * The table keeps no reference to the spots.
+     * @param spots e.g. from SpotProcessor.detectSpots(..)
+     */
+    public static SpotTable fromSpots(List<Spot> spots) {
+        return fromSpots(spots, false);
+    }
+
+
+    /**
+     * Like fromSpots(List), optionally keeping a reference to the spots.
+     * @param keepSpots whether spot(..) and asSpotList() return the original spot objects (with all their features)
+     *                  instead of new ones. The spots then stay in memory as long as the table (or a view of it).
+     */
+    public static SpotTable fromSpots(List<Spot> spots, boolean keepSpots) {
+        SpotTable table = allocate(spots.size(), keepSpots ? spots.toArray(new Spot[0]) : null);
+        int i = 0;
+        for (Spot spot : spots) {
+            Double estimatedDiameter = spot.getFeature(SpotRadiusEstimatorFactory.ESTIMATED_DIAMETER);
+            table.set(i++, spot.getDoublePosition(0), spot.getDoublePosition(1), spot.getDoublePosition(2),
+                    feature(spot, Spot.RADIUS), feature(spot, Spot.QUALITY),
+                    feature(spot, SpotIntensityAnalyzerFactory.MEAN_INTENSITY),
+                    (estimatedDiameter == null) ? Double.NaN : 0.5 * estimatedDiameter, SpotProcessor.getFrame(spot));
+        }
+        return table;
+    }
+
+
+    /**
+     * Concatenates the rows of several tables (e.g. of all time points) into a new table.
+     */
+    public static SpotTable concat(List<SpotTable> tables) {
+        int n = 0;
+        for (SpotTable table : tables) {
+            n += table.size();
+        }
+        SpotTable result = allocate(n);
+        int i = 0;
+        for (SpotTable table : tables) {
+            for (int k = 0; k < table.size(); k++) {
+                result.set(i++, table.x(k), table.y(k), table.z(k), table.radius(k), table.quality(k),
+                        table.meanIntensity(k), table.estimatedRadius(k), table.frame(k));
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Sets all properties of storage row i. Only for tables created with allocate(..).
+     */
+    void set(int i, double x, double y, double z, double radius, double quality, double meanIntensity,
+             double estimatedRadius, int frame) {
+        this.x[i] = x;
+        this.y[i] = y;
+        this.z[i] = z;
+        this.radius[i] = radius;
+        this.quality[i] = (float) quality;
+        this.meanIntensity[i] = meanIntensity;
+        this.estimatedRadius[i] = estimatedRadius;
+        this.frame[i] = frame;
+    }
+
+
+    /**
+     * Zero-copy view on a subset of the rows.
+     * @param rowIds rows of this table, in the order they should appear in the view. The array is not copied.
+     */
+    public SpotTable view(int[] rowIds) {
+        int[] storageRows = rowIds;
+        if (rows != null) {
+            storageRows = new int[rowIds.length];
+            for (int k = 0; k < rowIds.length; k++) {
+                storageRows[k] = rows[rowIds[k]];
+            }
+        }
+        return new SpotTable(x, y, z, radius, quality, meanIntensity, estimatedRadius, frame, sources, storageRows);
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+    private int row(int i) {
+        return (rows == null) ? i : rows[i];
+    }
+
+    public double x(int i) {
+        return x[row(i)];
+    }
+
+    public double y(int i) {
+        return y[row(i)];
+    }
+
+    public double z(int i) {
+        return z[row(i)];
+    }
+
+    public double radius(int i) {
+        return radius[row(i)];
+    }
+
+    public double quality(int i) {
+        return quality[row(i)];
+    }
+
+    public double meanIntensity(int i) {
+        return meanIntensity[row(i)];
+    }
+
+    public double estimatedRadius(int i) {
+        return estimatedRadius[row(i)];
+    }
+
+    /** time point, count starts at 1 */
+    public int frame(int i) {
+        return frame[row(i)];
+    }
+
+
+    /**
+     * x coordinates of all rows as contiguous array. Returns the column itself (do not modify) unless this is a view.
+     */
+    double[] xs() {
+        return column(x);
+    }
+
+    double[] ys() {
+        return column(y);
+    }
+
+    double[] zs() {
+        return column(z);
+    }
+
+    private double[] column(double[] values) {
+        if (rows == null) {
+            return values;
+        }
+        double[] result = new double[size];
+        for (int k = 0; k < size; k++) {
+            result[k] = values[rows[k]];
+        }
+        return result;
+    }
+
+
+    /**
+     * Creates a trackmate spot for row i (position, radius, quality, frame and the available features).
+     */
+    public Spot toSpot(int i) {
+        int r = row(i);
+        Spot spot = new Spot(x[r], y[r], z[r], radius[r], quality[r]);
+        spot.putFeature(Spot.FRAME, (double) (frame[r] - 1));
+        if (!Double.isNaN(meanIntensity[r])) {
+            spot.putFeature(SpotIntensityAnalyzerFactory.MEAN_INTENSITY, meanIntensity[r]);
+        }
+        if (!Double.isNaN(estimatedRadius[r])) {
+            spot.putFeature(SpotRadiusEstimatorFactory.ESTIMATED_DIAMETER, 2.0 * estimatedRadius[r]);
+        }
+        return spot;
+    }
+
+
+    /**
+     * @return new list with one new trackmate spot per row
+     */
+    public List<Spot> toSpots() {
+        List<Spot> spots = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            spots.add(toSpot(i));
+        }
+        return spots;
+    }
+
+
+    /**
+     * @return the trackmate spot of row i: the original spot if the table was created by fromSpots(spots, true) (same
+     * object, with all its features), otherwise a new spot (see toSpot(..))
+     */
+    public Spot spot(int i) {
+        return (sources != null) ? sources[row(i)] : toSpot(i);
+    }
+
+
+    /**
+     * List of the trackmate spots of all rows (see spot(..)), for code which works on trackmate spots.
+     * The list is materialized on first access, so repeated accesses return the same spot objects and changes of
+     * the spots (or of the list) are kept. Until then only the compact table is held.
+     */
+    public List<Spot> asSpotList() {
+        return new LazySpotList(this);
+    }
+
+
+    @Override
+    public String toString() {
+        return "SpotTable[" + size + " spots" + ((rows == null) ? "" : ", view") + "]";
+    }
+
+
+    /**
+     * List which materializes the spots of a table on first access (see asSpotList()).
+     */
+    private static class LazySpotList extends AbstractList<Spot> {
+        private SpotTable table;
+        private List<Spot> spots = null;
+
+        LazySpotList(SpotTable table) {
+            this.table = table;
+        }
+
+        private synchronized List<Spot> spots() {
+            if (spots == null) {
+                spots = new ArrayList<>(table.size());
+                for (int i = 0; i < table.size(); i++) {
+                    spots.add(table.spot(i));
+                }
+                table = null;
+            }
+            return spots;
+        }
+
+        @Override
+        public Spot get(int i) {
+            return spots().get(i);
+        }
+
+        @Override
+        public Spot set(int i, Spot spot) {
+            return spots().set(i, spot);
+        }
+
+        @Override
+        public void add(int i, Spot spot) {
+            spots().add(i, spot);
+            modCount++;
+        }
+
+        @Override
+        public Spot remove(int i) {
+            modCount++;
+            return spots().remove(i);
+        }
+
+        @Override
+        public synchronized int size() {
+            return (spots == null) ? table.size() : spots.size();
+        }
+    }
+
+
+    private static double feature(Spot spot, String name) {
+        Double value = spot.getFeature(name);
+        return (value == null) ? Double.NaN : value;
+    }
+
+}
@@ -9,6 +9,7 @@ import fiji.plugin.trackmate.Spot;
 import ij.ImagePlus;
 import ij.gui.OvalRoi;
 import ij.gui.Overlay;
+import ij.gui.PointRoi;
 import ij.measure.Calibration;
 
 import java.awt.*;
@@ -20,7 +21,8 @@ import static java.lang.Math.sqrt;
 public class SpotVisualization {
     /** Draws the spots as 3-dimensional spheres/circles into an overlay. Works also for 2D.
      * See also createOverlayOfSpots(..) variants where rad_um, ov and color are optional.
-     * Inspired by trackmate spot visualization.
+     * Inspired by trackmate spot visualization. For time-lapse images each spot is drawn in its own time point
+     * (trackmate FRAME feature).
      * Variables in this function are in pixel units unless appended  by um.
      * @param imp
      * @param spots list of trackmate spot objects. contains center coodinates. obtained from detectSpots(..)
@@ -30,6 +32,13 @@ public class SpotVisualization {
      * @return ov with added spots
      */
     public static Overlay createOverlayOfSpots(final ImagePlus imp, final List<Spot> spots, double rad_um, Overlay ov, Color color) {
+        return createOverlayOfSpots(imp, SpotTable.fromSpots(spots), rad_um, ov, color);
+    }
+
+    /** Like createOverlayOfSpots(ImagePlus, List, double, Overlay, Color) but for a spot table
+     * (e.g. from a ColocResult).
+     */
+    public static Overlay createOverlayOfSpots(final ImagePlus imp, final SpotTable spots, double rad_um, Overlay ov, Color color) {
         // pretty plotting
         double xoffset = 0.5; // px (overlay seems shifted when being drawn)
         double yoffset = 0.5;
@@ -38,6 +47,7 @@ public class SpotVisualization {
         // get image properties
         Calibration calib = imp.getCalibration();
         int nChannels = imp.getNChannels();
+        int nSlices = imp.getNSlices();
         boolean isHyperstack=imp.isHyperStack();
 
         // if no spots exist, we're already done
@@ -48,16 +58,18 @@ public class SpotVisualization {
         double rad0z = rad_um / calib.pixelDepth;
 
         // == process all spots ==
-        for (Spot spot : spots) {
+        double[] pos= new double[3]; // x,y,z
+        for (int i = 0; i < spots.size(); i++) {
             // spot center in px
-            double[] pos= new double[3]; // x,y,z
-            pos[0] = spot.getDoublePosition(0) / calib.pixelWidth;
-            pos[1] = spot.getDoublePosition(1) / calib.pixelHeight;
-            pos[2] = spot.getDoublePosition(2) / calib.pixelDepth;
+            pos[0] = spots.x(i) / calib.pixelWidth;
+            pos[1] = spots.y(i) / calib.pixelHeight;
+            pos[2] = spots.z(i) / calib.pixelDepth;
+
+            int frame = spots.frame(i);
 
             // draw circle into central slice
             int slice_ctr = (int) round(pos[2] + 1); // slice=z+1
-            ov = singleCircleToOverlay(ov, pos[0], pos[1], slice_ctr, rad0xy, nChannels, isHyperstack, color, strokewidth, xoffset, yoffset);
+            ov = singleCircleToOverlay(ov, pos[0], pos[1], slice_ctr, frame, rad0xy, nChannels, nSlices, isHyperstack, color, strokewidth, xoffset, yoffset);
 
             // draw circles into slices above and below
             for (int deltaz = 1; deltaz < rad0z + 2; deltaz++) { //step through slices (circle extends to maximally slice_ctr+-rad0x +=rounding error)
@@ -75,10 +87,10 @@ public class SpotVisualization {
 
                 // draw circle rois
                 if (slice_ctr - deltaz > 0) {
-                    ov = singleCircleToOverlay(ov, pos[0], pos[1], slice_ctr - deltaz, radxy, nChannels, isHyperstack, color, strokewidth, xoffset, yoffset);
+                    ov = singleCircleToOverlay(ov, pos[0], pos[1], slice_ctr - deltaz, frame, radxy, nChannels, nSlices, isHyperstack, color, strokewidth, xoffset, yoffset);
                 }
                 if (slice_ctr + deltaz < imp.getNSlices() + 1) {
-                    ov = singleCircleToOverlay(ov, pos[0], pos[1], slice_ctr + deltaz, radxy, nChannels, isHyperstack, color, strokewidth, xoffset, yoffset);
+                    ov = singleCircleToOverlay(ov, pos[0], pos[1], slice_ctr + deltaz, frame, radxy, nChannels, nSlices, isHyperstack, color, strokewidth, xoffset, yoffset);
                 }
             }
         }
@@ -110,6 +122,13 @@ public class SpotVisualization {
         return createOverlayOfSpots(imp, spots, rad_um, ov, color);
     }
 
+    /** Like createOverlayOfSpots(ImagePlus, SpotTable, double, Overlay, Color) but uses the radius of the first spot.
+     */
+    public static Overlay createOverlayOfSpots(final ImagePlus imp, final SpotTable spots, Overlay ov, Color color) {
+        if (spots.size() == 0) return ov;
+        return createOverlayOfSpots(imp, spots, spots.radius(0), ov, color);
+    }
+
     /** Like createOverlayOfSpots(ImagePlus, List, double, Overlay, Color) but with default values.
      * Creates new Overlay, uses radius from the spots object, uses color magenta.
      */
@@ -119,6 +138,63 @@ public class SpotVisualization {
         return createOverlayOfSpots(imp, spots, rad_um, new Overlay(), Color.magenta);
     }
 
+    /** Adds the spots as a single SpotOverlayRoi, which draws the circles only for the displayed slice and time
+     * point. Same circles as createOverlayOfSpots(ImagePlus, SpotTable, double, Overlay, Color), but memory and
+     * creation time don't depend on the number of slices and channels.
+     * @return ov with added spots
+     */
+    public static Overlay createLazyOverlayOfSpots(final ImagePlus imp, final SpotTable spots, double rad_um, Overlay ov, Color color) {
+        if (spots.size() == 0) return ov;
+        ov.add(new SpotOverlayRoi(imp, spots, rad_um, color));
+        return ov;
+    }
+
+    /**
+     * Number of OvalRois which createOverlayOfSpots(..) would create for numspots spots of radius rad_um
+     * (circles in all slices crossed by a sphere, in all channels). Upper bound: spots at the image border
+     * need fewer.
+     */
+    public static long estimateNumOverlayRois(final ImagePlus imp, long numspots, double rad_um) {
+        double pixelDepth = imp.getCalibration().pixelDepth;
+        long slicesPerSpot = 1;
+        for (int deltaz = 1; deltaz * pixelDepth < rad_um && deltaz < imp.getNSlices(); deltaz++) {
+            slicesPerSpot += 2;
+        }
+        return numspots * slicesPerSpot * imp.getNChannels();
+    }
+
+    /**
+     * Creates a multi point roi with one point per spot, positioned in the spot's slice and time point of the given
+     * channel. Built directly from coordinate arrays: the image position is not changed and nothing is redrawn.
+     * @param imp image the spots belong to (calibration, dimensions)
+     * @param spots spot centers in um
+     * @param channel channel of all points (one-based)
+     * @return point roi (positions are stored as point counters, like PointRoi.addPoint(ImagePlus, ..) does)
+     */
+    public static PointRoi createPointRoi(final ImagePlus imp, final SpotTable spots, int channel) {
+        Calibration calib = imp.getCalibration();
+        int numspots = spots.size();
+
+        float[] xs = new float[numspots];
+        float[] ys = new float[numspots];
+        for (int i = 0; i < numspots; i++) {
+            xs[i] = (float) (spots.x(i) / calib.pixelWidth);
+            ys[i] = (float) (spots.y(i) / calib.pixelHeight);
+        }
+        PointRoi points = new PointRoi(xs, ys, numspots);
+
+        // per point stack position. counter (lower 8 bits) stays 0
+        if (imp.getStackSize() > 1) {
+            int[] counters = new int[numspots];
+            for (int i = 0; i < numspots; i++) {
+                int slice = (int) round(spots.z(i) / calib.pixelDepth + 1);
+                counters[i] = imp.getStackIndex(channel, slice, spots.frame(i)) << 8;
+            }
+            points.setCounters(counters);
+        }
+        return points;
+    }
+
     /**
      * Adds a single circle to the overlay. Overlay is added to all channels.
      * See also function variant with default values.
@@ -126,25 +202,27 @@ public class SpotVisualization {
      * @param xctr in px
      * @param yctr in px
      * @param slice one-based
+     * @param frame one-based
      * @param radius in px
-     * @param isHyperstack: true for multichannel, false for single channel (and one timepoint)
+     * @param nSlices number of z slices of the image
+     * @param isHyperstack: true for multichannel, false for single channel (and either one slice or one timepoint)
      * @param color
      * @param strokewidth
      * @param xoffset shift-correction in x during plotting. xctr -> xtr+xoffset
      * @param yoffset shift-correction in y ...
      * @return overlay with added circle
      */
-    private static Overlay singleCircleToOverlay(Overlay ov, double xctr, double yctr, int slice, double radius,
-                                     int nChannels, boolean isHyperstack, Color color, double strokewidth, double xoffset,double yoffset) {
+    private static Overlay singleCircleToOverlay(Overlay ov, double xctr, double yctr, int slice, int frame, double radius,
+                                     int nChannels, int nSlices, boolean isHyperstack, Color color, double strokewidth, double xoffset,double yoffset) {
         for (int channel = 1; channel < nChannels+1; channel++) {
             double xleft = xctr + xoffset - radius;
             double ytop = yctr + yoffset - radius;
 
             OvalRoi spotroi = new OvalRoi(xleft, ytop, 2 * radius, 2 * radius);
             if (isHyperstack) {
-                spotroi.setPosition(channel, slice, 1);
+                spotroi.setPosition(channel, slice, frame);
             } else {
-                spotroi.setPosition(slice);
+                spotroi.setPosition((frame - 1) * nSlices + slice);
             }
             spotroi.setStrokeColor(color);
             spotroi.setStrokeWidth(strokewidth);
@@ -154,11 +232,11 @@ public class SpotVisualization {
     }
 
     /**
-     * Like singleCircleToOverlay(Overlay, double, double, int, double, int, boolean, Color, double, double, double)
-     * but with default parameters
+     * Like singleCircleToOverlay(Overlay, double, double, int, int, double, int, int, boolean, Color, double, double, double)
+     * but with default parameters (single time point)
      */
     private static Overlay singleCircleToOverlay(Overlay ov, double xctr, double yctr, int slice, double radius,
                                                  int nChannels, boolean isHyperstack, Color color) {
-        return singleCircleToOverlay(ov,xctr,yctr, slice,radius,nChannels,isHyperstack, color, 0,0,0 );
+        return singleCircleToOverlay(ov,xctr,yctr, slice, 1, radius,nChannels, 1, isHyperstack, color, 0,0,0 );
     }
 }
@@ -0,0 +1,130 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Base class of the sinks which write rows to disk as they come in. Only the current row is kept in memory.
+ * The columns are defined by the first row: later rows may leave columns empty (written as NaN) but may not add
+ * new ones. A row which tries to is dropped (not written).
+ */
+abstract class StreamingResultSink implements ResultSink {
+
+    // columns in order of their first addValue(..)
+    private final List<String> columns = new ArrayList<>();
+    private final Map<String, Integer> columnIndex = new HashMap<>();
+    private boolean columnsFixed = false;
+
+    // current row
+    private boolean hasRow = false;
+    private String label = "";
+    private double[] values = new double[8];
+
+    private long numRows = 0;
+
+
+    /** Called once before the first row is written. */
+    abstract void writeHeader(List<String> columns) throws IOException;
+
+    /** Writes one row. values has (at least) one entry per column. */
+    abstract void writeRow(String label, double[] values) throws IOException;
+
+    /** Flushes and closes the underlying stream, after the last row was written. */
+    abstract void closeStream() throws IOException;
+
+
+    public long getNumRows() {
+        return numRows;
+    }
+
+
+    @Override
+    public boolean hasFixedColumns() {
+        return true;
+    }
+
+
+    @Override
+    public void incrementCounter() {
+        flushRow();
+        hasRow = true;
+        label = "";
+        Arrays.fill(values, Double.NaN);
+    }
+
+
+    @Override
+    public void addLabel(String label) {
+        this.label = (label == null) ? "" : label;
+    }
+
+
+    @Override
+    public void addValue(String column, double value) {
+        if (!hasRow) {
+            incrementCounter();
+        }
+        Integer idx = columnIndex.get(column);
+        if (idx == null) {
+            if (columnsFixed) {
+                // drop the incomplete row, so that it is not written with the next row or on close
+                hasRow = false;
+                throw new IllegalArgumentException("Column '" + column + "' was not part of the first row.");
+            }
+            idx = columns.size();
+            columns.add(column);
+            columnIndex.put(column, idx);
+            if (idx >= values.length) {
+                int oldLength = values.length;
+                values = Arrays.copyOf(values, 2 * oldLength);
+                Arrays.fill(values, oldLength, values.length, Double.NaN);
+            }
+        }
+        values[idx] = value;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushRow();
+            if (!columnsFixed) {
+                columnsFixed = true;
+                writeHeader(columns);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            closeStream();
+        }
+    }
+
+
+    private void flushRow() {
+        if (!hasRow) {
+            return;
+        }
+        try {
+            if (!columnsFixed) {
+                columnsFixed = true;
+                writeHeader(columns);
+            }
+            writeRow(label, values);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        hasRow = false;
+        numRows++;
+    }
+}
@@ -0,0 +1,131 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Rows written by ColumnarResultSink must be read back unchanged by ColumnarResultSink.read(..): labels which first
+ * appear in later blocks, NaN cells, and without a row which StreamingResultSink rejected.
+ */
+public class ColumnarResultSinkTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        File file = File.createTempFile("spotcoloc", ".bin");
+        try {
+            List<String> expected = new ArrayList<>();
+            // block size 2: the 6 written rows span 3 blocks
+            ColumnarResultSink sink = new ColumnarResultSink(file, 2);
+            try {
+                addRow(sink, expected, "image1", 1, 2.5);
+                addRow(sink, expected, "image1", 2, Double.NaN);
+                addRow(sink, expected, "image2", 3, -0.125);
+
+                // a column not in the first row: the row is dropped
+                sink.incrementCounter();
+                sink.addLabel("rejected");
+                sink.addValue("x", 4);
+                boolean rejected = false;
+                try {
+                    sink.addValue("unknown", 5);
+                } catch (IllegalArgumentException e) {
+                    rejected = true;
+                }
+                assertTrue("row with a new column must be rejected", rejected);
+
+                // empty cell: only x set
+                sink.incrementCounter();
+                sink.addLabel("image1");
+                sink.addValue("x", 6);
+                expected.add("image1|6.0|NaN");
+
+                addRow(sink, expected, "image3, with \"quotes\"", 7, 1e300);
+                addRow(sink, expected, "image2", Double.NaN, 8);
+            } finally {
+                sink.close();
+            }
+            assertEquals(expected.size(), sink.getNumRows());
+
+            RecordingSink read = new RecordingSink();
+            ColumnarResultSink.read(file, read);
+            read.close();
+            assertEquals(expected, read.rows);
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+
+    @Test
+    public void roundTripWithoutRows() throws IOException {
+        File file = File.createTempFile("spotcoloc", ".bin");
+        try {
+            new ColumnarResultSink(file).close();
+            RecordingSink read = new RecordingSink();
+            ColumnarResultSink.read(file, read);
+            read.close();
+            assertEquals(0, read.rows.size());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+
+    private static void addRow(ResultSink sink, List<String> expected, String label, double x, double y) {
+        sink.incrementCounter();
+        sink.addLabel(label);
+        sink.addValue("x", x);
+        sink.addValue("y", y);
+        expected.add(label + "|" + x + "|" + y);
+    }
+
+
+    /**
+     * Records the rows as "label|x|y".
+     */
+    private static class RecordingSink implements ResultSink {
+        final List<String> rows = new ArrayList<>();
+        private StringBuilder row = null;
+
+        @Override
+        public void incrementCounter() {
+            flush();
+            row = new StringBuilder();
+        }
+
+        @Override
+        public void addLabel(String label) {
+            row.append(label);
+        }
+
+        @Override
+        public void addValue(String column, double value) {
+            row.append('|').append(value);
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+
+        private void flush() {
+            if (row != null) {
+                rows.add(row.toString());
+                row = null;
+            }
+        }
+    }
+}
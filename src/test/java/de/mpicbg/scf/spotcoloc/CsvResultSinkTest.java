@@ -0,0 +1,41 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * CSV output of CsvResultSink: labels and column names with separators, quotes or line breaks are quoted,
+ * others are written as is.
+ */
+public class CsvResultSinkTest {
+
+    @Test
+    public void quotesText() throws IOException {
+        StringWriter writer = new StringWriter();
+        try (CsvResultSink sink = new CsvResultSink(writer, 3)) {
+            String[] labels = {"plain", "a,b", "say \"hi\"", "two\nlines", ""};
+            for (int i = 0; i < labels.length; i++) {
+                sink.incrementCounter();
+                sink.addLabel(labels[i]);
+                sink.addValue("n", i);
+                sink.addValue("dist, um", (i == 4) ? Double.NaN : 0.5 * i);
+            }
+        }
+        assertEquals("Label,n,\"dist, um\"\n" +
+                "plain,0,0\n" +
+                "\"a,b\",1,0.5\n" +
+                "\"say \"\"hi\"\"\",2,1\n" +
+                "\"two\nlines\",3,1.5\n" +
+                ",4,NaN\n", writer.toString());
+    }
+}
@@ -0,0 +1,79 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import ij.ImagePlus;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * The coloc count of every distance factor of a sweep must equal the count of findSpotCorrespondences(..) at that
+ * coloc distance, in both matching modes, for uniformly distributed and for lattice spots (ties).
+ */
+@RunWith(Parameterized.class)
+public class DistanceFactorSweepTest {
+
+    private static final double radiusA = 1.0;
+    private static final double radiusB = 1.5;
+    private static final double[] factors = {0.0, 0.25, 0.5, 1.0, 1.5, 2.0, 3.0, 1.0};
+
+    private final SpotProcessor.MatchingMode mode;
+    private final TestSpotTables.Layout layout;
+    // edge length of the spot volume (um)
+    private final int size;
+
+
+    public DistanceFactorSweepTest(SpotProcessor.MatchingMode mode, TestSpotTables.Layout layout, int size) {
+        this.mode = mode;
+        this.layout = layout;
+        this.size = size;
+    }
+
+
+    @Parameterized.Parameters(name = "{0}, {1}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][]{
+                {SpotProcessor.MatchingMode.GREEDY, TestSpotTables.Layout.RANDOM, 15},
+                {SpotProcessor.MatchingMode.GREEDY, TestSpotTables.Layout.LATTICE, 8},
+                {SpotProcessor.MatchingMode.OPTIMAL, TestSpotTables.Layout.RANDOM, 15},
+                {SpotProcessor.MatchingMode.OPTIMAL, TestSpotTables.Layout.LATTICE, 8}});
+    }
+
+
+    @Test
+    public void sweepEqualsSingleFactors() {
+        Random random = new Random(1);
+        SpotProcessor spotProcessor = new SpotProcessor(new ImagePlus());
+        spotProcessor.setMatchingMode(mode);
+        for (int run = 0; run < 10; run++) {
+            int numspotsA = random.nextInt(400);
+            int numspotsB = random.nextInt(400);
+            SpotTable spotsA = layout.create(random, numspotsA, size);
+            SpotTable spotsB = layout.create(random, numspotsB, size);
+
+            DistanceFactorSweep sweep = spotProcessor.sweepDistanceFactors(spotsA, spotsB, radiusA, radiusB, factors);
+            assertEquals(factors.length, sweep.size());
+            assertEquals(numspotsA, sweep.getNumSpotsA());
+            assertEquals(numspotsB, sweep.getNumSpotsB());
+            for (int k = 0; k < factors.length; k++) {
+                double maxdist = 0.5 * (radiusA + radiusB) * factors[k];
+                SpotProcessor.ColocResult CR = spotProcessor.findSpotCorrespondences(spotsA, spotsB, maxdist);
+                String message = mode + ", run " + run + ", factor " + factors[k];
+                assertEquals(message, factors[k], sweep.getDistanceFactor(k), 0);
+                assertEquals(message, maxdist, sweep.getMaxDistance(k), 1e-12);
+                assertEquals(message, CR.tableAvg_coloc.size(), sweep.getNumColoc(k));
+            }
+        }
+    }
+}
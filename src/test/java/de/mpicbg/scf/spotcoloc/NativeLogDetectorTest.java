@@ -0,0 +1,156 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import fiji.plugin.trackmate.Spot;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * The NATIVE detector backend must find the same spots as trackmate (TRACKMATE backend) on a small synthetic image.
+ * The blobs lie more than a kernel width from the image border, where the two backends may differ.
+ */
+public class NativeLogDetectorTest {
+
+    private static final double radius_um = 1.0;
+    private static final double threshold = 1.0;
+
+    // tolerances: positions in pixels, quality relative
+    private static final double positionTolerance = 0.05;
+    private static final double truthTolerance = 0.25;
+    private static final double qualityTolerance = 0.02;
+
+    // blob centers (um) and amplitudes
+    private static final double[][] blobs2D = {
+            {6.06, 6.14, 0, 1000},
+            {12.04, 7.10, 0, 600},
+            {9.16, 13.02, 0, 800},
+    };
+    private static final double[][] blobs3D = {
+            {6.06, 6.14, 7.3, 1000},
+            {12.04, 7.10, 7.9, 600},
+            {9.16, 13.02, 8.6, 800},
+    };
+
+
+    @Test
+    public void nativeEqualsTrackmate2D() {
+        ImagePlus imp = createImage(96, 96, 1, 0.2, 1.0, blobs2D);
+        compareBackends(imp, blobs2D, false);
+        compareBackends(imp, blobs2D, true);
+    }
+
+
+    @Test
+    public void nativeEqualsTrackmate3D() {
+        ImagePlus imp = createImage(96, 96, 32, 0.2, 0.5, blobs3D);
+        compareBackends(imp, blobs3D, false);
+        compareBackends(imp, blobs3D, true);
+    }
+
+
+    private static void compareBackends(ImagePlus imp, double[][] blobs, boolean doSubpixel) {
+        List<Spot> spotsTrackmate = detect(imp, SpotProcessor.DetectorBackend.TRACKMATE, doSubpixel);
+        List<Spot> spotsNative = detect(imp, SpotProcessor.DetectorBackend.NATIVE, doSubpixel);
+        Calibration calib = imp.getCalibration();
+        String message = (imp.getNSlices() > 1 ? "3D" : "2D") + (doSubpixel ? ", subpixel" : "");
+
+        assertEquals(message + ": number of spots", blobs.length, spotsTrackmate.size());
+        assertEquals(message + ": number of spots", spotsTrackmate.size(), spotsNative.size());
+        for (Spot spotNative : spotsNative) {
+            Spot spotTrackmate = closest(spotNative, spotsTrackmate, calib);
+            assertTrue(message + ": position differs from trackmate",
+                    pixelDistance(spotNative, spotTrackmate, calib) <= positionTolerance);
+            double qualityTrackmate = spotTrackmate.getFeature(Spot.QUALITY);
+            assertEquals(message + ": quality", qualityTrackmate, spotNative.getFeature(Spot.QUALITY),
+                    qualityTolerance * Math.abs(qualityTrackmate));
+            assertEquals(message + ": radius", radius_um, spotNative.getFeature(Spot.RADIUS), 1e-12);
+
+            boolean nearBlob = false;
+            for (double[] blob : blobs) {
+                nearBlob |= pixelDistance(spotNative, blob, calib) <= (doSubpixel ? truthTolerance : 1.0);
+            }
+            assertTrue(message + ": spot not at a blob", nearBlob);
+        }
+    }
+
+
+    private static List<Spot> detect(ImagePlus imp, SpotProcessor.DetectorBackend backend, boolean doSubpixel) {
+        SpotProcessor spotProcessor = new SpotProcessor(imp);
+        spotProcessor.setDetectorBackend(backend);
+        spotProcessor.setNumThreads(2);
+        return spotProcessor.detectSpotsInFrame(1, 1, radius_um, threshold, doSubpixel, false);
+    }
+
+
+    /**
+     * Single channel image of gaussian blobs (sigma = radius/sqrt(dims), as the LoG kernel) on a zero background.
+     */
+    private static ImagePlus createImage(int nx, int ny, int nz, double pixelSize, double pixelDepth, double[][] blobs) {
+        double sigma = radius_um / Math.sqrt(nz > 1 ? 3 : 2);
+        ImageStack stack = new ImageStack(nx, ny);
+        for (int z = 0; z < nz; z++) {
+            float[] pixels = new float[nx * ny];
+            for (int y = 0; y < ny; y++) {
+                for (int x = 0; x < nx; x++) {
+                    double value = 0;
+                    for (double[] blob : blobs) {
+                        double dx = x * pixelSize - blob[0];
+                        double dy = y * pixelSize - blob[1];
+                        double dz = (nz > 1) ? z * pixelDepth - blob[2] : 0;
+                        value += blob[3] * Math.exp(-(dx * dx + dy * dy + dz * dz) / (2 * sigma * sigma));
+                    }
+                    pixels[y * nx + x] = (float) value;
+                }
+            }
+            stack.addSlice("", new FloatProcessor(nx, ny, pixels));
+        }
+
+        ImagePlus imp = new ImagePlus("synthetic blobs", stack);
+        imp.setDimensions(1, nz, 1);
+        Calibration calib = new Calibration();
+        calib.pixelWidth = pixelSize;
+        calib.pixelHeight = pixelSize;
+        calib.pixelDepth = pixelDepth;
+        calib.setUnit("um");
+        imp.setCalibration(calib);
+        return imp;
+    }
+
+
+    private static Spot closest(Spot spot, List<Spot> spots, Calibration calib) {
+        Spot best = null;
+        for (Spot other : spots) {
+            if (best == null || pixelDistance(spot, other, calib) < pixelDistance(spot, best, calib)) {
+                best = other;
+            }
+        }
+        return best;
+    }
+
+
+    /** @return largest coordinate difference in pixels */
+    private static double pixelDistance(Spot spot, Spot other, Calibration calib) {
+        return pixelDistance(spot, new double[]{other.getFeature(Spot.POSITION_X), other.getFeature(Spot.POSITION_Y),
+                other.getFeature(Spot.POSITION_Z)}, calib);
+    }
+
+
+    private static double pixelDistance(Spot spot, double[] position, Calibration calib) {
+        return Math.max(Math.abs(spot.getFeature(Spot.POSITION_X) - position[0]) / calib.pixelWidth,
+                Math.max(Math.abs(spot.getFeature(Spot.POSITION_Y) - position[1]) / calib.pixelHeight,
+                        Math.abs(spot.getFeature(Spot.POSITION_Z) - position[2]) / calib.pixelDepth));
+    }
+}
@@ -0,0 +1,179 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * OptimalMatcher.match(..) must find the maximal number of pairs and, among those, the minimal total distance.
+ * Checked against a brute force enumeration of all pairings on small synthetic spot sets, uniformly distributed or
+ * on a lattice (ties).
+ */
+@RunWith(Parameterized.class)
+public class OptimalMatcherTest {
+
+    private static final double eps = 1e-9;
+
+    private final TestSpotTables.Layout layout;
+    // edge length of the spot volume (um)
+    private final int size;
+
+
+    public OptimalMatcherTest(TestSpotTables.Layout layout, int size) {
+        this.layout = layout;
+        this.size = size;
+    }
+
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][]{
+                {TestSpotTables.Layout.RANDOM, 4},
+                {TestSpotTables.Layout.LATTICE, 3}});
+    }
+
+
+    @Test
+    public void matchEqualsBruteForce() {
+        Random random = new Random(1);
+        for (int run = 0; run < 500; run++) {
+            SpotTable spotsA = layout.create(random, random.nextInt(7), size);
+            SpotTable spotsB = layout.create(random, random.nextInt(7), size);
+            // lattice: integer maxdist, so that pairs at exactly maxdist occur
+            double maxdist = (layout == TestSpotTables.Layout.LATTICE) ? 1 + random.nextInt(2) : 3 * random.nextDouble();
+            check("run " + run, spotsA, spotsB, maxdist, OptimalMatcher.match(spotsA, spotsB, null, maxdist, null, 1));
+        }
+    }
+
+
+    /**
+     * Many small clusters far apart: independent components, solved in parallel. Every cluster is checked against
+     * the brute force result.
+     */
+    @Test
+    public void parallelComponentsEqualBruteForce() {
+        Random random = new Random(3);
+        int numClusters = 100;
+        int[] sizesA = new int[numClusters];
+        int[] sizesB = new int[numClusters];
+        SpotTable[] clustersA = new SpotTable[numClusters];
+        SpotTable[] clustersB = new SpotTable[numClusters];
+        int numspotsA = 0, numspotsB = 0;
+        for (int c = 0; c < numClusters; c++) {
+            clustersA[c] = layout.create(random, random.nextInt(6), 3);
+            clustersB[c] = layout.create(random, random.nextInt(6), 3);
+            sizesA[c] = clustersA[c].size();
+            sizesB[c] = clustersB[c].size();
+            numspotsA += sizesA[c];
+            numspotsB += sizesB[c];
+        }
+        // clusters 100 um apart along x
+        SpotTable spotsA = SpotTable.allocate(numspotsA);
+        SpotTable spotsB = SpotTable.allocate(numspotsB);
+        int offsetA = 0, offsetB = 0;
+        for (int c = 0; c < numClusters; c++) {
+            for (int i = 0; i < sizesA[c]; i++) {
+                spotsA.set(offsetA + i, clustersA[c].x(i) + 100 * c, clustersA[c].y(i), clustersA[c].z(i), 1, 1, 1, 1, 1);
+            }
+            for (int i = 0; i < sizesB[c]; i++) {
+                spotsB.set(offsetB + i, clustersB[c].x(i) + 100 * c, clustersB[c].y(i), clustersB[c].z(i), 1, 1, 1, 1, 1);
+            }
+            offsetA += sizesA[c];
+            offsetB += sizesB[c];
+        }
+
+        double maxdist = 2.0;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        int[] partnersOfA;
+        try {
+            partnersOfA = OptimalMatcher.match(spotsA, spotsB, null, maxdist, executor, 4);
+        } finally {
+            executor.shutdown();
+        }
+
+        offsetA = 0;
+        offsetB = 0;
+        for (int c = 0; c < numClusters; c++) {
+            int[] partnersOfCluster = new int[sizesA[c]];
+            for (int i = 0; i < sizesA[c]; i++) {
+                int partner = partnersOfA[offsetA + i];
+                assertTrue("cluster " + c + ": partner in another cluster",
+                        partner < 0 || (partner >= offsetB && partner < offsetB + sizesB[c]));
+                partnersOfCluster[i] = (partner < 0) ? -1 : partner - offsetB;
+            }
+            check("cluster " + c, clustersA[c], clustersB[c], maxdist, partnersOfCluster);
+            offsetA += sizesA[c];
+            offsetB += sizesB[c];
+        }
+    }
+
+
+    /**
+     * Checks that partnersOfA is a valid pairing within maxdist with the brute force number of pairs and total
+     * distance.
+     */
+    private static void check(String message, SpotTable spotsA, SpotTable spotsB, double maxdist, int[] partnersOfA) {
+        assertEquals(message, spotsA.size(), partnersOfA.length);
+        boolean[] used = new boolean[spotsB.size()];
+        int numPairs = 0;
+        double totalDist = 0;
+        for (int a = 0; a < spotsA.size(); a++) {
+            int b = partnersOfA[a];
+            if (b < 0) {
+                continue;
+            }
+            assertFalse(message + ": spot B " + b + " paired twice", used[b]);
+            used[b] = true;
+            double dist = Math.sqrt(TestSpotTables.dist2(spotsA, a, spotsB, b));
+            assertTrue(message + ": pair farther than maxdist", dist <= maxdist);
+            numPairs++;
+            totalDist += dist;
+        }
+
+        double[] best = {0, 0}; // number of pairs, total distance
+        bruteForce(spotsA, spotsB, maxdist * maxdist, 0, new boolean[spotsB.size()], 0, 0, best);
+        assertEquals(message + ": number of pairs", (int) best[0], numPairs);
+        assertEquals(message + ": total distance", best[1], totalDist, eps);
+    }
+
+
+    /**
+     * Enumerates all pairings of spots a.. (each either unpaired or paired with a free B within maxdist) and keeps
+     * the best one: more pairs first, then lower total distance.
+     */
+    private static void bruteForce(SpotTable spotsA, SpotTable spotsB, double maxdist2, int a, boolean[] used,
+                                   int numPairs, double totalDist, double[] best) {
+        if (a == spotsA.size()) {
+            if (numPairs > best[0] || (numPairs == best[0] && totalDist < best[1])) {
+                best[0] = numPairs;
+                best[1] = totalDist;
+            }
+            return;
+        }
+        bruteForce(spotsA, spotsB, maxdist2, a + 1, used, numPairs, totalDist, best);
+        for (int b = 0; b < spotsB.size(); b++) {
+            double dist2 = TestSpotTables.dist2(spotsA, a, spotsB, b);
+            if (!used[b] && dist2 <= maxdist2) {
+                used[b] = true;
+                bruteForce(spotsA, spotsB, maxdist2, a + 1, used, numPairs + 1, totalDist + Math.sqrt(dist2), best);
+                used[b] = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import fiji.plugin.trackmate.Spot;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Quality index of a detection: aboveThreshold(..) must select the same spots, in the same order, as a filter over
+ * the detection.
+ */
+public class QualitySortedSpotsTest {
+
+    @Test
+    public void sortIndicesByKeyIsStable() {
+        Random random = new Random(1);
+        for (int n : new int[]{0, 1, 2, 7, 100, 1025}) {
+            double[] keys = new double[n];
+            Integer[] expected = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = random.nextInt(10); // many ties
+                expected[i] = i;
+            }
+            Arrays.sort(expected, (i1, i2) -> Double.compare(keys[i1], keys[i2])); // stable
+            int[] order = QualitySortedSpots.sortIndicesByKey(keys);
+            for (int k = 0; k < n; k++) {
+                assertEquals("n " + n + ", position " + k, (int) expected[k], order[k]);
+            }
+        }
+    }
+
+
+    @Test
+    public void aboveThresholdEqualsFilter() {
+        Random random = new Random(2);
+        List<Spot> spots = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            spots.add(new Spot(i, 0, 0, 1.0, 0.5 * random.nextInt(40)));
+        }
+        QualitySortedSpots detection = new QualitySortedSpots(spots, 0.0);
+        assertTrue(detection.contains(3.0));
+
+        for (double threshold : new double[]{0.0, 0.25, 1.0, 5.0, 5.5, 19.5, 100.0}) {
+            List<Spot> selected = detection.aboveThreshold(threshold);
+            List<Spot> expected = new ArrayList<>();
+            for (Spot spot : spots) {
+                if (threshold <= 0.0 || spot.getFeature(Spot.QUALITY) > threshold) {
+                    expected.add(spot);
+                }
+            }
+            assertEquals("threshold " + threshold, expected.size(), selected.size());
+            for (int k = 0; k < expected.size(); k++) {
+                assertTrue("threshold " + threshold + ", spot " + k, expected.get(k) == selected.get(k));
+            }
+        }
+    }
+
+
+    @Test
+    public void emptyDetection() {
+        QualitySortedSpots detection = new QualitySortedSpots(new ArrayList<>(), 1.0);
+        assertEquals(0, detection.aboveThreshold(2.0).size());
+        assertArrayEquals(new int[0], QualitySortedSpots.sortIndicesByKey(new double[0]));
+    }
+}
@@ -0,0 +1,117 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import ij.ImagePlus;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * The grid-based greedy matching must give the same pairs as the original linear scan over all spots B. Run for
+ * uniformly distributed spots and for lattice spots (ties and duplicate positions).
+ */
+@RunWith(Parameterized.class)
+public class SpotGridTest {
+
+    private static final double[] maxdists = {0.0, 0.5, 1.0, 2.5, 7.0};
+
+    private final TestSpotTables.Layout layout;
+    // edge length of the spot volume (um)
+    private final int size;
+
+
+    public SpotGridTest(TestSpotTables.Layout layout, int size) {
+        this.layout = layout;
+        this.size = size;
+    }
+
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][]{
+                {TestSpotTables.Layout.RANDOM, 20},
+                {TestSpotTables.Layout.LATTICE, 6}});
+    }
+
+
+    @Test
+    public void greedyMatchingEqualsLinearScan() {
+        Random random = new Random(1);
+        SpotProcessor spotProcessor = new SpotProcessor(new ImagePlus());
+        for (int run = 0; run < 20; run++) {
+            SpotTable spotsA = layout.create(random, 1 + random.nextInt(300), size);
+            SpotTable spotsB = layout.create(random, 1 + random.nextInt(300), size);
+            for (double maxdist : maxdists) {
+                assertArrayEquals("run " + run + ", maxdist " + maxdist, linearScan(spotsA, spotsB, maxdist),
+                        spotProcessor.findSpotCorrespondences(spotsA, spotsB, maxdist).partnersOfA);
+            }
+        }
+    }
+
+
+    @Test
+    public void forEachWithinEqualsLinearScan() {
+        Random random = new Random(3);
+        SpotTable spotsA = TestSpotTables.random(random, 200, 10);
+        SpotTable spotsB = layout.create(random, 300, 10);
+        double maxdist2 = 1.5 * 1.5;
+        SpotGrid gridB = new SpotGrid(spotsB, 1.5).addAll();
+        for (int a = 0; a < spotsA.size(); a++) {
+            List<Integer> expected = new ArrayList<>();
+            for (int b = 0; b < spotsB.size(); b++) {
+                if (TestSpotTables.dist2(spotsA, a, spotsB, b) <= maxdist2) {
+                    expected.add(b);
+                }
+            }
+            List<Integer> found = new ArrayList<>();
+            gridB.forEachWithin(spotsA.x(a), spotsA.y(a), spotsA.z(a), maxdist2, null, found::add);
+            Collections.sort(found);
+            assertEquals(expected.size(), found.size());
+            for (int k = 0; k < expected.size(); k++) {
+                assertEquals((int) expected.get(k), (int) found.get(k));
+            }
+        }
+    }
+
+
+    /**
+     * Greedy matching as before the spatial index: spots A in order take the closest free spot B, scanning all
+     * spots B (strict comparison, so the lower id wins on equal distance).
+     */
+    private static int[] linearScan(SpotTable spotsA, SpotTable spotsB, double maxdist) {
+        double maxdist2 = maxdist * maxdist;
+        boolean[] burned = new boolean[spotsB.size()];
+        int[] partnersOfA = new int[spotsA.size()];
+        for (int a = 0; a < spotsA.size(); a++) {
+            double mindist2 = Double.POSITIVE_INFINITY;
+            int best = -1;
+            for (int b = 0; b < spotsB.size(); b++) {
+                double dist2 = TestSpotTables.dist2(spotsA, a, spotsB, b);
+                if (!burned[b] && dist2 <= maxdist2 && dist2 < mindist2) {
+                    mindist2 = dist2;
+                    best = b;
+                }
+            }
+            partnersOfA[a] = best;
+            if (best >= 0) {
+                burned[best] = true;
+            }
+        }
+        return partnersOfA;
+    }
+}
@@ -0,0 +1,58 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import fiji.plugin.trackmate.Spot;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Spot objects of SpotTable.asSpotList(): the original spots only if the table keeps them.
+ */
+public class SpotTableTest {
+
+    @Test
+    public void fromSpotsKeepsNoSpots() {
+        List<Spot> spots = createSpots(5);
+        SpotTable table = SpotTable.fromSpots(spots);
+        List<Spot> spotList = table.asSpotList();
+        assertEquals(spots.size(), spotList.size());
+        for (int i = 0; i < spots.size(); i++) {
+            assertTrue("new spot expected", spotList.get(i) != spots.get(i));
+            assertEquals(spots.get(i).getDoublePosition(0), spotList.get(i).getDoublePosition(0), 0);
+            // materialized once: the same objects on repeated access
+            assertTrue(spotList.get(i) == spotList.get(i));
+        }
+    }
+
+
+    @Test
+    public void fromSpotsKeepingSpotsReturnsOriginals() {
+        List<Spot> spots = createSpots(5);
+        SpotTable table = SpotTable.fromSpots(spots, true);
+        SpotTable view = table.view(new int[]{3, 1});
+        for (int i = 0; i < spots.size(); i++) {
+            assertTrue(table.asSpotList().get(i) == spots.get(i));
+        }
+        assertTrue(view.asSpotList().get(0) == spots.get(3));
+        assertTrue(view.spot(1) == spots.get(1));
+    }
+
+
+    private static List<Spot> createSpots(int n) {
+        List<Spot> spots = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            spots.add(new Spot(i, 2 * i, 0, 1.0, 10.0 + i));
+        }
+        return spots;
+    }
+}
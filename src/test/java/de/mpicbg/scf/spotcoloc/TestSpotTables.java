@@ -0,0 +1,70 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import java.util.Random;
+
+
+/**
+ * Synthetic spot tables for the tests (no image involved).
+ */
+class TestSpotTables {
+
+    /**
+     * Spatial distribution of the synthetic spots, the parameter of the parameterized tests.
+     */
+    enum Layout {
+        /** uniformly distributed, see random(..) */
+        RANDOM,
+        /** on the integer lattice, with frequent ties and duplicates, see lattice(..) */
+        LATTICE;
+
+        /**
+         * @return n spots in [0,size)^3 (um), radius 1, frame 1
+         */
+        SpotTable create(Random random, int n, int size) {
+            return (this == LATTICE) ? lattice(random, n, size) : TestSpotTables.random(random, n, size);
+        }
+    }
+
+
+    private TestSpotTables() {
+    }
+
+
+    /**
+     * @return n spots uniformly distributed in [0,size)^3 (um), radius 1, frame 1
+     */
+    static SpotTable random(Random random, int n, double size) {
+        SpotTable spots = SpotTable.allocate(n);
+        for (int i = 0; i < n; i++) {
+            spots.set(i, size * random.nextDouble(), size * random.nextDouble(), size * random.nextDouble(),
+                    1.0, 1.0, 1.0, 1.0, 1);
+        }
+        return spots;
+    }
+
+
+    /**
+     * @return n spots on the integer lattice [0,size)^3 (um), so that equal distances (ties) and duplicate
+     * positions are frequent. Radius 1, frame 1
+     */
+    static SpotTable lattice(Random random, int n, int size) {
+        SpotTable spots = SpotTable.allocate(n);
+        for (int i = 0; i < n; i++) {
+            spots.set(i, random.nextInt(size), random.nextInt(size), random.nextInt(size), 1.0, 1.0, 1.0, 1.0, 1);
+        }
+        return spots;
+    }
+
+
+    static double dist2(SpotTable spotsA, int a, SpotTable spotsB, int b) {
+        double dx = spotsA.x(a) - spotsB.x(b);
+        double dy = spotsA.y(a) - spotsB.y(b);
+        double dz = spotsA.z(a) - spotsB.z(b);
+        return dx * dx + dy * dy + dz * dz;
+    }
+}
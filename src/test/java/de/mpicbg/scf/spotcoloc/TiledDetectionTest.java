@@ -0,0 +1,138 @@
+package de.mpicbg.scf.spotcoloc;
+
+/*
+ * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
+ */
+
+
+import fiji.plugin.trackmate.Spot;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Tiled detection (SpotProcessor.setTiledDetection(..)) must find the same spots as the untiled detection of the
+ * whole image, also for spots close to the tile borders. NATIVE backend, tiles much smaller than the image.
+ */
+public class TiledDetectionTest {
+
+    private static final double radius_um = 0.6;
+    private static final double threshold = 1.0;
+
+
+    @Test
+    public void tiledEqualsUntiled2D() {
+        ImagePlus imp = createImage(new Random(1), 120, 100, 1, 0.2, 1.0, 25);
+        for (boolean doSubpixel : new boolean[]{false, true}) {
+            for (boolean doMedian : new boolean[]{false, true}) {
+                compare(imp, 24, doSubpixel, doMedian);
+            }
+        }
+    }
+
+
+    @Test
+    public void tiledEqualsUntiled3D() {
+        ImagePlus imp = createImage(new Random(2), 60, 50, 12, 0.2, 0.5, 10);
+        for (boolean doSubpixel : new boolean[]{false, true}) {
+            compare(imp, 8, doSubpixel, false);
+        }
+    }
+
+
+    private static void compare(ImagePlus imp, int tileSize_px, boolean doSubpixel, boolean doMedian) {
+        String message = (imp.getNSlices() > 1 ? "3D" : "2D") + (doSubpixel ? ", subpixel" : "") +
+                (doMedian ? ", median" : "");
+        List<Spot> untiled = detect(imp, 0, doSubpixel, doMedian);
+        List<Spot> tiled = detect(imp, tileSize_px, doSubpixel, doMedian);
+
+        assertEquals(message + ": number of spots", untiled.size(), tiled.size());
+        for (int i = 0; i < untiled.size(); i++) {
+            for (String feature : new String[]{Spot.POSITION_X, Spot.POSITION_Y, Spot.POSITION_Z}) {
+                assertEquals(message + ", spot " + i + ": " + feature, untiled.get(i).getFeature(feature),
+                        tiled.get(i).getFeature(feature), 1e-9);
+            }
+            double quality = untiled.get(i).getFeature(Spot.QUALITY);
+            assertEquals(message + ", spot " + i + ": quality", quality, tiled.get(i).getFeature(Spot.QUALITY),
+                    1e-6 * Math.abs(quality));
+        }
+    }
+
+
+    /**
+     * @return detected spots sorted by position (z, y, x)
+     */
+    private static List<Spot> detect(ImagePlus imp, int tileSize_px, boolean doSubpixel, boolean doMedian) {
+        SpotProcessor spotProcessor = new SpotProcessor(imp);
+        spotProcessor.setDetectorBackend(SpotProcessor.DetectorBackend.NATIVE);
+        spotProcessor.setNumThreads(4);
+        spotProcessor.setTiledDetection(tileSize_px, Long.MAX_VALUE);
+        List<Spot> spots = new ArrayList<>(spotProcessor.detectSpotsInFrame(1, 1, radius_um, threshold, doSubpixel,
+                doMedian));
+        spots.sort(Comparator.comparingDouble((Spot spot) -> spot.getFeature(Spot.POSITION_Z))
+                .thenComparingDouble(spot -> spot.getFeature(Spot.POSITION_Y))
+                .thenComparingDouble(spot -> spot.getFeature(Spot.POSITION_X)));
+        return spots;
+    }
+
+
+    /**
+     * Single channel image of gaussian blobs at random positions (also on tile borders), at least two radii apart,
+     * with random amplitudes, on a zero background.
+     */
+    private static ImagePlus createImage(Random random, int nx, int ny, int nz, double pixelSize, double pixelDepth,
+                                         int numBlobs) {
+        double sigma = radius_um / Math.sqrt(nz > 1 ? 3 : 2);
+        List<double[]> blobs = new ArrayList<>();
+        while (blobs.size() < numBlobs) {
+            double[] blob = {nx * pixelSize * random.nextDouble(), ny * pixelSize * random.nextDouble(),
+                    (nz > 1) ? nz * pixelDepth * random.nextDouble() : 0, 200 + 800 * random.nextDouble()};
+            boolean isolated = true;
+            for (double[] other : blobs) {
+                double dx = blob[0] - other[0], dy = blob[1] - other[1], dz = blob[2] - other[2];
+                isolated &= dx * dx + dy * dy + dz * dz >= 4 * radius_um * radius_um;
+            }
+            if (isolated) {
+                blobs.add(blob);
+            }
+        }
+
+        ImageStack stack = new ImageStack(nx, ny);
+        for (int z = 0; z < nz; z++) {
+            float[] pixels = new float[nx * ny];
+            for (int y = 0; y < ny; y++) {
+                for (int x = 0; x < nx; x++) {
+                    double value = 0;
+                    for (double[] blob : blobs) {
+                        double dx = x * pixelSize - blob[0];
+                        double dy = y * pixelSize - blob[1];
+                        double dz = (nz > 1) ? z * pixelDepth - blob[2] : 0;
+                        value += blob[3] * Math.exp(-(dx * dx + dy * dy + dz * dz) / (2 * sigma * sigma));
+                    }
+                    pixels[y * nx + x] = (float) value;
+                }
+            }
+            stack.addSlice("", new FloatProcessor(nx, ny, pixels));
+        }
+
+        ImagePlus imp = new ImagePlus("synthetic blobs", stack);
+        imp.setDimensions(1, nz, 1);
+        Calibration calib = new Calibration();
+        calib.pixelWidth = pixelSize;
+        calib.pixelHeight = pixelSize;
+        calib.pixelDepth = pixelDepth;
+        calib.setUnit("um");
+        imp.setCalibration(calib);
+        return imp;
+    }
+}